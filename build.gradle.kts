@@ -19,4 +19,36 @@ dependencies {
 
 tasks.test {
     useJUnitPlatform()
+}
+
+/**
+ * JMH benchmarks live in src/jmh/java.  Run them with `gradle jmh`; pass
+ * JMH options with -PjmhArgs, e.g. -PjmhArgs="DiskBenchmark -p backend=Disk".
+ * Results are written as JSON to build/results/jmh/results.json.
+ */
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.register<JavaExec>("jmh") {
+    description = "Runs the JMH benchmarks and writes the results as JSON"
+    group = "verification"
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+
+    val results = layout.buildDirectory.file("results/jmh/results.json").get().asFile
+    val extraArgs = (project.findProperty("jmhArgs") as String?)?.split(" ")?.filter { it.isNotBlank() }
+    args(listOf("-rf", "json", "-rff", results.path) + (extraArgs ?: listOf()))
+    doFirst { results.parentFile.mkdirs() }
+}
+
+// keep the benchmarks compiling with every build
+tasks.check {
+    dependsOn(jmh.classesTaskName)
 }
\ No newline at end of file
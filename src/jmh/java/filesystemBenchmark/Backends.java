@@ -0,0 +1,49 @@
+package filesystemBenchmark;
+
+import filesystem.BlockDevice;
+import filesystem.CachedDisk;
+import filesystem.Disk;
+import filesystem.MappedDisk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+
+/**
+ * The block devices a benchmark can run against, named as in its
+ * <code>backend</code> parameter.  Each benchmark gets a scratch disk image
+ * in the temporary directory.
+ */
+final class Backends {
+    static final String DISK = "Disk";
+    static final String MAPPED_DISK = "MappedDisk";
+    static final String CACHED_DISK = "CachedDisk";
+
+    private Backends() {
+    }
+
+    /***
+     * Returns a new, unformatted device backed by the scratch file <code>image</code>
+     *
+     * @throws IllegalArgumentException If <code>backend</code> is not a known backend
+     */
+    static BlockDevice create(String backend, Path image) throws IllegalArgumentException {
+        switch (backend) {
+            case DISK:
+                return new Disk(image.toString());
+            case MAPPED_DISK:
+                return new MappedDisk(image.toString());
+            case CACHED_DISK:
+                return new CachedDisk(new Disk(image.toString()));
+            default:
+                throw new IllegalArgumentException("Backends::create: unknown backend " + backend);
+        }
+    }
+
+    static Path newImage() throws IOException {
+        Path image = Files.createTempFile("benchmark", ".dsk");
+        image.toFile().deleteOnExit();
+        return image;
+    }
+}
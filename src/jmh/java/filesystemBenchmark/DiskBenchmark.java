@@ -0,0 +1,139 @@
+package filesystemBenchmark;
+
+import filesystem.BlockDevice;
+import filesystem.DiskGeometry;
+import filesystem.INode;
+import filesystem.INodeView;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Single block and single inode I/O of each backend, at random positions.
+ * The <code>ByteBuffer</code> variants reuse one buffer, so running with
+ * <code>-PjmhArgs="DiskBenchmark -prof gc"</code> shows what each call allocates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskBenchmark {
+    @Param({Backends.DISK, Backends.MAPPED_DISK, Backends.CACHED_DISK})
+    public String backend;
+
+    private Path image;
+    private BlockDevice disk;
+    private DiskGeometry geometry;
+    private SplittableRandom random;
+    private byte[] blockData;
+    private ByteBuffer blockBuffer;
+    private ByteBuffer inodeTable;
+    private INode inode;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Backends.newImage();
+        disk = Backends.create(backend, image);
+        disk.format();
+        geometry = disk.getGeometry();
+        random = new SplittableRandom(42);
+
+        blockData = new byte[geometry.getBlockSize()];
+        random.nextBytes(blockData);
+        blockBuffer = ByteBuffer.allocate(geometry.getBlockSize());
+        inodeTable = ByteBuffer.allocateDirect(geometry.getInodeSize() * geometry.getNumInodes());
+        inode = new INode();
+        inode.setFileName("benchmark.txt");
+        inode.setSize(12345);
+        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+            inode.setBlockPointer(i, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        disk.close();
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public byte[] readDataBlock() throws IOException {
+        return disk.readDataBlock(random.nextInt(geometry.getNumBlocks()));
+    }
+
+    @Benchmark
+    public void writeDataBlock() throws IOException {
+        disk.writeDataBlock(blockData, random.nextInt(geometry.getNumBlocks()));
+    }
+
+    @Benchmark
+    public ByteBuffer readDataBlockIntoBuffer() throws IOException {
+        disk.readDataBlock(random.nextInt(geometry.getNumBlocks()), blockBuffer.clear());
+        return blockBuffer;
+    }
+
+    @Benchmark
+    public void writeDataBlockFromBuffer() throws IOException {
+        disk.writeDataBlock(blockBuffer.clear(), random.nextInt(geometry.getNumBlocks()));
+    }
+
+    @Benchmark
+    public INode readInode() throws IOException {
+        return disk.readInode(random.nextInt(geometry.getNumInodes()));
+    }
+
+    @Benchmark
+    public void writeInode() throws IOException {
+        disk.writeInode(inode, random.nextInt(geometry.getNumInodes()));
+    }
+
+    /***
+     * Counts the free inodes after decoding the whole table into objects
+     */
+    @Benchmark
+    public int scanInodeTable() throws IOException {
+        int free = 0;
+        for (INode table : disk.readInodeTable()) {
+            if (table.getFileName() == null) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    /***
+     * Counts the free inodes reading the raw table in place
+     */
+    @Benchmark
+    public int scanInodeTableInPlace() throws IOException {
+        disk.readInodeTable(inodeTable.clear());
+        INodeView view = new INodeView(inodeTable.flip(), geometry.getInodeSize());
+        int free = 0;
+        for (int i = 0; i < view.getNumInodes(); i++) {
+            if (view.moveTo(i).isFree()) {
+                free++;
+            }
+        }
+        return free;
+    }
+}
@@ -0,0 +1,87 @@
+package filesystemBenchmark;
+
+import filesystem.BlockDevice;
+import filesystem.DiskGeometry;
+import filesystem.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Name lookups of <code>open</code>, and <code>create</code> followed by
+ * <code>delete</code>, with <code>fillPercent</code> of the inodes in use
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSystemLookupBenchmark {
+    private static final int BATCH_SIZE = 256;
+
+    @Param({Backends.DISK, Backends.MAPPED_DISK, Backends.CACHED_DISK})
+    public String backend;
+
+    @Param({"0", "50", "90"})
+    public int fillPercent;
+
+    private Path image;
+    private FileSystem fs;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Backends.newImage();
+        BlockDevice disk = Backends.create(backend, image);
+        fs = new FileSystem(disk, DiskGeometry.DEFAULT);
+
+        // a batch commits as one journal transaction, so the files go in batches that fit
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("target.txt", new byte[100]);
+        for (int i = 1; i < DiskGeometry.DEFAULT.getNumInodes() * fillPercent / 100; i++) {
+            files.put("filler" + i + ".txt", new byte[100]);
+            if (files.size() == BATCH_SIZE) {
+                fs.writeBatch(files);
+                files.clear();
+            }
+        }
+        fs.writeBatch(files);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.unmount();
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public void openClose() throws IOException {
+        fs.close(fs.open("target.txt"));
+    }
+
+    @Benchmark
+    public void createDelete() throws IOException {
+        String name = "new" + (next++ % 16) + ".txt";
+        fs.close(fs.create(name));
+        fs.delete(name);
+    }
+}
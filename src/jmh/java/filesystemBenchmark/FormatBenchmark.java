@@ -0,0 +1,63 @@
+package filesystemBenchmark;
+
+import filesystem.BlockDevice;
+import filesystem.FormatMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Formatting a disk image with each backend, writing every block in
+ * <code>FULL</code> mode or only the metadata in <code>QUICK</code> mode.
+ * Each invocation formats the same image again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    @Param({Backends.DISK, Backends.MAPPED_DISK, Backends.CACHED_DISK})
+    public String backend;
+
+    @Param
+    public FormatMode mode;
+
+    private Path image;
+    private BlockDevice disk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Backends.newImage();
+        disk = Backends.create(backend, image);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        disk.close();
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public BlockDevice format() throws IOException {
+        disk.format(mode);
+        return disk;
+    }
+}
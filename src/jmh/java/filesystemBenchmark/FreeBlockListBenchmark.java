@@ -0,0 +1,77 @@
+package filesystemBenchmark;
+
+import filesystem.AllocationPolicy;
+import filesystem.FreeBlockList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Allocating and freeing blocks on an empty disk, on a fragmented one,
+ * where free runs of 1 to 8 blocks alternate with allocated runs of the
+ * same lengths, and on a nearly full one whose only free blocks are the
+ * last 64.  Each operation allocates <code>count</code> blocks and
+ * frees them again so the fill level stays put.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FreeBlockListBenchmark {
+    public static final int NUM_BLOCKS = 1 << 20;
+
+    @Param({"EMPTY", "FRAGMENTED", "NEARLY_FULL"})
+    public String fill;
+
+    @Param({"FIRST_FIT", "NEXT_FIT", "BEST_FIT", "EXTENT"})
+    public AllocationPolicy policy;
+
+    @Param({"1", "16"})
+    public int count;
+
+    private FreeBlockList freeBlockList;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        freeBlockList = new FreeBlockList(NUM_BLOCKS);
+        if (fill.equals("FRAGMENTED")) {
+            SplittableRandom random = new SplittableRandom(42);
+            for (int block = 0; block < NUM_BLOCKS; ) {
+                int allocated = 1 + random.nextInt(8);
+                for (int i = 0; i < allocated && block < NUM_BLOCKS; i++) {
+                    freeBlockList.allocateBlock(block++);
+                }
+                block += 1 + random.nextInt(8);
+            }
+        } else if (fill.equals("NEARLY_FULL")) {
+            for (int block = 0; block < NUM_BLOCKS - 64; block++) {
+                freeBlockList.allocateBlock(block);
+            }
+        }
+        freeBlockList.setAllocationPolicy(policy);
+    }
+
+    @Benchmark
+    public int[] allocateAndFree() {
+        int[] blocks = freeBlockList.allocateBlocks(count);
+        for (int block : blocks) {
+            freeBlockList.deallocateBlock(block);
+        }
+        return blocks;
+    }
+}
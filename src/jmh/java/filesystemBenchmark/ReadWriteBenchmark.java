@@ -0,0 +1,78 @@
+package filesystemBenchmark;
+
+import filesystem.DiskGeometry;
+import filesystem.FileSystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Reading and rewriting a whole file of <code>fileSize</code> bytes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReadWriteBenchmark {
+    @Param({Backends.DISK, Backends.MAPPED_DISK, Backends.CACHED_DISK})
+    public String backend;
+
+    @Param({"512", "8192", "65536", "1048576"})
+    public int fileSize;
+
+    private Path image;
+    private FileSystem fs;
+    private int fd;
+    private ByteBuffer contents;
+    private ByteBuffer readBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        image = Backends.newImage();
+        fs = new FileSystem(Backends.create(backend, image), DiskGeometry.DEFAULT);
+
+        byte[] data = new byte[fileSize];
+        new SplittableRandom(42).nextBytes(data);
+        contents = ByteBuffer.wrap(data);
+        readBuffer = ByteBuffer.allocate(fileSize);
+
+        fd = fs.create("benchmark.bin");
+        fs.write(fd, contents.duplicate(), 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fs.unmount();
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public int read() throws IOException {
+        return fs.read(fd, readBuffer.clear(), 0);
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        return fs.write(fd, contents.duplicate(), 0);
+    }
+}
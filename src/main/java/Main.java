@@ -1,6 +1,9 @@
+import filesystem.Defragmenter;
 import filesystem.FileSystem;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Main {
     public static final int NUM_LINES = 100;
@@ -17,16 +20,19 @@ public class Main {
           String fileName = null;
           String theMessage = null;
 
+          /**
+           * create all the files in one batch
+           */
+          Map<String, byte[]> files = new LinkedHashMap<>();
           for (int i= 0; i < NUM_LINES; i++) {
              fileName = new String(fileNameBase + i + "." + "txt");
-             int fd = fs.create(fileName);
              theMessage = new String();
              for (int j= 0; j < i+1; j++) {
                theMessage = theMessage.concat(testData + j + ".  ");
              }
-             fs.write(fd, theMessage);
-             fs.close(fd);
+             files.put(fileName, theMessage.getBytes());
           }
+          fs.writeBatch(files);
 
           /**
            * delete every 2nd file
@@ -36,6 +42,11 @@ public class Main {
              fs.delete(fileName);
           }
 
+          /**
+           * move the surviving files together into the holes
+           */
+          System.out.println(new Defragmenter(fs).defragment());
+
           String message = null;
           for (int i= 1; i < NUM_LINES; i+=2) {
             fileName = new String(fileNameBase + i + "." + "txt");
@@ -0,0 +1,32 @@
+package filesystem;
+
+
+/**
+ * How <code>FreeBlockList</code> picks the blocks for a file
+ */
+public enum AllocationPolicy {
+    /**
+     * The lowest numbered free blocks, wherever they are
+     */
+    FIRST_FIT,
+
+    /**
+     * The next free blocks after the ones handed out last, wrapping
+     * around at the end of the disk
+     */
+    NEXT_FIT,
+
+    /**
+     * The smallest run of free blocks that holds the whole file, so big
+     * runs are kept for big files.  Falls back to <code>FIRST_FIT</code>
+     * if no run is long enough.
+     */
+    BEST_FIT,
+
+    /**
+     * The first run of free blocks after the ones handed out last that
+     * holds the whole file, so its blocks are adjacent on disk.  Falls
+     * back to <code>NEXT_FIT</code> if no run is long enough.
+     */
+    EXTENT
+}
@@ -0,0 +1,258 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Asynchronous facade over a <code>FileSystem</code> for callers that must
+ * not block, such as event loops.  Every operation runs on a dedicated I/O
+ * executor and returns a <code>CompletableFuture</code> that completes with
+ * its result or with the exception it threw.
+ *
+ * At most <code>maxInFlight</code> operations are queued or running at a
+ * time.  Beyond that an operation is not queued: its future fails right
+ * away with a <code>RejectedExecutionException</code>, so a caller that
+ * outpaces the disk finds out instead of growing an unbounded queue.
+ *
+ * Operations on different files run in parallel.  Operations on the same
+ * descriptor may complete in any order, so a caller that needs one to
+ * follow another chains them on the futures.
+ */
+public class AsyncFileSystem implements Closeable {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    public static final int DEFAULT_IO_THREADS = 8;
+
+    private final FileSystem fileSystem;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private volatile boolean closed;
+
+    /**
+     * An operation of the wrapped file system
+     */
+    @FunctionalInterface
+    private interface IOCall<T> {
+        T call() throws IOException;
+    }
+
+    /***
+     * Wraps a file system with its own pool of <code>DEFAULT_IO_THREADS</code>
+     * daemon threads and room for <code>DEFAULT_MAX_IN_FLIGHT</code> operations
+     */
+    public AsyncFileSystem(FileSystem fileSystem) {
+        this(fileSystem, newIOExecutor(DEFAULT_IO_THREADS), true, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /***
+     * Wraps a file system, running its operations on <code>executor</code>,
+     * e.g. <code>Executors.newVirtualThreadPerTaskExecutor()</code> on a
+     * JDK that has virtual threads.  Closing the facade leaves the executor
+     * running.
+     *
+     * @param maxInFlight Most operations queued or running at a time
+     * @throws IllegalArgumentException If <code>maxInFlight</code> is not positive
+     */
+    public AsyncFileSystem(FileSystem fileSystem, ExecutorService executor, int maxInFlight)
+            throws IllegalArgumentException {
+        this(fileSystem, executor, false, maxInFlight);
+    }
+
+    private AsyncFileSystem(FileSystem fileSystem, ExecutorService executor, boolean ownsExecutor,
+                            int maxInFlight) throws IllegalArgumentException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("AsyncFileSystem::AsyncFileSystem: " + maxInFlight +
+                    " operations in flight is not positive");
+        }
+        this.fileSystem = fileSystem;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    private static ExecutorService newIOExecutor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "filesystem-io-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /***
+     * Creates a file, see <code>FileSystem.create</code>
+     *
+     * @return The descriptor of the new, open file
+     */
+    public CompletableFuture<Integer> createAsync(String fileName) {
+        return submit("createAsync", () -> fileSystem.create(fileName));
+    }
+
+    /***
+     * Opens a file, see <code>FileSystem.open</code>
+     *
+     * @return The descriptor of the file, or -1 if it does not exist
+     */
+    public CompletableFuture<Integer> openAsync(String fileName) {
+        return submit("openAsync", () -> fileSystem.open(fileName));
+    }
+
+    /***
+     * Closes a file, see <code>FileSystem.close</code>
+     */
+    public CompletableFuture<Void> closeAsync(int fileDescriptor) {
+        return submit("closeAsync", () -> {
+            fileSystem.close(fileDescriptor);
+            return null;
+        });
+    }
+
+    /***
+     * Deletes a file, see <code>FileSystem.delete</code>
+     */
+    public CompletableFuture<Void> deleteAsync(String fileName) {
+        return submit("deleteAsync", () -> {
+            fileSystem.delete(fileName);
+            return null;
+        });
+    }
+
+    /***
+     * Reads the whole file, see <code>FileSystem.read(int)</code>
+     */
+    public CompletableFuture<String> readAsync(int fileDescriptor) {
+        return submit("readAsync", () -> fileSystem.read(fileDescriptor));
+    }
+
+    /***
+     * Replaces the contents of the file, see <code>FileSystem.write(int, String)</code>
+     */
+    public CompletableFuture<Void> writeAsync(int fileDescriptor, String data) {
+        return submit("writeAsync", () -> {
+            fileSystem.write(fileDescriptor, data);
+            return null;
+        });
+    }
+
+    /***
+     * Reads bytes at <code>offset</code> into <code>dst</code>, see
+     * <code>FileSystem.read(int, ByteBuffer, long)</code>.  The buffer must
+     * not be touched until the future completes.
+     *
+     * @return The number of bytes read, or -1 at the end of the file
+     */
+    public CompletableFuture<Integer> readAsync(int fileDescriptor, ByteBuffer dst, long offset) {
+        return submit("readAsync", () -> fileSystem.read(fileDescriptor, dst, offset));
+    }
+
+    /***
+     * Writes <code>src</code> at <code>offset</code>, see
+     * <code>FileSystem.write(int, ByteBuffer, long)</code>.  The buffer must
+     * not be touched until the future completes.
+     *
+     * @return The number of bytes written
+     */
+    public CompletableFuture<Integer> writeAsync(int fileDescriptor, ByteBuffer src, long offset) {
+        return submit("writeAsync", () -> fileSystem.write(fileDescriptor, src, offset));
+    }
+
+    /***
+     * Shrinks the file, see <code>FileSystem.truncate</code>
+     */
+    public CompletableFuture<Void> truncateAsync(int fileDescriptor, long size) {
+        return submit("truncateAsync", () -> {
+            fileSystem.truncate(fileDescriptor, size);
+            return null;
+        });
+    }
+
+    /***
+     * Makes everything done so far durable, see <code>FileSystem.sync</code>
+     */
+    public CompletableFuture<Void> syncAsync() {
+        return submit("syncAsync", () -> {
+            fileSystem.sync();
+            return null;
+        });
+    }
+
+    /***
+     * Returns the number of operations queued or running
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /***
+     * Stops accepting operations, whoever owns the executor: the future of
+     * every later operation fails with a <code>RejectedExecutionException</code>.
+     * Operations already accepted still run.  The wrapped file system stays mounted.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /***
+     * Queues an operation on the I/O executor, or fails its future at once
+     * if the facade is closed or <code>maxInFlight</code> operations are
+     * already queued or running
+     */
+    private <T> CompletableFuture<T> submit(String operation, IOCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new RejectedExecutionException("AsyncFileSystem::" + operation +
+                    ": closed"));
+            return result;
+        }
+        if (!inFlight.tryAcquire()) {
+            result.completeExceptionally(new RejectedExecutionException("AsyncFileSystem::" + operation +
+                    ": " + maxInFlight + " operations already in flight"));
+            return result;
+        }
+
+        try {
+            executor.execute(() -> {
+                T value = null;
+                Throwable failure = null;
+                try {
+                    value = call.call();
+                } catch (Throwable e) {
+                    failure = e;
+                }
+
+                /**
+                 * Free the slot before completing, so callbacks that run on
+                 * this thread can queue the next operation
+                 */
+                inFlight.release();
+                if (failure == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,302 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+
+/**
+ * The operations the file system needs from the device that holds the
+ * raw disk image.  The on-disk layout is the one described by
+ * <code>DiskGeometry</code>: the superblock, followed by the free block
+ * list, followed by the inode table, followed by the journal, followed by
+ * the data blocks.
+ */
+public interface BlockDevice extends Closeable {
+
+    /***
+     * Returns the geometry of the disk: the one it was last formatted with
+     * or read from its superblock when mounted
+     */
+    DiskGeometry getGeometry();
+
+    /***
+     * Initialize a new disk with the current geometry using <code>FormatMode.QUICK</code>
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    default void format() throws IOException {
+        format(FormatMode.QUICK);
+    }
+
+    /***
+     * Initialize a new disk with the current geometry
+     *
+     * @param mode Whether to write only the metadata region or the whole image
+     * @throws IOException If an I/O error occurs
+     */
+    default void format(FormatMode mode) throws IOException {
+        format(getGeometry(), mode);
+    }
+
+    /***
+     * Initialize a new disk with the given geometry using <code>FormatMode.QUICK</code>
+     *
+     * @param geometry Block size, block count and inode count of the new disk
+     * @throws IOException If an I/O error occurs
+     */
+    default void format(DiskGeometry geometry) throws IOException {
+        format(geometry, FormatMode.QUICK);
+    }
+
+    /***
+     * Initialize a new disk
+     *
+     * @param geometry Block size, block count and inode count of the new disk
+     * @param mode Whether to write only the metadata region or the whole image
+     * @throws IOException If an I/O error occurs
+     */
+    void format(DiskGeometry geometry, FormatMode mode) throws IOException;
+
+    /***
+     * Open an existing, already formatted disk without changing its
+     * contents, taking its geometry from the superblock
+     *
+     * @throws IOException If the disk does not exist or is not a formatted disk
+     */
+    void mount() throws IOException;
+
+    /***
+     * Retrieve the free block list
+     *
+     * @return Returns an array of bytes representing the free block list
+     * @throws IOException If an I/O error occurs
+     */
+    byte[] readFreeBlockList() throws IOException;
+
+    /***
+     * Writes free space list to the disk
+     *
+     * @param freeBlockList Array of bytes representing an updated free
+     *                      byte list
+     * @throws IOException If an I/O error occurs
+     */
+    void writeFreeBlockList(byte[] freeBlockList) throws IOException;
+
+    /***
+     * Writes the bytes <code>from</code> up to <code>to</code> of the free
+     * space list to the disk.  The default writes the whole list; backends
+     * override it to write only the changed range.
+     *
+     * @param freeBlockList Array of bytes representing an updated free
+     *                      byte list
+     * @param from Index of the first byte to write
+     * @param to Index one past the last byte to write
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the list or the range does not fit the disk
+     */
+    default void writeFreeBlockList(byte[] freeBlockList, int from, int to)
+            throws IOException, IllegalArgumentException {
+        Disk.checkFreeListRange("BlockDevice::writeFreeBlockList", getGeometry(), freeBlockList, from, to);
+        writeFreeBlockList(freeBlockList);
+    }
+
+    /***
+     * Write an <code>INode</code> instance to the appropriate position
+     *
+     * @param inode The Inode to be written to disk
+     * @param whichInode  The position to which the inode is to be written
+     * @throws IOException If an I/O error occurs
+     */
+    void writeInode(INode inode, int whichInode) throws IOException;
+
+    /***
+     * Read an <code>INode</code> instance from the appropriate position in the file system
+     *
+     * @param whichInode The <code>INode</code> position in the file system to be read
+     * @return An instance of INode read from the disk.
+     * @throws IOException If an I/O error occurs
+     */
+    INode readInode(int whichInode) throws IOException;
+
+    /***
+     * Reads every inode of the disk.  The default reads them one at a time;
+     * backends override it to load the table in one transfer.
+     *
+     * @return Every inode of the disk, indexed by inode number
+     * @throws IOException If an I/O error occurs
+     */
+    default INode[] readInodeTable() throws IOException {
+        INode[] table = new INode[getGeometry().getNumInodes()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = readInode(i);
+        }
+        return table;
+    }
+
+    /***
+     * Reads the raw inode table into <code>dst</code> at its position, one
+     * slot of <code>getGeometry().getInodeSize()</code> bytes per inode, for
+     * an <code>INodeView</code> to read in place.  The position is advanced
+     * past the table.  The default encodes the inodes of
+     * <code>readInodeTable()</code>; backends override it to copy the table
+     * straight from the disk.
+     *
+     * @param dst Buffer with room for the whole table, e.g. a direct buffer
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If <code>dst</code> is too small
+     */
+    default void readInodeTable(ByteBuffer dst) throws IOException, IllegalArgumentException {
+        Disk.checkInodeTableTransfer("BlockDevice::readInodeTable", getGeometry(), dst);
+        int base = dst.position();
+        int inodeSize = getGeometry().getInodeSize();
+        INode[] table = readInodeTable();
+        for (int i = 0; i < table.length; i++) {
+            table[i].writeTo(dst.position(base + (inodeSize * i)));
+        }
+        dst.position(base + (inodeSize * table.length));
+    }
+
+    /***
+     * Writes several inodes.  The default writes them one at a time;
+     * backends override it to write runs of neighbouring inodes together.
+     *
+     * @param inodes The inodes to write, by inode number
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If an inode number is out of range
+     */
+    default void writeInodes(Map<Integer, INode> inodes) throws IOException, IllegalArgumentException {
+        for (int whichInode : Disk.sortedInodeNumbers("BlockDevice::writeInodes", getGeometry(), inodes)) {
+            writeInode(inodes.get(whichInode), whichInode);
+        }
+    }
+
+    /***
+     * Reads a block of data from the disk
+     *
+     * @param whichBlock The position of the data block to be read
+     * @return A block of data at position <code>whichBlock</code>
+     * @throws IOException If an I/O error occurs
+     */
+    byte[] readDataBlock(int whichBlock) throws IOException;
+
+    /***
+     * Writes a block of data to the disk
+     *
+     * @param blockData Array of bytes to be written to <code>whichBlock</code>
+     * @param whichBlock Block position in the file system
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+     *                                  to the length of a data block size
+     */
+    void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException;
+
+    /***
+     * Reads a block of data into <code>dst</code> at its position and
+     * advances the position past it.  The default copies the array
+     * <code>readDataBlock(int)</code> returns; backends override it to fill
+     * the caller's buffer directly, so a caller reusing one buffer reads
+     * without allocating.
+     *
+     * @param whichBlock The position of the data block to be read
+     * @param dst Buffer with room for a block
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the block number is out of range or
+     *                                  <code>dst</code> is too small
+     */
+    default void readDataBlock(int whichBlock, ByteBuffer dst) throws IOException, IllegalArgumentException {
+        Disk.checkBlockTransfer("BlockDevice::readDataBlock", getGeometry(), whichBlock, dst);
+        dst.put(readDataBlock(whichBlock));
+    }
+
+    /***
+     * Writes a block of data from <code>src</code> at its position and
+     * advances the position past it.  The default copies the block into
+     * a new array for <code>writeDataBlock(byte[], int)</code>; backends
+     * override it to write straight from the caller's buffer.
+     *
+     * @param src Buffer holding a block
+     * @param whichBlock Block position in the file system
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the block number is out of range or
+     *                                  <code>src</code> is too small
+     */
+    default void writeDataBlock(ByteBuffer src, int whichBlock) throws IOException, IllegalArgumentException {
+        Disk.checkBlockTransfer("BlockDevice::writeDataBlock", getGeometry(), whichBlock, src);
+        byte[] blockData = new byte[getGeometry().getBlockSize()];
+        src.get(blockData);
+        writeDataBlock(blockData, whichBlock);
+    }
+
+    /***
+     * Reads several data blocks into <code>dst</code>.  Block
+     * <code>blocks[i]</code> lands at <code>i</code> block sizes past
+     * the buffer's position, and the position is advanced past the last block.
+     *
+     * The default reads one block at a time; backends override it to merge
+     * adjacent blocks into larger transfers.
+     *
+     * @param blocks The data blocks to read, in any order
+     * @param dst Buffer with room for <code>blocks.length</code> blocks
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If a block number is out of range or
+     *                                  <code>dst</code> is too small
+     */
+    default void readBlocks(int[] blocks, ByteBuffer dst) throws IOException, IllegalArgumentException {
+        Disk.checkBlockTransfer("BlockDevice::readBlocks", getGeometry(), blocks, dst);
+        for (int whichBlock : blocks) {
+            dst.put(readDataBlock(whichBlock));
+        }
+    }
+
+    /***
+     * Writes several data blocks from <code>src</code>.  Block
+     * <code>blocks[i]</code> is written from <code>i</code> block sizes
+     * past the buffer's position, and the position is advanced past the last block.
+     *
+     * The default writes one block at a time; backends override it to merge
+     * adjacent blocks into larger transfers.
+     *
+     * @param blocks The data blocks to write, in any order
+     * @param src Buffer holding <code>blocks.length</code> blocks
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If a block number is out of range or
+     *                                  <code>src</code> is too small
+     */
+    default void writeBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+        Disk.checkBlockTransfer("BlockDevice::writeBlocks", getGeometry(), blocks, src);
+        byte[] blockData = new byte[getGeometry().getBlockSize()];
+        for (int whichBlock : blocks) {
+            src.get(blockData);
+            writeDataBlock(blockData, whichBlock);
+        }
+    }
+
+    /***
+     * Reads the whole journal region
+     *
+     * @return The <code>getGeometry().getJournalSize()</code> bytes of the journal
+     * @throws IOException If an I/O error occurs
+     */
+    byte[] readJournal() throws IOException;
+
+    /***
+     * Writes the remaining bytes of <code>src</code> into the journal region.
+     * Journal writes are never cached: they reach the storage device with
+     * the next <code>force</code>.
+     *
+     * @param src The bytes to write
+     * @param offset Position within the journal of the first byte
+     * @throws IOException If an I/O error occurs
+     * @throws IllegalArgumentException If the bytes do not fit in the journal
+     */
+    void writeJournal(ByteBuffer src, int offset) throws IOException, IllegalArgumentException;
+
+    /***
+     * Forces every write made so far out to the storage device
+     *
+     * @throws IOException If an I/O error occurs
+     */
+    void force() throws IOException;
+}
@@ -0,0 +1,378 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * Maps the blocks of a file to data blocks on disk.  The first
+ * <code>INode.NUM_DIRECT_POINTERS</code> blocks are found in the inode
+ * itself, the next ones through its single indirect block and the rest
+ * through its double indirect block, so any block resolves in at most two
+ * extra lookups.  Indirect blocks are read once, through the journal so
+ * changes not yet committed are seen, and kept in memory; the ones that
+ * changed are handed to the journal by <code>takeDirtyBlocks</code>.
+ *
+ * Handles on the same file share one map.  Callers hold the file's inode
+ * lock, a read lock being enough for <code>get</code>.
+ */
+class BlockMap {
+    private final static int FIRST_SINGLE_INDIRECT = INode.NUM_DIRECT_POINTERS;
+
+    /**
+     * Each thread reads indirect blocks through a buffer of its own,
+     * replaced by a bigger one if a disk with larger blocks comes along
+     */
+    private final static ThreadLocal<ByteBuffer> BLOCK_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(Disk.BLOCK_SIZE));
+
+    private final Journal journal;
+    private final INode iNode;
+
+    /**
+     * Number of pointers an indirect block holds, set by the block size
+     */
+    private final int pointersPerBlock;
+    private final int firstDoubleIndirect;
+
+    /**
+     * Contents of the indirect blocks read so far, by disk block.  Readers
+     * under a shared lock may load blocks at the same time.
+     */
+    private final Map<Integer, int[]> indirectBlocks;
+    private final TreeSet<Integer> dirtyBlocks;
+
+    BlockMap(Journal journal, INode iNode) {
+        this.journal = journal;
+        this.iNode = iNode;
+        this.pointersPerBlock = journal.getGeometry().getBlockSize() / Integer.BYTES;
+        this.firstDoubleIndirect = FIRST_SINGLE_INDIRECT + pointersPerBlock;
+        this.indirectBlocks = new HashMap<>();
+        this.dirtyBlocks = new TreeSet<>();
+    }
+
+    INode getINode() {
+        return iNode;
+    }
+
+    /***
+     * Returns the largest number of data blocks a file can hold on a disk
+     * with blocks of <code>blockSize</code> bytes
+     */
+    static long maxBlocks(int blockSize) {
+        long pointersPerBlock = blockSize / Integer.BYTES;
+        return INode.NUM_DIRECT_POINTERS + pointersPerBlock + (pointersPerBlock * pointersPerBlock);
+    }
+
+    /***
+     * Returns the number of indirect blocks a file of <code>numBlocks</code>
+     * data blocks needs
+     */
+    int indirectBlocksFor(int numBlocks) {
+        int count = 0;
+        if (numBlocks > FIRST_SINGLE_INDIRECT) {
+            count++;
+        }
+        if (numBlocks > firstDoubleIndirect) {
+            count += 1 + (numBlocks - firstDoubleIndirect + pointersPerBlock - 1) / pointersPerBlock;
+        }
+        return count;
+    }
+
+    /***
+     * Returns how many indirect blocks <code>takeDirtyBlocks</code> hands
+     * over after the file grows or shrinks from <code>from</code> to
+     * <code>to</code> data blocks: the new ones, plus the ones that were
+     * already there and still map blocks below the change
+     */
+    int pointerBlocksChanged(int from, int to) {
+        int low = Math.min(from, to);
+        if (low == Math.max(from, to)) {
+            return 0;
+        }
+
+        int changed = Math.max(0, indirectBlocksFor(to) - indirectBlocksFor(from));
+        if (low > FIRST_SINGLE_INDIRECT && low < firstDoubleIndirect) {
+            changed++;
+        }
+        if (low > firstDoubleIndirect) {
+            // the double indirect block, and the block under it that holds block low unless low starts it
+            changed += slotFor(low) == 0 ? 1 : 2;
+        }
+        return changed;
+    }
+
+    /***
+     * Returns the disk block holding block <code>fileBlock</code> of the
+     * file, or -1 if it has none
+     *
+     * @throws IOException If an indirect block cannot be read
+     */
+    int get(int fileBlock) throws IOException {
+        if (fileBlock < FIRST_SINGLE_INDIRECT) {
+            return iNode.getBlockPointer(fileBlock);
+        }
+
+        int[] pointers = pointerBlockFor(fileBlock);
+        return pointers == null ? -1 : pointers[slotFor(fileBlock)];
+    }
+
+    /***
+     * Returns the disk blocks holding blocks <code>from</code> up to, not
+     * including, <code>to</code> of the file
+     *
+     * @throws IOException If an indirect block cannot be read
+     */
+    int[] get(int from, int to) throws IOException {
+        int[] blocks = new int[to - from];
+        for (int i = from; i < to; i++) {
+            blocks[i - from] = get(i);
+        }
+        return blocks;
+    }
+
+    /***
+     * Grows the file from <code>from</code> to <code>to</code> data blocks.
+     * <code>newBlocks</code> holds the freshly allocated disk blocks, one
+     * for each new data block plus the indirect blocks the growth needs.
+     * They are used in order, an indirect block coming right before the
+     * data blocks it points at.
+     *
+     * @return The disk blocks now holding the new data blocks
+     * @throws IOException If an indirect block cannot be read
+     * @throws IllegalArgumentException If <code>to</code> exceeds
+     *                                  <code>maxBlocks</code> or the number of
+     *                                  new blocks does not match
+     */
+    int[] extend(int from, int to, int[] newBlocks) throws IOException, IllegalArgumentException {
+        long maxBlocks = maxBlocks(pointersPerBlock * Integer.BYTES);
+        if (to > maxBlocks) {
+            throw new IllegalArgumentException("BlockMap::extend: " + to +
+                    " blocks exceeds the maximum of " + maxBlocks);
+        }
+        if (newBlocks.length != to - from + indirectBlocksFor(to) - indirectBlocksFor(from)) {
+            throw new IllegalArgumentException("BlockMap::extend: " + newBlocks.length +
+                    " blocks do not match growing from " + from + " to " + to + " blocks");
+        }
+
+        int[] dataBlocks = new int[to - from];
+        int next = 0;
+        for (int i = from; i < to; i++) {
+            if (i == FIRST_SINGLE_INDIRECT) {
+                iNode.setBlockPointer(INode.SINGLE_INDIRECT_POINTER, newIndirectBlock(newBlocks[next++]));
+            } else if (i == firstDoubleIndirect) {
+                iNode.setBlockPointer(INode.DOUBLE_INDIRECT_POINTER, newIndirectBlock(newBlocks[next++]));
+            }
+            if (i >= firstDoubleIndirect && slotFor(i) == 0) {
+                int outer = iNode.getBlockPointer(INode.DOUBLE_INDIRECT_POINTER);
+                setPointer(outer, (i - firstDoubleIndirect) / pointersPerBlock,
+                        newIndirectBlock(newBlocks[next++]));
+            }
+
+            dataBlocks[i - from] = newBlocks[next++];
+            set(i, dataBlocks[i - from]);
+        }
+        return dataBlocks;
+    }
+
+    /***
+     * Shrinks the file from <code>from</code> to <code>to</code> data
+     * blocks, dropping the indirect blocks it no longer needs
+     *
+     * @return The disk blocks, data and indirect, the file gave up
+     * @throws IOException If an indirect block cannot be read
+     */
+    int[] truncate(int from, int to) throws IOException {
+        List<Integer> released = new ArrayList<>();
+        for (int i = to; i < from; i++) {
+            released.add(get(i));
+            set(i, -1);
+        }
+
+        // indirect blocks go once none of the blocks they map are left
+        int outer = iNode.getBlockPointer(INode.DOUBLE_INDIRECT_POINTER);
+        if (outer != -1) {
+            int[] children = load(outer);
+            for (int c = 0; c < pointersPerBlock; c++) {
+                if (children[c] != -1 && to <= firstDoubleIndirect + c * pointersPerBlock) {
+                    released.add(dropIndirectBlock(children[c]));
+                    setPointer(outer, c, -1);
+                }
+            }
+            if (to <= firstDoubleIndirect) {
+                released.add(dropIndirectBlock(outer));
+                iNode.setBlockPointer(INode.DOUBLE_INDIRECT_POINTER, -1);
+            }
+        }
+        int single = iNode.getBlockPointer(INode.SINGLE_INDIRECT_POINTER);
+        if (single != -1 && to <= FIRST_SINGLE_INDIRECT) {
+            released.add(dropIndirectBlock(single));
+            iNode.setBlockPointer(INode.SINGLE_INDIRECT_POINTER, -1);
+        }
+
+        return released.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /***
+     * Returns every disk block of a file of <code>numBlocks</code> data
+     * blocks, data and indirect, in the order <code>extend</code> lays them
+     * out: an indirect block right before the data blocks it points at.
+     * A file whose layout is a run of consecutive blocks is read in one transfer.
+     *
+     * @throws IOException If an indirect block cannot be read
+     */
+    int[] layout(int numBlocks) throws IOException {
+        int[] blocks = new int[numBlocks + indirectBlocksFor(numBlocks)];
+        int next = 0;
+        for (int i = 0; i < numBlocks; i++) {
+            if (i == FIRST_SINGLE_INDIRECT) {
+                blocks[next++] = iNode.getBlockPointer(INode.SINGLE_INDIRECT_POINTER);
+            } else if (i == firstDoubleIndirect) {
+                blocks[next++] = iNode.getBlockPointer(INode.DOUBLE_INDIRECT_POINTER);
+            }
+            if (i >= firstDoubleIndirect && slotFor(i) == 0) {
+                int outer = iNode.getBlockPointer(INode.DOUBLE_INDIRECT_POINTER);
+                blocks[next++] = load(outer)[(i - firstDoubleIndirect) / pointersPerBlock];
+            }
+            blocks[next++] = get(i);
+        }
+        return blocks;
+    }
+
+    /***
+     * Moves a file of <code>numBlocks</code> data blocks to
+     * <code>newBlocks</code>, used as <code>extend</code> uses them.  Only
+     * the pointers change: the caller copies the data first.
+     *
+     * @return The disk blocks, data and indirect, the file held before
+     * @throws IOException If an indirect block cannot be read
+     * @throws IllegalArgumentException If the number of new blocks does not match
+     */
+    int[] relocate(int numBlocks, int[] newBlocks) throws IOException, IllegalArgumentException {
+        if (newBlocks.length != numBlocks + indirectBlocksFor(numBlocks)) {
+            throw new IllegalArgumentException("BlockMap::relocate: " + newBlocks.length +
+                    " blocks do not match a file of " + numBlocks + " blocks");
+        }
+        int[] released = truncate(numBlocks, 0);
+        extend(0, numBlocks, newBlocks);
+        return released;
+    }
+
+    /***
+     * Hands over the indirect blocks that changed since the last call so
+     * they can be logged with the operation that changed them
+     *
+     * @return Copies of their pointers, by disk block
+     */
+    Map<Integer, int[]> takeDirtyBlocks() {
+        Map<Integer, int[]> changed = new HashMap<>();
+        synchronized (indirectBlocks) {
+            for (int block : dirtyBlocks) {
+                changed.put(block, indirectBlocks.get(block).clone());
+            }
+            dirtyBlocks.clear();
+        }
+        return changed;
+    }
+
+    /***
+     * Points block <code>fileBlock</code> of the file at <code>diskBlock</code>.
+     * Its indirect blocks must already exist.
+     */
+    private void set(int fileBlock, int diskBlock) throws IOException {
+        if (fileBlock < FIRST_SINGLE_INDIRECT) {
+            iNode.setBlockPointer(fileBlock, diskBlock);
+            return;
+        }
+
+        int pointerBlock = fileBlock < firstDoubleIndirect
+                ? iNode.getBlockPointer(INode.SINGLE_INDIRECT_POINTER)
+                : load(iNode.getBlockPointer(INode.DOUBLE_INDIRECT_POINTER))
+                        [(fileBlock - firstDoubleIndirect) / pointersPerBlock];
+        setPointer(pointerBlock, slotFor(fileBlock), diskBlock);
+    }
+
+    /***
+     * Returns the indirect block holding the pointer to an indirectly mapped
+     * block of the file, or null if it has none
+     */
+    private int[] pointerBlockFor(int fileBlock) throws IOException {
+        if (fileBlock < firstDoubleIndirect) {
+            int single = iNode.getBlockPointer(INode.SINGLE_INDIRECT_POINTER);
+            return single == -1 ? null : load(single);
+        }
+
+        int outer = iNode.getBlockPointer(INode.DOUBLE_INDIRECT_POINTER);
+        if (outer == -1) {
+            return null;
+        }
+        int inner = load(outer)[(fileBlock - firstDoubleIndirect) / pointersPerBlock];
+        return inner == -1 ? null : load(inner);
+    }
+
+    /***
+     * Returns the position of the pointer to an indirectly mapped block of
+     * the file inside its indirect block
+     */
+    private int slotFor(int fileBlock) {
+        int offset = fileBlock < firstDoubleIndirect
+                ? fileBlock - FIRST_SINGLE_INDIRECT
+                : fileBlock - firstDoubleIndirect;
+        return offset % pointersPerBlock;
+    }
+
+    private void setPointer(int indirectBlock, int slot, int value) throws IOException {
+        load(indirectBlock)[slot] = value;
+        synchronized (indirectBlocks) {
+            dirtyBlocks.add(indirectBlock);
+        }
+    }
+
+    private int newIndirectBlock(int block) {
+        int[] pointers = new int[pointersPerBlock];
+        Arrays.fill(pointers, -1);
+        synchronized (indirectBlocks) {
+            indirectBlocks.put(block, pointers);
+            dirtyBlocks.add(block);
+        }
+        return block;
+    }
+
+    private int dropIndirectBlock(int block) {
+        synchronized (indirectBlocks) {
+            indirectBlocks.remove(block);
+            dirtyBlocks.remove(block);
+        }
+        return block;
+    }
+
+    /***
+     * Returns the pointers stored in an indirect block, reading it from the
+     * disk the first time it is needed
+     */
+    private int[] load(int indirectBlock) throws IOException {
+        synchronized (indirectBlocks) {
+            int[] pointers = indirectBlocks.get(indirectBlock);
+            if (pointers == null) {
+                pointers = new int[pointersPerBlock];
+                ByteBuffer blockData = BLOCK_BUFFER.get();
+                if (blockData.capacity() < pointersPerBlock * Integer.BYTES) {
+                    blockData = ByteBuffer.allocate(pointersPerBlock * Integer.BYTES);
+                    BLOCK_BUFFER.set(blockData);
+                }
+                journal.readDataBlock(indirectBlock, blockData.clear());
+                for (int i = 0; i < pointers.length; i++) {
+                    pointers[i] = blockData.getInt(i * Integer.BYTES);
+                }
+                indirectBlocks.put(indirectBlock, pointers);
+            }
+            return pointers;
+        }
+    }
+}
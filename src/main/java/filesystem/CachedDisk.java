@@ -0,0 +1,543 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * A write-back buffer cache in front of another <code>BlockDevice</code>.
+ * Data blocks and inodes are kept in memory by number, up to a fixed number
+ * of entries.  Writes only dirty the cached copy; dirty entries reach the
+ * device when they are evicted, on <code>sync()</code>, and on
+ * <code>force()</code>/<code>close()</code>.  The free block list is not
+ * cached and goes straight to the device.  Every operation holds the
+ * cache's monitor, so the cache can be shared between threads.
+ */
+public class CachedDisk implements BlockDevice {
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /**
+   * Inodes and data blocks share one cache, told apart by the key: data
+   * blocks use their block number, inodes use -(inode number + 1)
+   */
+  private static class Entry {
+    private byte[] blockData;
+    private INode inode;
+    private boolean dirty;
+    private boolean referenced;
+  }
+
+  private BlockDevice device;
+  private int capacity;
+  private EvictionPolicy evictionPolicy;
+  private LinkedHashMap<Long, Entry> cache;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long writeBacks;
+
+  public CachedDisk(BlockDevice device) {
+    this(device, DEFAULT_CAPACITY, EvictionPolicy.LRU);
+  }
+
+  /***
+   * Creates a cache in front of <code>device</code>
+   *
+   * @param device The device to cache
+   * @param capacity Maximum number of data blocks and inodes kept in memory
+   * @param evictionPolicy Which entry to drop when the cache is full
+   * @throws IllegalArgumentException If <code>capacity</code> is not positive
+   */
+  public CachedDisk(BlockDevice device, int capacity, EvictionPolicy evictionPolicy)
+      throws IllegalArgumentException {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("CachedDisk::CachedDisk:  capacity " +
+                                         capacity + " must be positive");
+    }
+    this.device = device;
+    this.capacity = capacity;
+    this.evictionPolicy = evictionPolicy;
+
+    /**
+     * LRU keeps the map in access order so the eldest entry is the least
+     * recently used one, CLOCK keeps it in insertion order and walks it
+     * from the eldest entry like a clock hand
+     */
+    this.cache = new LinkedHashMap<>(16, 0.75f, evictionPolicy == EvictionPolicy.LRU);
+  }
+
+  public DiskGeometry getGeometry() {
+    return device.getGeometry();
+  }
+
+  /***
+   * Drops the cache and initializes a new disk
+   *
+   * @param geometry Block size, block count and inode count of the new disk
+   * @param mode Whether to write only the metadata region or the whole image
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void format(DiskGeometry geometry, FormatMode mode) throws IOException {
+    cache.clear();
+    device.format(geometry, mode);
+  }
+
+  /***
+   * Drops the cache and opens an existing disk
+   *
+   * @throws IOException If the disk does not exist or is not a formatted disk
+   */
+  public synchronized void mount() throws IOException {
+    cache.clear();
+    device.mount();
+  }
+
+  public synchronized byte[] readFreeBlockList() throws IOException {
+    return device.readFreeBlockList();
+  }
+
+  public synchronized void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+    device.writeFreeBlockList(freeBlockList);
+  }
+
+  public synchronized void writeFreeBlockList(byte[] freeBlockList, int from, int to)
+          throws IOException, IllegalArgumentException {
+    device.writeFreeBlockList(freeBlockList, from, to);
+  }
+
+  /***
+   * The journal bypasses the cache so its writes are durable after the
+   * next <code>force</code> without waiting for a sync
+   */
+  public synchronized byte[] readJournal() throws IOException {
+    return device.readJournal();
+  }
+
+  public synchronized void writeJournal(ByteBuffer src, int offset) throws IOException, IllegalArgumentException {
+    device.writeJournal(src, offset);
+  }
+
+  /***
+   * Caches a copy of <code>inode</code> and marks it dirty
+   *
+   * @param inode The Inode to be written to disk
+   * @param whichInode  The position to which the inode is to be written
+   * @throws IOException If an evicted entry cannot be written back
+   */
+  public synchronized void writeInode(INode inode, int whichInode) throws IOException {
+    Entry entry = new Entry();
+    entry.inode = copyOf(inode);
+    entry.dirty = true;
+    put(inodeKey(whichInode), entry);
+  }
+
+  /***
+   * Returns a copy of the inode, reading it from the device on a miss
+   *
+   * @param whichInode The <code>INode</code> position in the file system to be read
+   * @return An instance of INode
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized INode readInode(int whichInode) throws IOException {
+    Entry entry = lookup(inodeKey(whichInode));
+    if (entry == null) {
+      entry = new Entry();
+      entry.inode = device.readInode(whichInode);
+      put(inodeKey(whichInode), entry);
+    }
+    return copyOf(entry.inode);
+  }
+
+  /***
+   * Reads the inode table from the device in one go and lays the cached
+   * inodes, which may be newer, over it.  The table is not cached.
+   *
+   * @return Every inode of the disk, indexed by inode number
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized INode[] readInodeTable() throws IOException {
+    INode[] table = device.readInodeTable();
+    for (Map.Entry<Long, Entry> cached : cache.entrySet()) {
+      if (cached.getValue().inode != null) {
+        table[(int) (-cached.getKey() - 1)] = copyOf(cached.getValue().inode);
+      }
+    }
+    return table;
+  }
+
+  /***
+   * Reads the raw inode table from the device and encodes the cached
+   * inodes, which may be newer, over it
+   *
+   * @param dst Buffer with room for the whole table
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>dst</code> is too small
+   */
+  public synchronized void readInodeTable(ByteBuffer dst) throws IOException, IllegalArgumentException {
+    int base = dst.position();
+    int inodeSize = getGeometry().getInodeSize();
+    device.readInodeTable(dst);
+    for (Map.Entry<Long, Entry> cached : cache.entrySet()) {
+      if (cached.getValue().inode != null) {
+        int whichInode = (int) (-cached.getKey() - 1);
+        cached.getValue().inode.writeTo(dst.duplicate().position(base + (inodeSize * whichInode)));
+      }
+    }
+  }
+
+  /***
+   * Caches a copy of every inode and marks them dirty
+   *
+   * @param inodes The inodes to write, by inode number
+   * @throws IOException If an evicted entry cannot be written back
+   * @throws IllegalArgumentException If an inode number is out of range
+   */
+  public synchronized void writeInodes(Map<Integer, INode> inodes) throws IOException, IllegalArgumentException {
+    for (int whichInode : Disk.sortedInodeNumbers("CachedDisk::writeInodes", getGeometry(), inodes)) {
+      writeInode(inodes.get(whichInode), whichInode);
+    }
+  }
+
+  /***
+   * Returns a copy of the data block, reading it from the device on a miss
+   *
+   * @param whichBlock The position of the data block to be read
+   * @return A block of data at position <code>whichBlock</code>
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>whichBlock</code> is not a block of the disk
+   */
+  public synchronized byte[] readDataBlock(int whichBlock) throws IOException, IllegalArgumentException {
+    Disk.checkBlock("CachedDisk::readDataBlock", getGeometry(), whichBlock);
+    Entry entry = lookup(whichBlock);
+    if (entry == null) {
+      entry = new Entry();
+      entry.blockData = device.readDataBlock(whichBlock);
+      put(whichBlock, entry);
+    }
+    return entry.blockData.clone();
+  }
+
+  /***
+   * Caches a copy of the data block and marks it dirty
+   *
+   * @param blockData Array of bytes to be written to <code>whichBlock</code>
+   * @param whichBlock Block position in the file system
+   * @throws IOException If an evicted entry cannot be written back
+   * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+   *                                  to the length of a data block size, or
+   *                                  <code>whichBlock</code> is not a block of the disk
+   */
+  public synchronized void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    if (blockData.length != getGeometry().getBlockSize()) {
+      throw new IllegalArgumentException("CachedDisk::writeDataBlock:  "  +
+                    "storing block of size " + blockData.length  +
+                    "when it should be of size "  + getGeometry().getBlockSize());
+    }
+    Disk.checkBlock("CachedDisk::writeDataBlock", getGeometry(), whichBlock);
+
+    Entry entry = new Entry();
+    entry.blockData = blockData.clone();
+    entry.dirty = true;
+    put(whichBlock, entry);
+  }
+
+  /***
+   * Copies the data block into <code>dst</code>, reading it from the
+   * device on a miss.  A hit copies straight out of the cache.
+   *
+   * @param whichBlock The position of the data block to be read
+   * @param dst Buffer with room for a block
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>dst</code> is too small
+   */
+  public synchronized void readDataBlock(int whichBlock, ByteBuffer dst) throws IOException, IllegalArgumentException {
+    Disk.checkBlockTransfer("CachedDisk::readDataBlock", getGeometry(), whichBlock, dst);
+    Entry entry = lookup(whichBlock);
+    if (entry == null) {
+      entry = new Entry();
+      entry.blockData = device.readDataBlock(whichBlock);
+      put(whichBlock, entry);
+    }
+    dst.put(entry.blockData);
+  }
+
+  /***
+   * Copies the data block from <code>src</code> into the cache and marks it
+   * dirty.  A block that is already cached is overwritten in place.
+   *
+   * @param src Buffer holding a block
+   * @param whichBlock Block position in the file system
+   * @throws IOException If an evicted entry cannot be written back
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>src</code> is too small
+   */
+  public synchronized void writeDataBlock(ByteBuffer src, int whichBlock) throws IOException, IllegalArgumentException {
+    Disk.checkBlockTransfer("CachedDisk::writeDataBlock", getGeometry(), whichBlock, src);
+    Entry entry = cache.get((long) whichBlock);
+    if (entry != null) {
+      src.get(entry.blockData);
+      entry.dirty = true;
+      return;
+    }
+
+    entry = new Entry();
+    entry.blockData = new byte[getGeometry().getBlockSize()];
+    src.get(entry.blockData);
+    entry.dirty = true;
+    put(whichBlock, entry);
+  }
+
+  /***
+   * Reads several data blocks, serving hits from the cache and fetching all
+   * misses from the device with one <code>readBlocks</code> call
+   *
+   * @param blocks The data blocks to read, in any order
+   * @param dst Buffer with room for <code>blocks.length</code> blocks
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void readBlocks(int[] blocks, ByteBuffer dst) throws IOException, IllegalArgumentException {
+    Disk.checkBlockTransfer("CachedDisk::readBlocks", getGeometry(), blocks, dst);
+    int blockSize = getGeometry().getBlockSize();
+    int base = dst.position();
+    int[] missing = new int[blocks.length];
+    int[] missingIndex = new int[blocks.length];
+    int numMissing = 0;
+
+    for (int i = 0; i < blocks.length; i++) {
+      Entry entry = lookup(blocks[i]);
+      if (entry == null) {
+        missing[numMissing] = blocks[i];
+        missingIndex[numMissing++] = i;
+      } else {
+        dst.put(base + (blockSize * i), entry.blockData);
+      }
+    }
+
+    if (numMissing > 0) {
+      ByteBuffer fetched = ByteBuffer.allocate(blockSize * numMissing);
+      int[] toFetch = new int[numMissing];
+      System.arraycopy(missing, 0, toFetch, 0, numMissing);
+      device.readBlocks(toFetch, fetched);
+
+      for (int k = 0; k < numMissing; k++) {
+        Entry entry = new Entry();
+        entry.blockData = new byte[blockSize];
+        fetched.get(blockSize * k, entry.blockData);
+        dst.put(base + (blockSize * missingIndex[k]), entry.blockData);
+        put(toFetch[k], entry);
+      }
+    }
+
+    dst.position(base + (blockSize * blocks.length));
+  }
+
+  /***
+   * Caches several data blocks and marks them dirty, as one step with
+   * respect to other threads
+   *
+   * @param blocks The data blocks to write, in any order
+   * @param src Buffer holding <code>blocks.length</code> blocks
+   * @throws IOException If an evicted entry cannot be written back
+   */
+  public synchronized void writeBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    BlockDevice.super.writeBlocks(blocks, src);
+  }
+
+  /***
+   * Writes back every dirty entry.  Dirty inodes go to the device with one
+   * <code>writeInodes</code> call and dirty data blocks with one
+   * <code>writeBlocks</code> call, so neighbours are coalesced.  Entries
+   * stay dirty until their write returns, so a failed write back can be
+   * retried.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void sync() throws IOException {
+    List<Integer> dirtyBlocks = new ArrayList<>();
+    Map<Integer, INode> dirtyInodes = new HashMap<>();
+    List<Entry> dirtyInodeEntries = new ArrayList<>();
+
+    for (Map.Entry<Long, Entry> cached : cache.entrySet()) {
+      Entry entry = cached.getValue();
+      if (!entry.dirty) {
+        continue;
+      }
+      if (entry.inode != null) {
+        dirtyInodes.put((int) (-cached.getKey() - 1), entry.inode);
+        dirtyInodeEntries.add(entry);
+      } else {
+        dirtyBlocks.add(cached.getKey().intValue());
+      }
+    }
+
+    if (!dirtyInodes.isEmpty()) {
+      device.writeInodes(dirtyInodes);
+      for (Entry entry : dirtyInodeEntries) {
+        entry.dirty = false;
+      }
+      writeBacks += dirtyInodes.size();
+    }
+
+    if (!dirtyBlocks.isEmpty()) {
+      int[] blocks = new int[dirtyBlocks.size()];
+      Entry[] entries = new Entry[blocks.length];
+      ByteBuffer blockData = ByteBuffer.allocate(getGeometry().getBlockSize() * blocks.length);
+      for (int i = 0; i < blocks.length; i++) {
+        blocks[i] = dirtyBlocks.get(i);
+        entries[i] = cache.get((long) blocks[i]);
+        blockData.put(entries[i].blockData);
+      }
+      blockData.flip();
+      device.writeBlocks(blocks, blockData);
+      for (Entry entry : entries) {
+        entry.dirty = false;
+      }
+      writeBacks += blocks.length;
+    }
+  }
+
+  /***
+   * Writes back every dirty entry and forces the device
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void force() throws IOException {
+    sync();
+    device.force();
+  }
+
+  /***
+   * Writes back every dirty entry and closes the device
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public synchronized void close() throws IOException {
+    sync();
+    cache.clear();
+    device.close();
+  }
+
+  /**
+   * Returns the number of lookups served from memory
+   * @return Returns the number of lookups served from memory
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups that had to go to the device
+   * @return Returns the number of lookups that had to go to the device
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the number of entries dropped to make room
+   * @return Returns the number of entries dropped to make room
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Returns the number of dirty entries written back to the device
+   * @return Returns the number of dirty entries written back to the device
+   */
+  public synchronized long getWriteBacks() {
+    return writeBacks;
+  }
+
+  /**
+   * Returns the number of data blocks and inodes currently cached
+   * @return Returns the number of data blocks and inodes currently cached
+   */
+  public synchronized int size() {
+    return cache.size();
+  }
+
+  private static long inodeKey(int whichInode) {
+    return -((long) whichInode + 1);
+  }
+
+  /***
+   * Looks up a cached entry, counting the hit or miss
+   *
+   * @return The entry, or null on a miss
+   */
+  private Entry lookup(long key) {
+    Entry entry = cache.get(key);
+    if (entry == null) {
+      misses++;
+    } else {
+      hits++;
+      entry.referenced = true;
+    }
+    return entry;
+  }
+
+  /***
+   * Adds or replaces an entry, evicting another one first if the cache is full
+   *
+   * @throws IOException If the evicted entry is dirty and cannot be written back
+   */
+  private void put(long key, Entry entry) throws IOException {
+    if (cache.put(key, entry) == null && cache.size() > capacity) {
+      evict(key);
+    }
+  }
+
+  /***
+   * Drops one entry other than <code>keep</code>, writing it back first if
+   * it is dirty.  A victim whose write back fails stays cached and dirty.
+   */
+  private void evict(long keep) throws IOException {
+    Map.Entry<Long, Entry> victim = cache.entrySet().iterator().next();
+
+    if (evictionPolicy == EvictionPolicy.CLOCK) {
+      /**
+       * Give every referenced entry a second chance by clearing its bit
+       * and moving it behind the hand; the walk ends at the first entry
+       * that was not used since the hand last passed it.
+       */
+      while (victim.getValue().referenced || victim.getKey() == keep) {
+        Entry moved = cache.remove(victim.getKey());
+        moved.referenced = false;
+        cache.put(victim.getKey(), moved);
+        victim = cache.entrySet().iterator().next();
+      }
+    }
+
+    Entry entry = victim.getValue();
+    long key = victim.getKey();
+    if (entry.dirty) {
+      if (entry.inode != null) {
+        device.writeInode(entry.inode, (int) (-key - 1));
+      } else {
+        device.writeDataBlock(entry.blockData, (int) key);
+      }
+      writeBacks++;
+    }
+
+    cache.remove(key);
+    evictions++;
+  }
+
+  private static INode copyOf(INode inode) {
+    INode copy = new INode();
+    copy.setFileName(inode.getFileName());
+    copy.setSize(inode.getSize());
+    for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
+      copy.setBlockPointer(i, inode.getBlockPointer(i));
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,109 @@
+package filesystem;
+
+
+/**
+ * What one pass of the <code>Defragmenter</code> did: the free space and
+ * the file layouts before and after it, how much it moved, and how fast
+ * every file could be read back before and after.
+ *
+ * A file extent is a run of consecutive blocks of one file, so a file
+ * laid out in one piece counts one extent; its blocks then go to and from
+ * the disk in a single transfer.
+ */
+public final class DefragmentationReport {
+    private final FragmentationReport freeSpaceBefore;
+    private final FragmentationReport freeSpaceAfter;
+    private final int files;
+    private final long fileExtentsBefore;
+    private final long fileExtentsAfter;
+    private final int filesMoved;
+    private final long blocksMoved;
+    private final long elapsedNanos;
+    private final double readBytesPerSecondBefore;
+    private final double readBytesPerSecondAfter;
+
+    DefragmentationReport(FragmentationReport freeSpaceBefore, FragmentationReport freeSpaceAfter, int files,
+                          long fileExtentsBefore, long fileExtentsAfter, int filesMoved, long blocksMoved,
+                          long elapsedNanos, double readBytesPerSecondBefore, double readBytesPerSecondAfter) {
+        this.freeSpaceBefore = freeSpaceBefore;
+        this.freeSpaceAfter = freeSpaceAfter;
+        this.files = files;
+        this.fileExtentsBefore = fileExtentsBefore;
+        this.fileExtentsAfter = fileExtentsAfter;
+        this.filesMoved = filesMoved;
+        this.blocksMoved = blocksMoved;
+        this.elapsedNanos = elapsedNanos;
+        this.readBytesPerSecondBefore = readBytesPerSecondBefore;
+        this.readBytesPerSecondAfter = readBytesPerSecondAfter;
+    }
+
+    public FragmentationReport getFreeSpaceBefore() {
+        return freeSpaceBefore;
+    }
+
+    public FragmentationReport getFreeSpaceAfter() {
+        return freeSpaceAfter;
+    }
+
+    /***
+     * Returns the number of files the pass looked at
+     */
+    public int getFiles() {
+        return files;
+    }
+
+    /***
+     * Returns the number of extents of all files before the pass, see the class comment
+     */
+    public long getFileExtentsBefore() {
+        return fileExtentsBefore;
+    }
+
+    public long getFileExtentsAfter() {
+        return fileExtentsAfter;
+    }
+
+    public int getFilesMoved() {
+        return filesMoved;
+    }
+
+    /***
+     * Returns the number of blocks moved, data and indirect
+     */
+    public long getBlocksMoved() {
+        return blocksMoved;
+    }
+
+    /***
+     * Returns how long the pass took, throttling and read measurements included
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /***
+     * Returns how fast all files were read before the pass, or NaN if
+     * reads were not measured
+     */
+    public double getReadBytesPerSecondBefore() {
+        return readBytesPerSecondBefore;
+    }
+
+    public double getReadBytesPerSecondAfter() {
+        return readBytesPerSecondAfter;
+    }
+
+    @Override
+    public String toString() {
+        return "DefragmentationReport[files=" + files + ", filesMoved=" + filesMoved +
+                ", blocksMoved=" + blocksMoved +
+                ", fileExtents=" + fileExtentsBefore + "->" + fileExtentsAfter +
+                ", freeRuns=" + freeSpaceBefore.getFreeRuns() + "->" + freeSpaceAfter.getFreeRuns() +
+                ", largestFreeRun=" + freeSpaceBefore.getLargestFreeRun() + "->" + freeSpaceAfter.getLargestFreeRun() +
+                ", fragmentation=" + String.format("%.3f->%.3f",
+                        freeSpaceBefore.getFragmentation(), freeSpaceAfter.getFragmentation()) +
+                ", readMBPerSecond=" + String.format("%.1f->%.1f",
+                        readBytesPerSecondBefore / 1e6, readBytesPerSecondAfter / 1e6) +
+                ", elapsedMillis=" + (elapsedNanos / 1_000_000) + "]";
+    }
+}
@@ -0,0 +1,261 @@
+package filesystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Online defragmenter.  After churn, such as deleting every other file,
+ * the surviving files sit between holes and a file that grew in steps may
+ * be scattered over the disk.  A pass walks the files from the front of
+ * the disk to the back and moves each one into the first run of free
+ * blocks that holds it whole, if the file is scattered or the run lies
+ * before it.  Files move towards the front, and the blocks they leave
+ * behind merge into larger free runs.
+ *
+ * Each file moves under its own write lock, so the file system stays in
+ * use and only the file being moved waits.  A move is one journaled
+ * operation, see <code>FileSystem.relocateFile</code>.
+ *
+ * The defragmenter limits its own I/O to <code>maxBytesPerSecond</code>,
+ * counting each moved block once read and once written.  It sleeps
+ * between files, never while it holds a lock.  A pass runs on demand with
+ * <code>defragment</code>, or every so often in the background after
+ * <code>start</code>, until <code>close</code>.
+ */
+public class Defragmenter implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Defragmenter.class.getName());
+
+    /**
+     * Files are read back through a buffer of this size to measure read throughput
+     */
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    private final FileSystem fileSystem;
+    private final long maxBytesPerSecond;
+    private final boolean measureReads;
+
+    /**
+     * Guarded by its own lock rather than the defragmenter's, which a pass
+     * holds, so <code>close</code> does not wait for a pass under way
+     */
+    private final Object schedulerLock = new Object();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Released by <code>close</code>.  A pass stops at the next file, and a
+     * throttled one wakes up at once; interrupting it instead could close
+     * the channel of a device in the middle of a transfer.
+     */
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile DefragmentationReport lastReport;
+
+    /***
+     * Creates a defragmenter that moves blocks as fast as the disk allows
+     * and measures read throughput before and after each pass
+     */
+    public Defragmenter(FileSystem fileSystem) {
+        this(fileSystem, 0, true);
+    }
+
+    /***
+     * Creates a defragmenter
+     *
+     * @param maxBytesPerSecond Most bytes a pass moves per second, 0 for no limit
+     * @param measureReads Whether a pass reads every file before and after
+     *                     moving to measure read throughput.  The reads are
+     *                     not throttled.
+     * @throws IllegalArgumentException If <code>maxBytesPerSecond</code> is negative
+     */
+    public Defragmenter(FileSystem fileSystem, long maxBytesPerSecond, boolean measureReads)
+            throws IllegalArgumentException {
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Defragmenter::Defragmenter: " + maxBytesPerSecond +
+                    " bytes per second is negative");
+        }
+        this.fileSystem = fileSystem;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.measureReads = measureReads;
+    }
+
+    /***
+     * Runs one pass over every file
+     *
+     * @return What the pass did, which is less than every file if the
+     *         defragmenter was closed during the pass
+     * @throws IOException If the defragmenter is closed, a file cannot be
+     *                     moved, or the thread is interrupted while
+     *                     throttled.  Files moved before that stay moved.
+     */
+    public synchronized DefragmentationReport defragment() throws IOException {
+        if (closed.getCount() == 0) {
+            throw new IOException("Defragmenter::defragment: defragmenter is closed");
+        }
+        long start = System.nanoTime();
+
+        // blocks freed by operations not yet committed only become free holes once they commit
+        fileSystem.sync();
+        FragmentationReport freeSpaceBefore = fileSystem.getFragmentationReport();
+
+        // files are moved front to back, so each one can take the holes left before it
+        List<int[]> files = new ArrayList<>();
+        long fileExtentsBefore = 0;
+        for (int iNodeNumber : fileSystem.fileINodes()) {
+            int[] blocks = fileSystem.blocksOf(iNodeNumber);
+            if (blocks != null) {
+                files.add(new int[]{iNodeNumber, blocks.length == 0 ? Integer.MAX_VALUE : blocks[0]});
+                fileExtentsBefore += extents(blocks);
+            }
+        }
+        files.sort(Comparator.comparingInt(file -> file[1]));
+        double readBefore = measureReads ? readThroughput(files) : Double.NaN;
+
+        int filesMoved = 0;
+        long blocksMoved = 0;
+        long moveStart = System.nanoTime();
+        for (int[] file : files) {
+            if (closed.getCount() == 0) {
+                break;
+            }
+            int moved = fileSystem.relocateFile(file[0]);
+            if (moved > 0) {
+                filesMoved++;
+                blocksMoved += moved;
+                throttle(moveStart, 2 * blocksMoved * fileSystem.getBlockSize());
+            }
+        }
+
+        long fileExtentsAfter = 0;
+        for (int[] file : files) {
+            int[] blocks = fileSystem.blocksOf(file[0]);
+            if (blocks != null) {
+                fileExtentsAfter += extents(blocks);
+            }
+        }
+        double readAfter = measureReads ? readThroughput(files) : Double.NaN;
+
+        DefragmentationReport report = new DefragmentationReport(freeSpaceBefore,
+                fileSystem.getFragmentationReport(), files.size(), fileExtentsBefore, fileExtentsAfter,
+                filesMoved, blocksMoved, System.nanoTime() - start, readBefore, readAfter);
+        lastReport = report;
+        LOGGER.fine(report::toString);
+        return report;
+    }
+
+    /***
+     * Runs a pass every <code>periodMillis</code> on a daemon thread of
+     * the defragmenter, until <code>close</code>.  A pass that fails is
+     * logged and the next one runs as planned.
+     *
+     * @throws IllegalArgumentException If <code>periodMillis</code> is not positive
+     * @throws IllegalStateException If passes are already scheduled or the
+     *                               defragmenter is closed
+     */
+    public void start(long periodMillis) throws IllegalArgumentException, IllegalStateException {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Defragmenter::start: period of " + periodMillis +
+                    " ms is not positive");
+        }
+        synchronized (schedulerLock) {
+            if (scheduler != null || closed.getCount() == 0) {
+                throw new IllegalStateException("Defragmenter::start: already started or closed");
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "defragmenter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::backgroundPass, periodMillis, periodMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /***
+     * Returns the report of the last pass that completed, or null if none has
+     */
+    public DefragmentationReport getLastReport() {
+        return lastReport;
+    }
+
+    /***
+     * Stops the background passes and refuses further ones.  A pass under
+     * way stops once the file it is moving has moved.
+     */
+    @Override
+    public void close() {
+        closed.countDown();
+        synchronized (schedulerLock) {
+            if (scheduler != null) {
+                scheduler.shutdown();
+            }
+        }
+    }
+
+    private void backgroundPass() {
+        try {
+            defragment();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Defragmenter::backgroundPass: pass failed", e);
+        }
+    }
+
+    /***
+     * Waits until <code>bytes</code> moved since <code>since</code> fit
+     * within <code>maxBytesPerSecond</code>, or the defragmenter is closed
+     *
+     * @throws InterruptedIOException If the thread is interrupted while it waits
+     */
+    private void throttle(long since, long bytes) throws InterruptedIOException {
+        if (maxBytesPerSecond == 0) {
+            return;
+        }
+        long due = since + (long) (bytes * 1e9 / maxBytesPerSecond);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                closed.await(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Defragmenter::throttle: interrupted");
+            }
+        }
+    }
+
+    /***
+     * Reads every file once and returns the bytes read per second
+     */
+    private double readThroughput(List<int[]> files) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int[] file : files) {
+            bytes += fileSystem.readFile(file[0], buffer);
+        }
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        return bytes * 1e9 / elapsed;
+    }
+
+    /***
+     * Returns the number of runs of consecutive blocks in <code>blocks</code>
+     */
+    static int extents(int[] blocks) {
+        int count = blocks.length == 0 ? 0 : 1;
+        for (int i = 1; i < blocks.length; i++) {
+            if (blocks[i] != blocks[i - 1] + 1) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -1,52 +1,114 @@
 package filesystem;
 
+import java.io.File;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
 
 
-public class Disk {
+public class Disk implements BlockDevice {
   public static final  String RAW_DISK_NAME = "RawDevice.dsk";
+
+  /**
+   * Geometry of a disk formatted without a <code>DiskGeometry</code> of
+   * its own, see <code>DiskGeometry.DEFAULT</code>
+   */
   public static final int NUM_BLOCKS = 16384;
   public static final int NUM_INODES = 1024;
   public static final int BLOCK_SIZE = 512;
   public static final int BYTES_IN_FREE_SPACE_LIST = NUM_BLOCKS/8;
 
 
-  public static final int INODE_SIZE = INode.FILE_NAME_SIZE +
-                                       INode.SIZE_FIELD_SIZE +
-                                       (INode.NUM_BLOCK_POINTERS * INode.BLOCK_POINTER_SIZE);
+  /**
+   * Bytes of the inode table taken by one inode.  The fields fill
+   * <code>INode.INODE_SIZE</code> bytes, the rest of the slot is reserved
+   * and keeps slots a power of two so a block holds a whole number of them.
+   */
+  public static final int INODE_SIZE = 256;
 
   private static String RAW_DISK_MODE = "rw";
 
+  /**
+   * Each thread encodes and decodes inodes in a buffer of its own, so
+   * single inode I/O allocates nothing but the decoded <code>INode</code>
+   */
+  static final ThreadLocal<ByteBuffer> INODE_BUFFER =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(INode.INODE_SIZE));
+
   private String diskFileName;
   private RandomAccessFile rawDisk;
 
+  /**
+   * Layout of the disk: the default until the disk is formatted with
+   * another geometry or mounted
+   */
+  private DiskGeometry geometry;
+
+  /**
+   * All reads and writes after format/mount are positional, so threads
+   * never share a file pointer and need no lock around a seek
+   */
+  private FileChannel channel;
+
   public Disk() {
-    this.diskFileName = RAW_DISK_NAME;
+    this(RAW_DISK_NAME);
+  }
+
+  public Disk(String diskFileName) {
+    this.diskFileName = diskFileName;
+    this.geometry = DiskGeometry.DEFAULT;
+  }
+
+  public DiskGeometry getGeometry() {
+    return geometry;
   }
 
   /***
    * Initialize a new disk
    *
+   * @param geometry Block size, block count and inode count of the new disk
+   * @param mode <code>QUICK</code> to size the file in one step and write only
+   *             the metadata region, <code>FULL</code> to write every block
    * @throws IOException If an I/O error occurs
    */
-  public void format() throws IOException {
+  public void format(DiskGeometry geometry, FormatMode mode) throws IOException {
+    close();
+    this.geometry = geometry;
     rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
-    byte[] freeListBytes = new byte[BYTES_IN_FREE_SPACE_LIST];
+    channel = rawDisk.getChannel();
+
+    if (mode == FormatMode.QUICK) {
+      /**
+       * Truncating first throws away any old data, growing the file
+       * again leaves the data region as a hole that reads back as zeros
+       */
+      rawDisk.setLength(0);
+      rawDisk.setLength(geometry.getDiskSize());
+      writeFully(ByteBuffer.wrap(emptyMetadataRegion(geometry)), 0);
+      return;
+    }
+
+    byte[] freeListBytes = new byte[geometry.getFreeListSize()];
 
     INode emptyINode = new INode();
 
-    byte[] emptyDiskBlock = new byte[BLOCK_SIZE];
+    byte[] emptyDiskBlock = new byte[geometry.getBlockSize()];
 
     /**
-     * write an empty free block list
+     * write the superblock and an empty free block list
      */
+    rawDisk.write(geometry.toSuperblock());
     rawDisk.write(freeListBytes);
 
     /**
      * write empty inodes
      */
-    for(int i= 0; i < NUM_INODES; i++) {
+    for(int i= 0; i < geometry.getNumInodes(); i++) {
+      rawDisk.seek(geometry.inodeOffset(i));
       rawDisk.write(emptyINode.getFileNameBytes());
       rawDisk.write(emptyINode.getSizeBytes());
 
@@ -57,11 +119,72 @@ public class Disk {
     }
 
     /**
-     * write empty disk data blocks
+     * write an empty journal and empty disk data blocks, the journal sits
+     * right before the data region
      */
-    for (int blkCount= 0; blkCount < NUM_BLOCKS; blkCount++) {
+    rawDisk.seek(geometry.getJournalOffset());
+    for (int blkCount= 0; blkCount < geometry.getJournalBlocks() + geometry.getNumBlocks(); blkCount++) {
       rawDisk.write(emptyDiskBlock);
     }
+    rawDisk.setLength(geometry.getDiskSize());
+  }
+
+  /***
+   * Builds the image of a freshly formatted metadata region: the
+   * superblock, an empty free block list, a table of empty inodes and
+   * an empty journal
+   *
+   * @return The bytes from offset 0 up to the start of the data region
+   */
+  static byte[] emptyMetadataRegion(DiskGeometry geometry) {
+    ByteBuffer metadata = ByteBuffer.allocate((int) geometry.getDataRegionOffset());
+    INode emptyINode = new INode();
+
+    metadata.put(geometry.toSuperblock());
+    for (int i= 0; i < geometry.getNumInodes(); i++) {
+      metadata.position((int) geometry.inodeOffset(i));
+      metadata.put(emptyINode.getFileNameBytes());
+      metadata.putInt(emptyINode.getSize());
+      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
+        metadata.putInt(emptyINode.getBlockPointer(blkPtrIndex));
+      }
+    }
+
+    return metadata.array();
+  }
+
+  /***
+   * Open an existing, already formatted disk without changing its contents.
+   * The geometry of the disk is read from its superblock.
+   *
+   * @throws IOException If the disk does not exist, has no valid superblock
+   *                     or is smaller than its geometry says
+   */
+  public void mount() throws IOException {
+    close();
+    if (!new File(diskFileName).isFile()) {
+      throw new IOException("Disk::mount:  " + diskFileName + " does not exist");
+    }
+
+    rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
+    channel = rawDisk.getChannel();
+    try {
+      if (rawDisk.length() < DiskGeometry.SUPERBLOCK_SIZE) {
+        throw new IOException("Disk::mount:  " + diskFileName + " is not a formatted disk");
+      }
+      byte[] superblock = new byte[DiskGeometry.SUPERBLOCK_SIZE];
+      readFully(ByteBuffer.wrap(superblock), 0);
+      DiskGeometry mounted = DiskGeometry.fromSuperblock(superblock);
+
+      if (rawDisk.length() < mounted.getDiskSize()) {
+        throw new IOException("Disk::mount:  " + diskFileName + " is " + rawDisk.length() +
+                              " bytes long instead of " + mounted.getDiskSize() + " bytes long");
+      }
+      geometry = mounted;
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
   }
 
   /***
@@ -72,10 +195,9 @@ public class Disk {
    *                     the random access file has been closed, or if some other I/O error occurs
    */
   public byte[] readFreeBlockList() throws IOException {
-    byte[] freeList = new byte[BYTES_IN_FREE_SPACE_LIST];
+    byte[] freeList = new byte[geometry.getFreeListSize()];
 
-    rawDisk.seek((long)0);
-    rawDisk.read(freeList);
+    readFully(ByteBuffer.wrap(freeList), geometry.getFreeListOffset());
 
     return freeList;
   }
@@ -90,16 +212,53 @@ public class Disk {
    *                      the same as the free byte list on the disk.
    */
   public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
-    if (freeBlockList.length != BYTES_IN_FREE_SPACE_LIST) {
+    if (freeBlockList.length != geometry.getFreeListSize()) {
       throw new IllegalArgumentException("Disk::writeFreeBlockList:  " +
                                        "is "  +  freeBlockList.length +
                                        "bytes long  instead of "  +
-                                       BYTES_IN_FREE_SPACE_LIST +
+                                       geometry.getFreeListSize() +
                                        " bytes long");
     }
 
-    rawDisk.seek((long)0);
-    rawDisk.write(freeBlockList);
+    writeFully(ByteBuffer.wrap(freeBlockList), geometry.getFreeListOffset());
+  }
+
+
+  /***
+   * Writes the bytes <code>from</code> up to <code>to</code> of the free
+   * space list to raw disk
+   *
+   * @param freeBlockList Array of bytes representing an updated free
+   *                      byte list
+   * @param from Index of the first byte to write
+   * @param to Index one past the last byte to write
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the list or the range does not fit the disk
+   */
+  public void writeFreeBlockList(byte[] freeBlockList, int from, int to)
+          throws IOException, IllegalArgumentException {
+    checkFreeListRange("Disk::writeFreeBlockList", geometry, freeBlockList, from, to);
+
+    writeFully(ByteBuffer.wrap(freeBlockList, from, to - from), geometry.getFreeListOffset() + from);
+  }
+
+  /***
+   * Checks that <code>from</code> up to <code>to</code> is a range of a
+   * free block list of the right length
+   *
+   * @throws IllegalArgumentException If it is not
+   */
+  static void checkFreeListRange(String caller, DiskGeometry geometry, byte[] freeBlockList, int from, int to)
+          throws IllegalArgumentException {
+    if (freeBlockList.length != geometry.getFreeListSize()) {
+      throw new IllegalArgumentException(caller + ":  is " + freeBlockList.length +
+                                         " bytes long instead of " + geometry.getFreeListSize() +
+                                         " bytes long");
+    }
+    if (from < 0 || from > to || to > freeBlockList.length) {
+      throw new IllegalArgumentException(caller + ":  range " + from + " to " + to +
+                                         " is outside the free block list");
+    }
   }
 
 
@@ -111,26 +270,14 @@ public class Disk {
    * @throws IOException If an I/O error occurs
    */
   public void writeInode(INode inode, int whichInode) throws IOException {
-      byte[] name = inode.getFileNameBytes();
-      byte[] size = inode.getSizeBytes();
-      byte[][] blockPointers = new byte[INode.NUM_BLOCK_POINTERS][];
-
-      for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPointers[i] = inode.getBlockPointerBytes(i);
-      }
-
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+      ByteBuffer inodeBytes = INODE_BUFFER.get().clear();
+      inode.writeTo(inodeBytes);
+      inodeBytes.flip();
 
       /**
-       * Seek to correct position in the raw file
+       * Write the whole inode at its position in the raw file in one go
        */
-      rawDisk.seek((long)cursor);
-
-      rawDisk.write(name);
-      rawDisk.write(size);
-      for (int j= 0; j < INode.NUM_BLOCK_POINTERS; j++) {
-        rawDisk.write(blockPointers[j]);
-      }
+      writeFully(inodeBytes, geometry.inodeOffset(whichInode));
   }
 
   /***
@@ -142,48 +289,111 @@ public class Disk {
    *    *                the random access file has been closed, or if some other I/O error occurs
    */
   public INode readInode(int whichInode) throws IOException {
-      INode inode = new INode();
-      int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * whichInode);
+      ByteBuffer inodeBytes = INODE_BUFFER.get().clear();
 
-      rawDisk.seek((long)cursor);
+      readFully(inodeBytes, geometry.inodeOffset(whichInode));
+      inodeBytes.flip();
 
-      byte[] fileNameBytes = new byte[INode.FILE_NAME_SIZE];
-      int nameReadLen = rawDisk.read(fileNameBytes);
+      return INode.readFrom(inodeBytes);
+  }
 
-      int fileSizeField = rawDisk.readInt();
+  /***
+   * Reads the whole inode table with a single positional read and decodes
+   * it from memory
+   *
+   * @return Every inode of the disk, indexed by inode number
+   * @throws IOException If an I/O error occurs
+   */
+  public INode[] readInodeTable() throws IOException {
+    INode[] table = new INode[geometry.getNumInodes()];
+    ByteBuffer tableBytes = ByteBuffer.allocate(geometry.getInodeSize() * table.length);
 
-      /**
-       * read each block pointer
-       */
-      int[] blockPtrValues = new int[INode.NUM_BLOCK_POINTERS];
+    readFully(tableBytes, geometry.getInodeTableOffset());
 
-      for (int i= 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-        blockPtrValues[i]= rawDisk.readInt();
-      }
+    for (int i = 0; i < table.length; i++) {
+      table[i] = INode.readFrom(tableBytes.position(geometry.getInodeSize() * i));
+    }
+    return table;
+  }
 
-      String fileName = new String(fileNameBytes);
+  /***
+   * Reads the raw inode table into <code>dst</code> with a single positional read
+   *
+   * @param dst Buffer with room for the whole table
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>dst</code> is too small
+   */
+  public void readInodeTable(ByteBuffer dst) throws IOException, IllegalArgumentException {
+    checkInodeTableTransfer("Disk::readInodeTable", geometry, dst);
+    int limit = dst.limit();
 
-      /**
-       * Null string is all 0's but
-       * the conversion makes it the empty string.
-       */
-      int nameSum = 0;
-      for (int index = 0; index < fileNameBytes.length; index++) {
-        nameSum += fileNameBytes[index];
+    dst.limit(dst.position() + (geometry.getInodeSize() * geometry.getNumInodes()));
+    readFully(dst, geometry.getInodeTableOffset());
+    dst.limit(limit);
+  }
+
+  /***
+   * Checks that <code>buffer</code> can hold the whole inode table
+   *
+   * @throws IllegalArgumentException If <code>buffer</code> is too small
+   */
+  static void checkInodeTableTransfer(String caller, DiskGeometry geometry, ByteBuffer buffer)
+      throws IllegalArgumentException {
+    long needed = (long) geometry.getInodeSize() * geometry.getNumInodes();
+    if (buffer.remaining() < needed) {
+      throw new IllegalArgumentException(caller + ":  buffer has " +
+                                         buffer.remaining() + " bytes left, the inode table needs " + needed);
+    }
+  }
+
+  /***
+   * Writes several inodes, encoding each run of consecutive inode numbers
+   * into one buffer and writing it with a single positional write
+   *
+   * @param inodes The inodes to write, by inode number
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If an inode number is out of range
+   */
+  public void writeInodes(Map<Integer, INode> inodes) throws IOException, IllegalArgumentException {
+    int[] order = sortedInodeNumbers("Disk::writeInodes", geometry, inodes);
+    int inodeSize = geometry.getInodeSize();
+
+    for (int run = 0, runEnd; run < order.length; run = runEnd) {
+      runEnd = run + 1;
+      while (runEnd < order.length && order[runEnd] == order[runEnd - 1] + 1) {
+        runEnd++;
       }
 
-      if ( nameSum <= 0) {
-         inode.setFileName(null);
-      } else {
-        inode.setFileName(fileName);
+      /**
+       * Slots are encoded whole, so the reserved tail of each slot is
+       * zeroed along the way
+       */
+      ByteBuffer runBytes = ByteBuffer.allocate(inodeSize * (runEnd - run));
+      for (int k = run; k < runEnd; k++) {
+        inodes.get(order[k]).writeTo(runBytes.position(inodeSize * (k - run)));
       }
-      inode.setSize(fileSizeField);
+      writeFully(runBytes.clear(), geometry.inodeOffset(order[run]));
+    }
+  }
 
-      for (int blkPtrIndex= 0; blkPtrIndex < INode.NUM_BLOCK_POINTERS; blkPtrIndex++) {
-        inode.setBlockPointer(blkPtrIndex, blockPtrValues[blkPtrIndex]);
+  /***
+   * Checks the inode numbers of a bulk inode write and sorts them
+   *
+   * @throws IllegalArgumentException If an inode number is out of range
+   */
+  static int[] sortedInodeNumbers(String caller, DiskGeometry geometry, Map<Integer, INode> inodes)
+      throws IllegalArgumentException {
+    int[] order = new int[inodes.size()];
+    int i = 0;
+    for (int whichInode : inodes.keySet()) {
+      if (whichInode < 0 || whichInode >= geometry.getNumInodes()) {
+        throw new IllegalArgumentException(caller + ":  inode " + whichInode +
+                                           " is not between 0 and " + (geometry.getNumInodes() - 1));
       }
-      
-      return inode;
+      order[i++] = whichInode;
+    }
+    Arrays.sort(order);
+    return order;
   }
 
   /***
@@ -192,13 +402,14 @@ public class Disk {
    * @param whichBlock The position of the data block to be read
    * @return A block of data at position <code>whichBlock</code>
    * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If <code>whichBlock</code> is not a block of the disk
    */
-  public byte[] readDataBlock(int whichBlock) throws IOException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE * whichBlock);
-    byte[] blockData = new byte[BLOCK_SIZE];
+  public byte[] readDataBlock(int whichBlock) throws IOException, IllegalArgumentException {
+    checkBlock("Disk::readDataBlock", geometry, whichBlock);
+    long cursor = geometry.blockOffset(whichBlock);
+    byte[] blockData = new byte[geometry.getBlockSize()];
 
-    rawDisk.seek(cursor);
-    rawDisk.read(blockData);
+    readFully(ByteBuffer.wrap(blockData), cursor);
 
     return blockData;
   }
@@ -211,19 +422,322 @@ public class Disk {
    * @param whichBlock Block position in the file system
    * @throws IOException If an I/O error occurs
    * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
-   *                                  to the length of a data block size
+   *                                  to the length of a data block size, or
+   *                                  <code>whichBlock</code> is not a block of the disk
    */
   public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
-    int cursor = BYTES_IN_FREE_SPACE_LIST + (INODE_SIZE * NUM_INODES) + (BLOCK_SIZE *whichBlock);
+    long cursor = geometry.blockOffset(whichBlock);
 
-    if (blockData.length != BLOCK_SIZE) {
+    if (blockData.length != geometry.getBlockSize()) {
        throw new IllegalArgumentException("Disk::writeDataBlock:  "  +
                      "storing block of size " + blockData.length  +
-                     "when it should be of size "  + BLOCK_SIZE);
+                     "when it should be of size "  + geometry.getBlockSize());
+    }
+
+    checkBlock("Disk::writeDataBlock", geometry, whichBlock);
+
+    writeFully(ByteBuffer.wrap(blockData), cursor);
+  }
+
+  /***
+   * Reads a block of data straight into <code>dst</code> with one positional read
+   *
+   * @param whichBlock The position of the data block to be read
+   * @param dst Buffer with room for a block
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>dst</code> is too small
+   */
+  public void readDataBlock(int whichBlock, ByteBuffer dst) throws IOException, IllegalArgumentException {
+    checkBlockTransfer("Disk::readDataBlock", geometry, whichBlock, dst);
+    int limit = dst.limit();
+
+    dst.limit(dst.position() + geometry.getBlockSize());
+    readFully(dst, geometry.blockOffset(whichBlock));
+    dst.limit(limit);
+  }
+
+  /***
+   * Writes a block of data straight from <code>src</code> with one positional write
+   *
+   * @param src Buffer holding a block
+   * @param whichBlock Block position in the file system
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>src</code> is too small
+   */
+  public void writeDataBlock(ByteBuffer src, int whichBlock) throws IOException, IllegalArgumentException {
+    checkBlockTransfer("Disk::writeDataBlock", geometry, whichBlock, src);
+    int limit = src.limit();
+
+    src.limit(src.position() + geometry.getBlockSize());
+    writeFully(src, geometry.blockOffset(whichBlock));
+    src.limit(limit);
+  }
+
+  /***
+   * Reads several data blocks into <code>dst</code>.  The blocks are sorted
+   * and every run of adjacent blocks is read with a single positional read.
+   *
+   * @param blocks The data blocks to read, in any order
+   * @param dst Buffer with room for <code>blocks.length</code> blocks
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If a block number is out of range or
+   *                                  <code>dst</code> is too small
+   */
+  public void readBlocks(int[] blocks, ByteBuffer dst) throws IOException, IllegalArgumentException {
+    checkBlockTransfer("Disk::readBlocks", geometry, blocks, dst);
+    int blockSize = geometry.getBlockSize();
+    long[] order = sortedBlockOrder(blocks);
+
+    for (int run = 0, runEnd; run < order.length; run = runEnd) {
+      runEnd = endOfRun(order, run);
+      long position = geometry.blockOffset((int) (order[run] >> 32));
+
+      if (isInCallerOrder(order, run, runEnd)) {
+        readFully(blockSlice(dst, blockSize, (int) order[run], runEnd - run), position);
+      } else {
+        /**
+         * The run is contiguous on disk but not in the caller's buffer,
+         * read it in one go and hand each block to its own slot
+         */
+        ByteBuffer runData = ByteBuffer.allocate(blockSize * (runEnd - run));
+        readFully(runData, position);
+        for (int k = run; k < runEnd; k++) {
+          dst.put(dst.position() + (blockSize * (int) order[k]), runData, blockSize * (k - run), blockSize);
+        }
+      }
+    }
+
+    dst.position(dst.position() + (blockSize * blocks.length));
+  }
+
+  /***
+   * Writes several data blocks from <code>src</code>.  The blocks are sorted
+   * and every run of adjacent blocks is written with a single positional write.
+   *
+   * @param blocks The data blocks to write, in any order
+   * @param src Buffer holding <code>blocks.length</code> blocks
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If a block number is out of range or
+   *                                  <code>src</code> is too small
+   */
+  public void writeBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    checkBlockTransfer("Disk::writeBlocks", geometry, blocks, src);
+    int blockSize = geometry.getBlockSize();
+    long[] order = sortedBlockOrder(blocks);
+
+    for (int run = 0, runEnd; run < order.length; run = runEnd) {
+      runEnd = endOfRun(order, run);
+      long position = geometry.blockOffset((int) (order[run] >> 32));
+      ByteBuffer runData;
+
+      if (isInCallerOrder(order, run, runEnd)) {
+        runData = blockSlice(src, blockSize, (int) order[run], runEnd - run);
+      } else {
+        /**
+         * Gather the blocks of the run from their slots into disk order
+         */
+        runData = ByteBuffer.allocate(blockSize * (runEnd - run));
+        for (int k = run; k < runEnd; k++) {
+          runData.put(blockSize * (k - run), src, src.position() + (blockSize * (int) order[k]), blockSize);
+        }
+      }
+      writeFully(runData, position);
+    }
+
+    src.position(src.position() + (blockSize * blocks.length));
+  }
+
+  /***
+   * Checks the arguments of a multi-block transfer
+   *
+   * @throws IllegalArgumentException If a block number is out of range or
+   *                                  <code>buffer</code> cannot hold every block
+   */
+  static void checkBlockTransfer(String caller, DiskGeometry geometry, int[] blocks, ByteBuffer buffer)
+      throws IllegalArgumentException {
+    long needed = (long) geometry.getBlockSize() * blocks.length;
+    if (buffer.remaining() < needed) {
+      throw new IllegalArgumentException(caller + ":  buffer has " +
+                                         buffer.remaining() + " bytes left, " +
+                                         blocks.length + " blocks need " + needed);
+    }
+    for (int whichBlock : blocks) {
+      checkBlock(caller, geometry, whichBlock);
     }
+  }
+
+  /***
+   * Checks the arguments of a single block transfer without boxing the
+   * block number into an array
+   *
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>buffer</code> cannot hold a block
+   */
+  static void checkBlockTransfer(String caller, DiskGeometry geometry, int whichBlock, ByteBuffer buffer)
+      throws IllegalArgumentException {
+    if (buffer.remaining() < geometry.getBlockSize()) {
+      throw new IllegalArgumentException(caller + ":  buffer has " +
+                                         buffer.remaining() + " bytes left, a block needs " +
+                                         geometry.getBlockSize());
+    }
+    checkBlock(caller, geometry, whichBlock);
+  }
+
+  /***
+   * Checks that <code>whichBlock</code> is a data block of the disk
+   *
+   * @throws IllegalArgumentException If the block number is out of range
+   */
+  static void checkBlock(String caller, DiskGeometry geometry, int whichBlock) throws IllegalArgumentException {
+    if (whichBlock < 0 || whichBlock >= geometry.getNumBlocks()) {
+      throw new IllegalArgumentException(caller + ":  block " + whichBlock +
+                                         " is not between 0 and " + (geometry.getNumBlocks() - 1));
+    }
+  }
+
+  /***
+   * Sorts the blocks of a transfer by block number, keeping track of where
+   * each one sits in the caller's array
+   *
+   * @return One entry per block: the block number in the high 32 bits and
+   *         its index in <code>blocks</code> in the low 32 bits
+   */
+  static long[] sortedBlockOrder(int[] blocks) {
+    long[] order = new long[blocks.length];
+    for (int i = 0; i < blocks.length; i++) {
+      order[i] = ((long) blocks[i] << 32) | i;
+    }
+    Arrays.sort(order);
+    return order;
+  }
+
+  /***
+   * Finds the end of the run of adjacent blocks starting at <code>start</code>
+   *
+   * @return The index in <code>order</code> one past the end of the run
+   */
+  static int endOfRun(long[] order, int start) {
+    int end = start + 1;
+    while (end < order.length && (order[end] >> 32) == (order[end - 1] >> 32) + 1) {
+      end++;
+    }
+    return end;
+  }
 
-    rawDisk.seek(cursor);
-    rawDisk.write(blockData);
+  /***
+   * Tells whether the blocks of a run also sit next to each other, in
+   * the same order, in the caller's buffer
+   */
+  private static boolean isInCallerOrder(long[] order, int run, int runEnd) {
+    for (int k = run + 1; k < runEnd; k++) {
+      if ((int) order[k] != (int) order[k - 1] + 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /***
+   * Returns a view of <code>count</code> blocks of <code>buffer</code>,
+   * starting at the slot of block <code>index</code> of a transfer
+   */
+  private static ByteBuffer blockSlice(ByteBuffer buffer, int blockSize, int index, int count) {
+    int start = buffer.position() + (blockSize * index);
+    return buffer.duplicate().limit(start + (blockSize * count)).position(start);
+  }
+
+  /***
+   * Fills <code>dst</code> from the raw file starting at <code>position</code>
+   *
+   * @throws EOFException If the raw file ends first
+   * @throws IOException If an I/O error occurs
+   */
+  private void readFully(ByteBuffer dst, long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int count = channel.read(dst, position);
+      if (count < 0) {
+        throw new EOFException("Disk::readFully:  end of disk reached at " + position);
+      }
+      position += count;
+    }
+  }
+
+  /***
+   * Writes all of <code>src</code> to the raw file starting at <code>position</code>
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  private void writeFully(ByteBuffer src, long position) throws IOException {
+    while (src.hasRemaining()) {
+      position += channel.write(src, position);
+    }
+  }
+
+  /***
+   * Reads the whole journal region with a single positional read
+   *
+   * @return The bytes of the journal
+   * @throws IOException If an I/O error occurs
+   */
+  public byte[] readJournal() throws IOException {
+    byte[] journal = new byte[geometry.getJournalSize()];
+
+    readFully(ByteBuffer.wrap(journal), geometry.getJournalOffset());
+
+    return journal;
+  }
+
+  /***
+   * Writes the remaining bytes of <code>src</code> into the journal region
+   *
+   * @param src The bytes to write
+   * @param offset Position within the journal of the first byte
+   * @throws IOException If an I/O error occurs
+   * @throws IllegalArgumentException If the bytes do not fit in the journal
+   */
+  public void writeJournal(ByteBuffer src, int offset) throws IOException, IllegalArgumentException {
+    checkJournalTransfer("Disk::writeJournal", geometry, src, offset);
+
+    writeFully(src, geometry.getJournalOffset() + offset);
+  }
+
+  /***
+   * Checks that the remaining bytes of <code>src</code> fit in the journal
+   * starting at <code>offset</code>
+   *
+   * @throws IllegalArgumentException If they do not
+   */
+  static void checkJournalTransfer(String caller, DiskGeometry geometry, ByteBuffer src, int offset)
+          throws IllegalArgumentException {
+    if (offset < 0 || src.remaining() > geometry.getJournalSize() - offset) {
+      throw new IllegalArgumentException(caller + ":  " + src.remaining() + " bytes at offset " +
+                                         offset + " do not fit in a journal of " +
+                                         geometry.getJournalSize() + " bytes");
+    }
+  }
+
+  /***
+   * Forces every write made so far out to the storage device
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void force() throws IOException {
+    channel.force(true);
+  }
+
+  /***
+   * Closes the raw disk file
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void close() throws IOException {
+    if (rawDisk != null) {
+      rawDisk.close();
+      rawDisk = null;
+      channel = null;
+    }
   }
 
   /***
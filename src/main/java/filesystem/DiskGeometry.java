@@ -0,0 +1,277 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The shape of a disk: the size of a block, the number of data blocks, the
+ * number of inodes and the size of the journal.  It is chosen when the disk is formatted and
+ * recorded in the superblock, so a mount finds the layout on its own.
+ *
+ * The on-disk layout is the superblock, followed by the free block list,
+ * followed by the inode table, followed by the metadata journal, followed
+ * by the data blocks.  The inode table, the journal and the data region
+ * start on block boundaries, and inode slots of <code>Disk.INODE_SIZE</code>
+ * bytes never straddle a block.  Every offset is a <code>long</code> so
+ * disks can grow past 2 GB.
+ */
+public final class DiskGeometry {
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * The superblock always takes the first 512 bytes, whatever the block
+     * size, so it can be read before the block size is known
+     */
+    public static final int SUPERBLOCK_SIZE = 512;
+
+    /**
+     * The geometry of the original fixed layout: 16384 blocks of 512 bytes
+     * and 1024 inodes
+     */
+    public static final DiskGeometry DEFAULT =
+            new DiskGeometry(Disk.BLOCK_SIZE, Disk.NUM_BLOCKS, Disk.NUM_INODES);
+
+    /**
+     * Blocks set aside for the metadata journal unless asked otherwise
+     */
+    public static final int DEFAULT_JOURNAL_BLOCKS = 256;
+
+    private static final int MAGIC = 0x46535332;  // "FSS2"
+
+    /**
+     * Version 2 packs each inode into a 256 byte slot, version 1 spread
+     * them over 1120 bytes.  Version 3 adds the journal.
+     */
+    private static final int VERSION = 3;
+
+    private final int blockSize;
+    private final int numBlocks;
+    private final int numInodes;
+    private final int journalBlocks;
+
+    /***
+     * Describes a disk with a journal of <code>DEFAULT_JOURNAL_BLOCKS</code> blocks
+     *
+     * @param blockSize Bytes in a data block, a power of two from 512 B to 64 KB
+     * @param numBlocks Number of data blocks, a positive multiple of 8 so the
+     *                  free block list fills whole bytes
+     * @param numInodes Number of inodes, and so the most files the disk holds
+     * @throws IllegalArgumentException If one of the values is out of range or
+     *                                  the metadata would not fit in 2 GB
+     */
+    public DiskGeometry(int blockSize, int numBlocks, int numInodes) throws IllegalArgumentException {
+        this(blockSize, numBlocks, numInodes, DEFAULT_JOURNAL_BLOCKS);
+    }
+
+    /***
+     * Describes a disk
+     *
+     * @param blockSize Bytes in a data block, a power of two from 512 B to 64 KB
+     * @param numBlocks Number of data blocks, a positive multiple of 8 so the
+     *                  free block list fills whole bytes
+     * @param numInodes Number of inodes, and so the most files the disk holds
+     * @param journalBlocks Number of blocks of the metadata journal
+     * @throws IllegalArgumentException If one of the values is out of range or
+     *                                  the metadata would not fit in 2 GB
+     */
+    public DiskGeometry(int blockSize, int numBlocks, int numInodes, int journalBlocks)
+            throws IllegalArgumentException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("DiskGeometry::DiskGeometry: block size " + blockSize +
+                    " is not a power of two between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+        if (numBlocks <= 0 || numBlocks % 8 != 0) {
+            throw new IllegalArgumentException("DiskGeometry::DiskGeometry: block count " + numBlocks +
+                    " is not a positive multiple of 8");
+        }
+        if (numInodes <= 0) {
+            throw new IllegalArgumentException("DiskGeometry::DiskGeometry: inode count " + numInodes +
+                    " is not positive");
+        }
+        if (journalBlocks < 2) {
+            throw new IllegalArgumentException("DiskGeometry::DiskGeometry: journal of " + journalBlocks +
+                    " blocks is smaller than 2 blocks");
+        }
+
+        this.blockSize = blockSize;
+        this.numBlocks = numBlocks;
+        this.numInodes = numInodes;
+        this.journalBlocks = journalBlocks;
+
+        if (getDataRegionOffset() > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("DiskGeometry::DiskGeometry: " + numInodes +
+                    " inodes and a journal of " + journalBlocks +
+                    " blocks do not fit in a metadata region of at most 2 GB");
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getNumInodes() {
+        return numInodes;
+    }
+
+    public int getJournalBlocks() {
+        return journalBlocks;
+    }
+
+    /***
+     * Returns the number of bytes in the free block list, one bit per block
+     */
+    public int getFreeListSize() {
+        return numBlocks / 8;
+    }
+
+    public long getFreeListOffset() {
+        return SUPERBLOCK_SIZE;
+    }
+
+    /***
+     * Returns the position of the inode table, rounded up to a block boundary
+     */
+    public long getInodeTableOffset() {
+        return alignToBlock(getFreeListOffset() + getFreeListSize());
+    }
+
+    public int getInodeSize() {
+        return Disk.INODE_SIZE;
+    }
+
+    /***
+     * Returns the position of inode <code>whichInode</code> on the disk
+     */
+    public long inodeOffset(int whichInode) {
+        return getInodeTableOffset() + ((long) getInodeSize() * whichInode);
+    }
+
+    /***
+     * Returns the number of inodes that share a block of the inode table
+     */
+    public int getInodesPerBlock() {
+        return blockSize / getInodeSize();
+    }
+
+    /***
+     * Returns the position of the journal, rounded up to a block boundary
+     */
+    public long getJournalOffset() {
+        return alignToBlock(getInodeTableOffset() + ((long) getInodeSize() * numInodes));
+    }
+
+    /***
+     * Returns the number of bytes in the journal
+     */
+    public int getJournalSize() {
+        return journalBlocks * blockSize;
+    }
+
+    /***
+     * Returns the position of the first data block, on a block boundary
+     */
+    public long getDataRegionOffset() {
+        return getJournalOffset() + ((long) journalBlocks * blockSize);
+    }
+
+    private long alignToBlock(long offset) {
+        return ((offset + blockSize - 1) / blockSize) * blockSize;
+    }
+
+    /***
+     * Returns the position of data block <code>whichBlock</code> on the disk
+     */
+    public long blockOffset(int whichBlock) {
+        return getDataRegionOffset() + ((long) blockSize * whichBlock);
+    }
+
+    /***
+     * Returns the size of the whole disk image in bytes
+     */
+    public long getDiskSize() {
+        return blockOffset(numBlocks);
+    }
+
+    /***
+     * Returns the superblock recording this geometry
+     *
+     * @return <code>SUPERBLOCK_SIZE</code> bytes to store at the start of the disk
+     */
+    public byte[] toSuperblock() {
+        ByteBuffer superblock = ByteBuffer.allocate(SUPERBLOCK_SIZE);
+        superblock.putInt(MAGIC);
+        superblock.putInt(VERSION);
+        superblock.putInt(blockSize);
+        superblock.putInt(numBlocks);
+        superblock.putInt(numInodes);
+        superblock.putInt(Disk.INODE_SIZE);
+        superblock.putInt(journalBlocks);
+        return superblock.array();
+    }
+
+    /***
+     * Reads the geometry recorded in a superblock
+     *
+     * @param superblock The first <code>SUPERBLOCK_SIZE</code> bytes of the disk
+     * @return The geometry of the disk
+     * @throws IOException If the bytes are not a superblock this version understands
+     */
+    public static DiskGeometry fromSuperblock(byte[] superblock) throws IOException {
+        ByteBuffer fields = ByteBuffer.wrap(superblock);
+        int magic = fields.getInt();
+        int version = fields.getInt();
+        if (magic != MAGIC) {
+            throw new IOException("DiskGeometry::fromSuperblock: not a formatted disk");
+        }
+        if (version != VERSION) {
+            throw new IOException("DiskGeometry::fromSuperblock: unsupported disk version " + version);
+        }
+
+        int blockSize = fields.getInt();
+        int numBlocks = fields.getInt();
+        int numInodes = fields.getInt();
+        int inodeSize = fields.getInt();
+        int journalBlocks = fields.getInt();
+
+        DiskGeometry geometry;
+        try {
+            geometry = new DiskGeometry(blockSize, numBlocks, numInodes, journalBlocks);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("DiskGeometry::fromSuperblock: corrupt superblock, " + e.getMessage());
+        }
+        if (inodeSize != geometry.getInodeSize()) {
+            throw new IOException("DiskGeometry::fromSuperblock: inode size " + inodeSize +
+                    " does not match version " + VERSION);
+        }
+        return geometry;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof DiskGeometry)) {
+            return false;
+        }
+        DiskGeometry geometry = (DiskGeometry) other;
+        return blockSize == geometry.blockSize &&
+                numBlocks == geometry.numBlocks &&
+                numInodes == geometry.numInodes &&
+                journalBlocks == geometry.journalBlocks;
+    }
+
+    @Override
+    public int hashCode() {
+        return (31 * ((31 * ((31 * blockSize) + numBlocks)) + numInodes)) + journalBlocks;
+    }
+
+    @Override
+    public String toString() {
+        return "DiskGeometry[blockSize=" + blockSize + ", numBlocks=" + numBlocks +
+                ", numInodes=" + numInodes + ", journalBlocks=" + journalBlocks + "]";
+    }
+}
@@ -0,0 +1,18 @@
+package filesystem;
+
+
+/**
+ * Which entry <code>CachedDisk</code> drops when it is full
+ */
+public enum EvictionPolicy {
+    /**
+     * The least recently used entry
+     */
+    LRU,
+
+    /**
+     * The oldest entry that has not been used since the clock hand last
+     * passed it (second chance)
+     */
+    CLOCK
+}
@@ -1,22 +1,291 @@
 package filesystem;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 
+/**
+ * The file system.  It is safe to use from several threads at once:
+ * reads and writes lock only the inode they touch (one read/write lock
+ * per stripe of inodes), and create/delete additionally serialize on
+ * the name index.  mount/unmount/sync must not race other operations.
+ *
+ * Every change to an inode, an indirect block or the free block list is
+ * logged to a write-ahead <code>Journal</code> and reaches its place on
+ * disk only after the transaction holding it has committed, so a crash
+ * leaves the metadata as of the last commit.  Operations share
+ * transactions, see <code>setGroupCommit</code>.
+ *
+ * Every operation is timed and every transfer to the device counted, see
+ * <code>getMetrics</code>.  Block allocation is traced at <code>FINE</code>
+ * on the <code>filesystem.FileSystem</code> logger.
+ */
 public class FileSystem {
-    private Disk diskDevice;
+    public static final int MAX_OPEN_FILES = 4096;
+    public static final int NUM_LOCK_STRIPES = 64;
 
-    private int iNodeNumber;
-    private int fileDescriptor;
-    private INode iNodeForFile;
+    private static final Logger LOGGER = Logger.getLogger(FileSystem.class.getName());
+
+    /**
+     * Reads and writes that only cover part of a block go through a
+     * per-thread scratch buffer, grown on demand up to this size; larger
+     * transfers get a buffer of their own
+     */
+    private static final int MAX_SCRATCH_SIZE = 256 * 1024;
+    private static final ThreadLocal<ByteBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(Disk.BLOCK_SIZE));
+
+    private BlockDevice diskDevice;
     private FreeBlockList freeBlockList;
+    private Journal journal;
+
+    /**
+     * Geometry of the mounted disk, read from the device once it is
+     * formatted or mounted
+     */
+    private DiskGeometry geometry;
+    private int blockSize;
+
+    /**
+     * Open file table: descriptor to per-handle state.  Descriptors are
+     * handed out lowest first and reused once closed.
+     */
+    private Map<Integer, OpenFile> openFiles;
+    private BitSet usedDescriptors;
+
+    /**
+     * In-memory index of the inode table: file name to inode number for
+     * every named inode, and a set bit for every inode that is free.
+     * Built once when the disk is mounted and kept in sync by
+     * create/delete so lookups never have to scan the disk.
+     */
+    private Map<String, Integer> nameIndex;
+    private BitSet freeINodes;
+    private final Object namespaceLock = new Object();
+
+    private final ReentrantReadWriteLock[] iNodeLocks;
+
+    /**
+     * Latencies of the operations and bytes moved, looked up once so
+     * the operations only pay for the atomic updates
+     */
+    private final Metrics metrics;
+    private final LatencyHistogram createLatency;
+    private final LatencyHistogram openLatency;
+    private final LatencyHistogram closeLatency;
+    private final LatencyHistogram deleteLatency;
+    private final LatencyHistogram readLatency;
+    private final LatencyHistogram writeLatency;
+    private final LatencyHistogram truncateLatency;
+    private final LatencyHistogram syncLatency;
+    private final LatencyHistogram writeBatchLatency;
+    private final LatencyHistogram relocateLatency;
+    private final LongAdder bytesRead;
+    private final LongAdder bytesWritten;
+    private final LongAdder lookupMisses;
+    private final LongAdder blocksRelocated;
 
     public FileSystem() throws IOException {
-        diskDevice = new Disk();
-        diskDevice.format();
-        freeBlockList = new FreeBlockList();
+        this(new Disk());
+    }
+
+    /***
+     * Creates a file system on top of the given device, e.g. a
+     * <code>Disk</code> or a <code>MappedDisk</code>
+     *
+     * @param device The device that holds the raw disk image
+     * @throws IOException If the device cannot be formatted
+     */
+    public FileSystem(BlockDevice device) throws IOException {
+        this(device, device.getGeometry(), true);
+    }
+
+    /***
+     * Creates a file system on top of the given device, formatting it
+     * with the given geometry
+     *
+     * @param device The device that holds the raw disk image
+     * @param geometry Block size, block count and inode count of the new disk
+     * @throws IOException If the device cannot be formatted
+     */
+    public FileSystem(BlockDevice device, DiskGeometry geometry) throws IOException {
+        this(device, geometry, true);
+    }
+
+    private FileSystem(BlockDevice device, DiskGeometry geometry, boolean format) throws IOException {
+        metrics = new Metrics();
+        createLatency = metrics.histogram("fileSystem.create");
+        openLatency = metrics.histogram("fileSystem.open");
+        closeLatency = metrics.histogram("fileSystem.close");
+        deleteLatency = metrics.histogram("fileSystem.delete");
+        readLatency = metrics.histogram("fileSystem.read");
+        writeLatency = metrics.histogram("fileSystem.write");
+        truncateLatency = metrics.histogram("fileSystem.truncate");
+        syncLatency = metrics.histogram("fileSystem.sync");
+        writeBatchLatency = metrics.histogram("fileSystem.writeBatch");
+        relocateLatency = metrics.histogram("fileSystem.relocate");
+        bytesRead = metrics.counter("fileSystem.bytesRead");
+        bytesWritten = metrics.counter("fileSystem.bytesWritten");
+        lookupMisses = metrics.counter("fileSystem.lookupMisses");
+        blocksRelocated = metrics.counter("fileSystem.blocksRelocated");
+
+        diskDevice = new MeteredDisk(device, metrics);
+        openFiles = new ConcurrentHashMap<>();
+        usedDescriptors = new BitSet(MAX_OPEN_FILES);
+        iNodeLocks = new ReentrantReadWriteLock[NUM_LOCK_STRIPES];
+        for (int i = 0; i < NUM_LOCK_STRIPES; i++) {
+            iNodeLocks[i] = new ReentrantReadWriteLock();
+        }
+
+        if (format) {
+            diskDevice.format(geometry);
+        } else {
+            diskDevice.mount();
+        }
+        this.geometry = diskDevice.getGeometry();
+        this.blockSize = this.geometry.getBlockSize();
+
+        freeBlockList = new FreeBlockList(this.geometry.getNumBlocks());
+        journal = new Journal(diskDevice, freeBlockList);
+        if (format) {
+            journal.format();
+        } else {
+            // replaying first brings the free block list and the inode table up to date
+            journal.replay();
+            freeBlockList.setFreeBlockList(diskDevice.readFreeBlockList());
+        }
+        buildINodeIndex();
+
+        metrics.gauge("fileSystem.openFiles", openFiles::size);
+        metrics.gauge("freeBlockList.freeBlocks", freeBlockList::getNumberOfFreeBlocks);
+        metrics.gauge("freeBlockList.wordsScanned", freeBlockList::getWordsScanned);
+        metrics.gauge("freeBlockList.largestFreeRun", freeBlockList::getLargestFreeRun);
+    }
+
+    /***
+     * Mounts the existing disk image <code>Disk.RAW_DISK_NAME</code>
+     * without reformatting it
+     *
+     * @return A file system holding the files already stored on the disk
+     * @throws IOException If the disk does not exist or cannot be read
+     */
+    public static FileSystem mount() throws IOException {
+        return mount(new Disk());
+    }
+
+    /***
+     * Mounts an existing disk image without reformatting it.  Transactions
+     * the journal committed before a crash are replayed, then the free
+     * block list is loaded from the disk and the inode index is rebuilt
+     * from the inode table.
+     *
+     * @param device The device that holds the existing disk image
+     * @return A file system holding the files already stored on the disk
+     * @throws IOException If the disk does not exist or cannot be read
+     */
+    public static FileSystem mount(BlockDevice device) throws IOException {
+        return new FileSystem(device, null, false);
+    }
+
+    /***
+     * Forces all outstanding data writes out to the storage device, then
+     * commits the operations the journal is still holding, so everything
+     * done so far survives a crash
+     *
+     * @throws IOException If disk is not accessible for writing
+     */
+    public void sync() throws IOException {
+        long start = System.nanoTime();
+        diskDevice.force();
+        journal.commit();
+        syncLatency.record(System.nanoTime() - start);
+    }
+
+    /***
+     * Returns the counters, gauges and latency histograms of this file
+     * system: <code>fileSystem.*</code> for the operations, <code>disk.*</code>
+     * for the transfers to the device, <code>cache.*</code> when the device
+     * is a <code>CachedDisk</code>, and <code>freeBlockList.*</code>.  Use
+     * <code>Metrics.registerMBean</code> to watch them over JMX.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /***
+     * Syncs the file system, checkpoints the journal and releases the
+     * underlying device.  The disk can be mounted again later with
+     * <code>mount</code>.
+     *
+     * @throws IOException If disk is not accessible for writing
+     */
+    public void unmount() throws IOException {
+        sync();
+        journal.close();
+        diskDevice.close();
+    }
+
+    /***
+     * Sets how many operations the journal groups into one transaction,
+     * and so into one force of the storage device.  Operations that have
+     * not committed yet are lost in a crash; <code>sync</code> commits them.
+     *
+     * @param maxOperations Commit as soon as this many operations are waiting,
+     *                      <code>Journal.DEFAULT_MAX_OPERATIONS</code> by default
+     * @param maxDelayMillis Commit at most this long after the first waiting
+     *                       operation, or 0, the default, to commit only on
+     *                       <code>maxOperations</code> or <code>sync</code>
+     * @throws IllegalArgumentException If <code>maxOperations</code> is not
+     *                                  positive or <code>maxDelayMillis</code> is negative
+     */
+    public void setGroupCommit(int maxOperations, long maxDelayMillis) throws IllegalArgumentException {
+        journal.setGroupCommit(maxOperations, maxDelayMillis);
+    }
+
+    /***
+     * Scans the inode table once and rebuilds the name index and
+     * the free inode set from what is on disk
+     *
+     * @throws IOException If an inode cannot be read from disk
+     */
+    private void buildINodeIndex() throws IOException {
+        nameIndex = new ConcurrentHashMap<>();
+        freeINodes = new BitSet(geometry.getNumInodes());
+
+        /**
+         * One sequential read of the whole table into an off-heap buffer,
+         * scanned in place: free inodes cost no objects at all and a
+         * named one only its name
+         */
+        ByteBuffer iNodeTable = ByteBuffer.allocateDirect(geometry.getInodeSize() * geometry.getNumInodes());
+        diskDevice.readInodeTable(iNodeTable);
+        INodeView iNode = new INodeView(iNodeTable.flip(), geometry.getInodeSize());
+        for (int i = 0; i < geometry.getNumInodes(); i++) {
+            if (iNode.moveTo(i).isFree()) {
+                freeINodes.set(i);
+            } else {
+                nameIndex.put(iNode.getFileName().trim(), i);
+            }
+        }
     }
 
     /***
@@ -26,29 +295,52 @@ public class FileSystem {
      * @throws IOException
      */
     public int create(String fileName) throws IOException {
-        INode tmpINode = null;
-
-        boolean isCreated = false;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isCreated; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String name = tmpINode.getFileName();
-            if (tmpINode.getFileName() == null) {
-                this.iNodeForFile = new INode();
-                this.iNodeForFile.setFileName(fileName);
-                this.iNodeNumber = i;
-                this.fileDescriptor = i;
-                isCreated = true;
-            } else if (name.trim().equals(fileName)){
+        long start = System.nanoTime();
+        String name = fileName.trim();
+        INode newINode = new INode();
+        newINode.setFileName(fileName);
+
+        synchronized (namespaceLock) {
+            if (nameIndex.containsKey(name)) {
                 throw new IOException("FileSystem::create: "+fileName+
                         " already exists");
             }
-        }
-        if (!isCreated) {
-            throw new IOException("FileSystem::create: Unable to create file");
-        }
 
-        return fileDescriptor;
+            int i = freeINodes.nextSetBit(0);
+            if (i < 0) {
+                throw new IOException("FileSystem::create: Unable to create file");
+            }
+
+            Lock lock = iNodeLock(i).writeLock();
+            lock.lock();
+            try {
+                /**
+                 * Reserve the inode right away so a second create cannot hand
+                 * out the same slot before this one is closed.
+                 */
+                freeINodes.clear(i);
+                nameIndex.put(name, i);
+
+                OpenFile file = new OpenFile(i, new BlockMap(journal, newINode));
+                int fileDescriptor;
+                try {
+                    fileDescriptor = openFile("create", file);
+                } catch (IOException e) {
+                    nameIndex.remove(name);
+                    freeINodes.set(i);
+                    throw e;
+                }
+
+                /**
+                 * The new inode reaches the disk when the journal commits
+                 */
+                journal.log(i, newINode, new HashMap<>(), new int[0], new int[0]);
+                return fileDescriptor;
+            } finally {
+                lock.unlock();
+                createLatency.record(System.nanoTime() - start);
+            }
+        }
     }
 
     /**
@@ -58,39 +350,48 @@ public class FileSystem {
      * @throws IOException
      */
     public void delete(String fileName) throws IOException {
-        INode tmpINode = null;
-        boolean isFound = false;
-        int inodeNumForDeletion = -1;
+        long start = System.nanoTime();
+        synchronized (namespaceLock) {
+            Integer inodeNumForDeletion = nameIndex.get(fileName.trim());
 
-        /**
-         * Find the non-null named inode that matches,
-         * If you find it, set its file name to null
-         * to indicate it is unused
-         */
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
+            /***
+             * If file found, go ahead and deallocate its
+             * blocks and null out the filename.
+             */
+            if (inodeNumForDeletion == null) {
+                lookupMisses.increment();
+                return;
+            }
+
+            Lock lock = iNodeLock(inodeNumForDeletion).writeLock();
+            lock.lock();
+            try {
+                BlockMap blockMap = findOpenBlockMap(inodeNumForDeletion);
+                if (blockMap == null) {
+                    blockMap = new BlockMap(journal, journal.readInode(inodeNumForDeletion));
+                }
+                INode tmpINode = blockMap.getINode();
+                checkTruncateFits("delete", blockMap, 0);
+                int[] freed = deallocateBlocksForFile(inodeNumForDeletion, blockMap);
+                tmpINode.setFileName(null);
+                journal.log(inodeNumForDeletion, tmpINode, blockMap.takeDirtyBlocks(), new int[0], freed);
 
-            String fName = tmpINode.getFileName();
+                nameIndex.remove(fileName.trim());
+                freeINodes.set(inodeNumForDeletion);
 
-            if (fName != null && fName.trim().compareTo(fileName.trim()) == 0) {
-                isFound = true;
-                inodeNumForDeletion = i;
-                break;
+                /**
+                 * Any handle still open on the file is no longer valid
+                 */
+                for (Map.Entry<Integer, OpenFile> handle : openFiles.entrySet()) {
+                    if (handle.getValue().getINodeNumber() == inodeNumForDeletion) {
+                        closeDescriptor(handle.getKey());
+                    }
+                }
+            } finally {
+                lock.unlock();
+                deleteLatency.record(System.nanoTime() - start);
             }
         }
-
-        /***
-         * If file found, go ahead and deallocate its
-         * blocks and null out the filename.
-         */
-        if (isFound) {
-            deallocateBlocksForFile(inodeNumForDeletion);
-            tmpINode.setFileName(null);
-            diskDevice.writeInode(tmpINode, inodeNumForDeletion);
-            this.iNodeForFile = null;
-            this.fileDescriptor = -1;
-            this.iNodeNumber = -1;
-        }
     }
 
 
@@ -101,48 +402,140 @@ public class FileSystem {
      * @throws IOException
      */
     public int open(String fileName) throws IOException {
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
-        INode tmpINode = null;
-        boolean isFound = false;
-        int iNodeContainingName = -1;
-
-        for (int i = 0; i < Disk.NUM_INODES && !isFound; i++) {
-            tmpINode = diskDevice.readInode(i);
-            String fName = tmpINode.getFileName();
-            if (fName != null) {
-                if (fName.trim().compareTo(fileName.trim()) == 0) {
-                    isFound = true;
-                    iNodeContainingName = i;
-                    this.iNodeForFile = tmpINode;
-                }
+        long start = System.nanoTime();
+        Integer iNodeContainingName = nameIndex.get(fileName.trim());
+
+        if (iNodeContainingName == null) {
+            lookupMisses.increment();
+            return -1;
+        }
+
+        Lock lock = iNodeLock(iNodeContainingName).writeLock();
+        lock.lock();
+        try {
+            /**
+             * The file may have been deleted while we waited for the lock
+             */
+            if (!iNodeContainingName.equals(nameIndex.get(fileName.trim()))) {
+                return -1;
             }
+
+            /**
+             * Handles on the same file share one in-memory inode and block map
+             */
+            BlockMap blockMap = findOpenBlockMap(iNodeContainingName);
+            if (blockMap == null) {
+                blockMap = new BlockMap(journal, journal.readInode(iNodeContainingName));
+            }
+
+            return openFile("open", new OpenFile(iNodeContainingName, blockMap));
+        } finally {
+            lock.unlock();
+            openLatency.record(System.nanoTime() - start);
         }
+    }
+
+
+    /***
+     * Closes the file.  Its changes were logged to the journal as they
+     * were made, so closing writes nothing.
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public void close(int fileDescriptor) throws IOException {
+        long start = System.nanoTime();
+        OpenFile file = getOpenFile("close", fileDescriptor);
 
-        if (isFound) {
-            this.fileDescriptor = iNodeContainingName;
-            this.iNodeNumber = fileDescriptor;
+        Lock lock = iNodeLock(file.getINodeNumber()).writeLock();
+        lock.lock();
+        try {
+            checkStillOpen("close", fileDescriptor, file);
+            closeDescriptor(fileDescriptor);
+        } finally {
+            lock.unlock();
+            closeLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /***
+     * Adds a handle to the open file table
+     *
+     * @param operation Name of the calling operation, for the error message
+     * @return The lowest unused file descriptor
+     * @throws IOException If <code>MAX_OPEN_FILES</code> files are already open
+     */
+    private int openFile(String operation, OpenFile file) throws IOException {
+        synchronized (usedDescriptors) {
+            int fileDescriptor = usedDescriptors.nextClearBit(0);
+            if (fileDescriptor >= MAX_OPEN_FILES) {
+                throw new IOException("FileSystem::" + operation + ": too many open files");
+            }
+            usedDescriptors.set(fileDescriptor);
+            openFiles.put(fileDescriptor, file);
+            return fileDescriptor;
         }
+    }
 
-        return this.fileDescriptor;
+    /***
+     * Removes a handle from the open file table so its descriptor can be reused
+     */
+    private void closeDescriptor(int fileDescriptor) {
+        synchronized (usedDescriptors) {
+            openFiles.remove(fileDescriptor);
+            usedDescriptors.clear(fileDescriptor);
+        }
     }
 
+    /***
+     * Looks up an open file descriptor
+     *
+     * @param operation Name of the calling operation, for the error message
+     * @throws IOException If <code>fileDescriptor</code> is not open
+     */
+    private OpenFile getOpenFile(String operation, int fileDescriptor) throws IOException {
+        OpenFile file = openFiles.get(fileDescriptor);
+        if (file == null) {
+            throw new IOException("FileSystem::" + operation + ": file descriptor, "+
+                    fileDescriptor + " does not refer to an open file");
+        }
+        return file;
+    }
 
     /***
-     * Closes the file
+     * Checks, with the inode locked, that the handle was not closed or its
+     * file deleted while the caller waited for the lock
      *
-     * @throws IOException If disk is not accessible for writing
+     * @throws IOException If <code>fileDescriptor</code> no longer refers to <code>file</code>
      */
-    public void close(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber){
-            throw new IOException("FileSystem::close: file descriptor, "+
-                    fileDescriptor + " does not match file descriptor " +
-                    "of open file");
+    private void checkStillOpen(String operation, int fileDescriptor, OpenFile file) throws IOException {
+        if (openFiles.get(fileDescriptor) != file) {
+            throw new IOException("FileSystem::" + operation + ": file descriptor, "+
+                    fileDescriptor + " was closed");
+        }
+    }
+
+    /***
+     * Finds the block map, and with it the in-memory inode, of a file that
+     * is already open.  The caller holds the inode's lock.
+     *
+     * @return The shared block map, or null if no handle has the file open
+     */
+    private BlockMap findOpenBlockMap(int iNodeNumber) {
+        for (OpenFile file : openFiles.values()) {
+            if (file.getINodeNumber() == iNodeNumber) {
+                return file.getBlockMap();
+            }
         }
-        diskDevice.writeInode(this.iNodeForFile, this.iNodeNumber);
-        this.iNodeForFile = null;
-        this.fileDescriptor = -1;
-        this.iNodeNumber = -1;
+        return null;
+    }
+
+    /***
+     * Returns the lock guarding an inode and its open handles.  Inodes
+     * share <code>NUM_LOCK_STRIPES</code> locks, so files in different
+     * stripes never wait for each other.
+     */
+    private ReentrantReadWriteLock iNodeLock(int iNodeNumber) {
+        return iNodeLocks[iNodeNumber % NUM_LOCK_STRIPES];
     }
 
 
@@ -151,201 +544,929 @@ public class FileSystem {
      * Returns a String consisting of all the data
      */
     public String read(int fileDescriptor) throws IOException {
-        if (fileDescriptor != this.iNodeNumber){
-            throw new IOException("FileSystem::read: file descriptor, "+
-                    fileDescriptor + " does not match file descriptor " +
-                    "of open file");
-        }
+        long start = System.nanoTime();
+        OpenFile file = getOpenFile("read", fileDescriptor);
 
-        // create a StringBuilder that will hold all the file data and will later be returned as a String
-        StringBuilder fileData = new StringBuilder();
+        Lock lock = iNodeLock(file.getINodeNumber()).readLock();
+        lock.lock();
+        try {
+            checkStillOpen("read", fileDescriptor, file);
 
-        // traverse all the data block pointers of the INode
-        for (int i = 0; i < INode.NUM_BLOCK_POINTERS; i++) {
-            int blockPointer = iNodeForFile.getBlockPointer(i);  // get the current data block pointer
-            byte[] blockDataBytes = diskDevice.readDataBlock(blockPointer);  // get the data block as a byte array
-            String blockData = new String(blockDataBytes, StandardCharsets.UTF_8).replace("\u0000", "");  // convert bytes to String
-            fileData.append(blockData);  // append the current block data to the rest of the file data
-        }
+            // read exactly the bytes of the file, adjacent blocks are merged into single transfers
+            ByteBuffer fileData = ByteBuffer.allocate((int) fileLength(file.getINode()));
+            readAt(file.getBlockMap(), fileData, 0);
+
+            String data = new String(fileData.array(), StandardCharsets.UTF_8);  // convert bytes to String
+            file.setCursor(fileData.capacity());
 
-        return fileData.toString();
+            return data;
+        } finally {
+            lock.unlock();
+            readLatency.record(System.nanoTime() - start);
+        }
     }
 
 
     /**
-     * Allocates data blocks and writes data to the file
+     * Replaces the contents of the file with <code>data</code>, allocating
+     * data blocks as needed
      */
     public void write(int fileDescriptor, String data) throws IOException {
-        if (fileDescriptor != this.iNodeNumber){
-            throw new IOException("FileSystem::write: file descriptor, "+
-                    fileDescriptor + " does not match file descriptor " +
-                    "of open file");
-        }
+        long start = System.nanoTime();
+        OpenFile file = getOpenFile("write", fileDescriptor);
         if (data.isEmpty()) {
             throw new IOException("FileSystem::write: data cannot be an empty string");
         }
 
-        int blockSize = 512;  // data blocks contain 512 bytes
-        byte[] dataBytes = data.getBytes();  // convert the String to an array of bytes
-        int [] allocatedBlocks = allocateBlocksForFile(this.iNodeNumber, dataBytes.length);  // allocate blocks for the data to be written
+        Lock lock = iNodeLock(file.getINodeNumber()).writeLock();
+        lock.lock();
+        try {
+            checkStillOpen("write", fileDescriptor, file);
 
-        for (int i = 0; i < dataBytes.length; i += blockSize) {
-            // get a 512 byte chunk of data
-            byte[] dataBlock = new byte[blockSize];
-            System.arraycopy(dataBytes, i, dataBlock, 0, Math.min(blockSize, dataBytes.length - i));
+            byte[] dataBytes = data.getBytes(StandardCharsets.UTF_8);  // encoded as read decodes it
 
-            // find the next free block and write the data to it
-            int index = i / blockSize;
-            diskDevice.writeDataBlock(dataBlock, allocatedBlocks[index]);
+            // the old contents go away, then the new data is written from the start of the file
+            truncateFile(file, 0);
+            writeAt(file, ByteBuffer.wrap(dataBytes), 0);
+            file.setCursor(dataBytes.length);
+        } finally {
+            lock.unlock();
+            writeLatency.record(System.nanoTime() - start);
         }
     }
 
 
-    /**
-     * this method will allocate the required number of blocks from the freeblock list and also update
-     * the pointers of the inode
+    /***
+     * Creates several files with their contents in one pass: the inodes are
+     * reserved together, all their blocks come from a single allocation so
+     * the files sit next to each other on disk, the data goes out in one
+     * write and the metadata in one journal transaction.  After a crash
+     * either every file of the batch exists or none does.  The files are
+     * left closed.
+     *
+     * @param files Contents by file name, an empty array creates an empty file
+     * @throws IOException If a file already exists, there are not enough free
+     *                     inodes or blocks, a file is too large, the batch
+     *                     does not fit in one buffer or one journal
+     *                     transaction, or the disk cannot be written.  No
+     *                     file is created then.
+     * @throws IllegalArgumentException If a name or its contents are null
      */
-    private int[] allocateBlocksForFile(int iNodeNumber, int numBytes)
-            throws IOException {
+    public void writeBatch(Map<String, byte[]> files) throws IOException, IllegalArgumentException {
+        long start = System.nanoTime();
+        List<String> names = new ArrayList<>(files.keySet());
+        List<ReentrantReadWriteLock> locks = new ArrayList<>();
 
-        int numOfBlocksNeeded = (int) Math.ceil((double) numBytes / 512);
-        int[] blockPointers = new int[numOfBlocksNeeded];
-        int missing = numOfBlocksNeeded;
-        int index = 0;
-        int maximumSize = freeBlockList.getFreeBlockList().length * 8;
+        synchronized (namespaceLock) {
+            int[] iNodeNumbers = new int[names.size()];
+            Set<String> seen = new HashSet<>();
+            for (int i = 0, next = -1; i < iNodeNumbers.length; i++) {
+                if (names.get(i) == null || files.get(names.get(i)) == null) {
+                    throw new IllegalArgumentException("FileSystem::writeBatch: file " + names.get(i) +
+                            " has no name or no contents");
+                }
+                String name = names.get(i).trim();
+                if (nameIndex.containsKey(name) || !seen.add(name)) {
+                    throw new IOException("FileSystem::writeBatch: " + names.get(i) + " already exists");
+                }
+                if (files.get(names.get(i)).length > maxFileSize()) {
+                    throw new IOException("FileSystem::writeBatch: " + names.get(i) +
+                            " exceeds the maximum file size of " + maxFileSize() + " bytes");
+                }
+                next = freeINodes.nextSetBit(next + 1);
+                if (next < 0) {
+                    throw new IOException("FileSystem::writeBatch: not enough free inodes for " +
+                            names.size() + " files");
+                }
+                iNodeNumbers[i] = next;
+            }
 
-        System.out.println("Need to allocate " + numOfBlocksNeeded + " data blocks for iNodeNumber "+iNodeNumber);
+            // one allocation covers the data and indirect blocks of every file
+            BlockMap[] blockMaps = new BlockMap[names.size()];
+            int[] dataBlockCounts = new int[names.size()];
+            long totalBlocks = 0;
+            long totalDataBlocks = 0;
+            for (int i = 0; i < blockMaps.length; i++) {
+                INode iNode = new INode();
+                iNode.setFileName(names.get(i));
+                blockMaps[i] = new BlockMap(journal, iNode);
+                dataBlockCounts[i] = blocksFor(files.get(names.get(i)).length);
+                totalDataBlocks += dataBlockCounts[i];
+                totalBlocks += dataBlockCounts[i] + blockMaps[i].indirectBlocksFor(dataBlockCounts[i]);
+            }
+            if (totalDataBlocks * blockSize > Integer.MAX_VALUE) {
+                throw new IOException("FileSystem::writeBatch: " + (totalDataBlocks * blockSize) +
+                        " bytes of data do not fit in one buffer");
+            }
+            int[] allocated = allocateBlocks("writeBatch", (int) totalBlocks);
 
-        for(int i = 0; i < maximumSize; i++){
-            if(isBlockFree(i)){
-                blockPointers[index] = i;
-                freeBlockList.allocateBlock(i);
-                index++;
-                missing--;
+            TreeSet<Integer> stripes = new TreeSet<>();
+            for (int iNodeNumber : iNodeNumbers) {
+                stripes.add(iNodeNumber % NUM_LOCK_STRIPES);
+            }
+            for (int stripe : stripes) {
+                iNodeLocks[stripe].writeLock().lock();
+                locks.add(iNodeLocks[stripe]);
             }
-            // found enough free blocks, no need to keep looking
-            if(missing <= 0){
-                break;
+
+            try {
+                int[][] fileBlocks = new int[names.size()][];
+                int[] dataBlocks = new int[(int) totalDataBlocks];
+                ByteBuffer data = ByteBuffer.allocate((int) totalDataBlocks * blockSize);
+                try {
+                    for (int i = 0, used = 0; i < fileBlocks.length; i++) {
+                        int count = dataBlockCounts[i] + blockMaps[i].indirectBlocksFor(dataBlockCounts[i]);
+                        fileBlocks[i] = Arrays.copyOfRange(allocated, used, used + count);
+                        used += count;
+
+                        // each file starts on a fresh block, the rest of its last block stays zero
+                        int[] mapped = blockMaps[i].extend(0, dataBlockCounts[i], fileBlocks[i]);
+                        System.arraycopy(mapped, 0, dataBlocks, data.position() / blockSize, mapped.length);
+                        byte[] contents = files.get(names.get(i));
+                        data.put(contents);
+                        data.position(dataBlockCounts[i] * blockSize + data.position() - contents.length);
+                        if (contents.length > 0) {
+                            setFileLength(blockMaps[i].getINode(), contents.length);
+                        }
+                    }
+
+                    // adjacent blocks of all the files are merged into single transfers
+                    diskDevice.writeBlocks(dataBlocks, data.flip());
+
+                    // every file goes into the same transaction, or none does
+                    INode[] iNodes = new INode[blockMaps.length];
+                    List<Map<Integer, int[]>> pointerBlocks = new ArrayList<>();
+                    for (int i = 0; i < blockMaps.length; i++) {
+                        iNodes[i] = blockMaps[i].getINode();
+                        pointerBlocks.add(blockMaps[i].takeDirtyBlocks());
+                    }
+                    journal.logAll(iNodeNumbers, iNodes, pointerBlocks, fileBlocks);
+                } catch (IOException | RuntimeException e) {
+                    // nothing was logged, so the blocks can go straight back
+                    for (int block : allocated) {
+                        freeBlockList.deallocateBlock(block);
+                    }
+                    throw e;
+                }
+
+                // the names and inodes are only taken once the files are logged
+                for (int i = 0; i < names.size(); i++) {
+                    freeINodes.clear(iNodeNumbers[i]);
+                    nameIndex.put(names.get(i).trim(), iNodeNumbers[i]);
+                }
+            } finally {
+                for (ReentrantReadWriteLock lock : locks) {
+                    lock.writeLock().unlock();
+                }
             }
         }
 
-        printBlocksAllocated(iNodeNumber, blockPointers);
+        journal.commit();
+        writeBatchLatency.record(System.nanoTime() - start);
+    }
 
-        // setting the pointers to the data blocks of the file
-        for(int i = 0; i < blockPointers.length; i++){
-            iNodeForFile.setBlockPointer(i, blockPointers[i]);
+    /***
+     * Reads bytes of the file starting at <code>offset</code> into
+     * <code>dst</code>, without moving the file's cursor
+     *
+     * @param dst Buffer the bytes are read into, up to its remaining space
+     * @param offset Position in the file of the first byte to read
+     * @return The number of bytes read, or -1 if <code>offset</code> is at or
+     *         past the end of the file
+     * @throws IOException If the file descriptor is not open or the disk cannot be read
+     * @throws IllegalArgumentException If <code>offset</code> is negative
+     */
+    public int read(int fileDescriptor, ByteBuffer dst, long offset)
+            throws IOException, IllegalArgumentException {
+        long start = System.nanoTime();
+        checkOffset("read", offset);
+        OpenFile file = getOpenFile("read", fileDescriptor);
+
+        Lock lock = iNodeLock(file.getINodeNumber()).readLock();
+        lock.lock();
+        try {
+            checkStillOpen("read", fileDescriptor, file);
+            return readAt(file.getBlockMap(), dst, offset);
+        } finally {
+            lock.unlock();
+            readLatency.record(System.nanoTime() - start);
         }
+    }
 
-        // setting the size to the amount of data blocks for the file
-        iNodeForFile.setSize(blockPointers.length);
+    /***
+     * Writes the remaining bytes of <code>src</code> into the file starting
+     * at <code>offset</code>, without moving the file's cursor.  The file
+     * grows as needed; a gap between its old end and <code>offset</code>
+     * reads back as zeros.
+     *
+     * @param src Buffer holding the bytes to write
+     * @param offset Position in the file of the first byte to write
+     * @return The number of bytes written
+     * @throws IOException If the file descriptor is not open, the file would
+     *                     grow past its maximum size or the disk is full
+     * @throws IllegalArgumentException If <code>offset</code> is negative
+     */
+    public int write(int fileDescriptor, ByteBuffer src, long offset)
+            throws IOException, IllegalArgumentException {
+        long start = System.nanoTime();
+        checkOffset("write", offset);
+        OpenFile file = getOpenFile("write", fileDescriptor);
 
-        // checking if block pointer values have ACTUALLY updated
-        System.out.print("the block pointers allocated and updated for inodeNumber: " + iNodeNumber + " = [");
-        for(int i = 0; i < blockPointers.length; i++){
-            if(i == blockPointers.length-1){
-                System.out.print(iNodeForFile.getBlockPointer(i));
-            }
-            else{
-                System.out.print(iNodeForFile.getBlockPointer(i) + ", ");
+        Lock lock = iNodeLock(file.getINodeNumber()).writeLock();
+        lock.lock();
+        try {
+            checkStillOpen("write", fileDescriptor, file);
+            return writeAt(file, src, offset);
+        } finally {
+            lock.unlock();
+            writeLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /***
+     * Reads bytes of the file at its cursor into <code>dst</code> and moves
+     * the cursor past them
+     *
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException If the file descriptor is not open or the disk cannot be read
+     */
+    public int read(int fileDescriptor, ByteBuffer dst) throws IOException {
+        OpenFile file = getOpenFile("read", fileDescriptor);
+
+        synchronized (file) {
+            int count = read(fileDescriptor, dst, file.getCursor());
+            if (count > 0) {
+                file.setCursor(file.getCursor() + count);
             }
+            return count;
         }
-        System.out.println("]");
+    }
 
-        return blockPointers;
+    /***
+     * Writes the remaining bytes of <code>src</code> into the file at its
+     * cursor and moves the cursor past them
+     *
+     * @return The number of bytes written
+     * @throws IOException If the file descriptor is not open, the file would
+     *                     grow past its maximum size or the disk is full
+     */
+    public int write(int fileDescriptor, ByteBuffer src) throws IOException {
+        OpenFile file = getOpenFile("write", fileDescriptor);
+
+        synchronized (file) {
+            int count = write(fileDescriptor, src, file.getCursor());
+            file.setCursor(file.getCursor() + count);
+            return count;
+        }
     }
 
-    public boolean isBlockFree (int blockNumber){
-        int blockNum = blockNumber / 8;
-        int offset = blockNumber % 8;
-        return (freeBlockList.getFreeBlockList()[blockNum] & (1 << offset)) == 0;
+    /***
+     * Returns the position in the file the next cursor based read or write uses
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public long getPosition(int fileDescriptor) throws IOException {
+        OpenFile file = getOpenFile("getPosition", fileDescriptor);
+        synchronized (file) {
+            return file.getCursor();
+        }
+    }
+
+    /***
+     * Moves the cursor of the file.  It may be moved past the end of the file,
+     * a later write there fills the gap with zeros.
+     *
+     * @throws IOException If the file descriptor is not open
+     * @throws IllegalArgumentException If <code>position</code> is negative
+     */
+    public void seek(int fileDescriptor, long position) throws IOException, IllegalArgumentException {
+        checkOffset("seek", position);
+        OpenFile file = getOpenFile("seek", fileDescriptor);
+        synchronized (file) {
+            file.setCursor(position);
+        }
     }
 
-    public void printBlocksAllocated(int iNodeNumber, int[] blockPointers){
-        System.out.print("blocks allocated for iNodeNumber "+iNodeNumber+ " = [");
-        for(int i = 0; i < blockPointers.length; i++){
-            if (i == blockPointers.length-1){
-                System.out.print(blockPointers[i]);
+    /***
+     * Returns the length of the file in bytes
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public long size(int fileDescriptor) throws IOException {
+        OpenFile file = getOpenFile("size", fileDescriptor);
+
+        Lock lock = iNodeLock(file.getINodeNumber()).readLock();
+        lock.lock();
+        try {
+            checkStillOpen("size", fileDescriptor, file);
+            return fileLength(file.getINode());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Shrinks the file to <code>size</code> bytes, freeing the data blocks
+     * past the new end.  A file that is already that short is left alone.
+     *
+     * @throws IOException If the file descriptor is not open
+     * @throws IllegalArgumentException If <code>size</code> is negative
+     */
+    public void truncate(int fileDescriptor, long size) throws IOException, IllegalArgumentException {
+        long start = System.nanoTime();
+        checkOffset("truncate", size);
+        OpenFile file = getOpenFile("truncate", fileDescriptor);
+
+        Lock lock = iNodeLock(file.getINodeNumber()).writeLock();
+        lock.lock();
+        try {
+            checkStillOpen("truncate", fileDescriptor, file);
+            truncateFile(file, size);
+        } finally {
+            lock.unlock();
+            truncateLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    /***
+     * Returns an <code>InputStream</code> reading the file from its cursor.
+     * Closing the stream closes the file descriptor.
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public InputStream newInputStream(int fileDescriptor) throws IOException {
+        getOpenFile("newInputStream", fileDescriptor);
+        return new FileSystemInputStream(this, fileDescriptor);
+    }
+
+    /***
+     * Returns an <code>OutputStream</code> writing the file from its cursor.
+     * Closing the stream closes the file descriptor.
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public OutputStream newOutputStream(int fileDescriptor) throws IOException {
+        getOpenFile("newOutputStream", fileDescriptor);
+        return new FileSystemOutputStream(this, fileDescriptor);
+    }
+
+    /***
+     * Returns a <code>SeekableByteChannel</code> on the file whose position
+     * is the file's cursor.  Closing the channel closes the file descriptor.
+     *
+     * @throws IOException If the file descriptor is not open
+     */
+    public SeekableByteChannel newByteChannel(int fileDescriptor) throws IOException {
+        getOpenFile("newByteChannel", fileDescriptor);
+        return new FileSystemChannel(this, fileDescriptor);
+    }
+
+    private static void checkOffset(String operation, long offset) throws IllegalArgumentException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("FileSystem::" + operation +
+                    ": offset " + offset + " is negative");
+        }
+    }
+
+    /***
+     * Returns the length of the file in bytes
+     */
+    private static long fileLength(INode iNode) {
+        // an inode that was never written to has a size of -1
+        return Math.max(iNode.getSize(), 0);
+    }
+
+    /***
+     * Records a new length of the file in its inode
+     */
+    private static void setFileLength(INode iNode, long length) {
+        iNode.setSize((int) length);
+    }
+
+    /***
+     * Returns the number of data blocks the file holds, the last one may
+     * be partly used
+     */
+    private int numBlocks(INode iNode) {
+        return blocksFor(fileLength(iNode));
+    }
+
+    /***
+     * Returns the number of data blocks needed to hold <code>length</code> bytes
+     */
+    private int blocksFor(long length) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /***
+     * Returns the largest length a file can grow to, limited by its block
+     * map and by the inode's size field
+     */
+    private long maxFileSize() {
+        return Math.min(BlockMap.maxBlocks(blockSize) * blockSize, Integer.MAX_VALUE);
+    }
+
+    /***
+     * Reads the file into <code>dst</code> from <code>offset</code>, only
+     * touching the blocks that hold the requested bytes.  The caller holds
+     * the inode's lock.
+     */
+    private int readAt(BlockMap blockMap, ByteBuffer dst, long offset) throws IOException {
+        long length = fileLength(blockMap.getINode());
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (offset >= length) {
+            return -1;
+        }
+
+        int count = (int) Math.min(dst.remaining(), length - offset);
+        int firstBlock = (int) (offset / blockSize);
+        int lastBlock = (int) ((offset + count - 1) / blockSize);
+        int skip = (int) (offset % blockSize);
+        int[] blocks = blockMap.get(firstBlock, lastBlock + 1);
+
+        if (skip == 0 && count % blockSize == 0) {
+            // whole blocks go straight into the caller's buffer
+            diskDevice.readBlocks(blocks, dst);
+        } else {
+            ByteBuffer blockData = scratchBlocks("read", blocks.length);
+            diskDevice.readBlocks(blocks, blockData);
+            dst.put(blockData.flip().position(skip).limit(skip + count));
+        }
+
+        bytesRead.add(count);
+        return count;
+    }
+
+    /***
+     * Writes <code>src</code> into the file at <code>offset</code>, growing
+     * it as needed.  Blocks that are only partly overwritten are read first
+     * so the bytes around the written range survive, and everything between
+     * the old end of the file and <code>offset</code> is zeroed.  A write
+     * that grows the file logs the new inode to the journal.  The caller
+     * holds the inode's write lock.
+     */
+    private int writeAt(OpenFile file, ByteBuffer src, long offset) throws IOException {
+        INode iNode = file.getINode();
+        int count = src.remaining();
+        if (count == 0) {
+            return 0;
+        }
+
+        long end = offset + count;
+        if (end > maxFileSize()) {
+            throw new IOException("FileSystem::write: writing up to byte " + end +
+                    " exceeds the maximum file size of " + maxFileSize() + " bytes");
+        }
+
+        long oldLength = fileLength(iNode);
+        int firstBlock = (int) (offset / blockSize);
+        int lastBlock = (int) ((end - 1) / blockSize);
+        int oldBlocks = numBlocks(iNode);
+        int[] allocated = allocateBlocksForFile(file, lastBlock + 1);
+
+        try {
+            /** a write past the end also rewrites the gap from the old end of the
+                file, so a block the file only partly used gets its stale tail cleared **/
+            int startBlock = (int) Math.min(firstBlock, oldLength / blockSize);
+            if (startBlock < firstBlock) {
+                zeroGap(file.getBlockMap().get(startBlock, firstBlock), (int) (oldLength % blockSize));
+                startBlock = firstBlock;
+            }
+            long startOffset = (long) startBlock * blockSize;
+            int[] blocks = file.getBlockMap().get(startBlock, lastBlock + 1);
+
+            if (offset == startOffset && count % blockSize == 0) {
+                // whole blocks with no gap before them go straight from the caller's buffer
+                diskDevice.writeBlocks(blocks, src);
+            } else {
+                writeAround(blocks, startOffset, oldLength, src, offset);
             }
-            else {
-                System.out.print(blockPointers[i] + ", ");
+        } catch (IOException | RuntimeException e) {
+            // nothing was logged yet, so the file gives up its new blocks and they go straight back
+            if (allocated.length > 0) {
+                file.getBlockMap().truncate(lastBlock + 1, oldBlocks);
+                for (int block : allocated) {
+                    freeBlockList.deallocateBlock(block);
+                }
             }
+            throw e;
         }
-        System.out.print("]");
-        System.out.println();
+
+        // overwriting bytes inside the file leaves the metadata alone
+        if (end > fileLength(iNode)) {
+            setFileLength(iNode, end);
+            journal.log(file.getINodeNumber(), iNode, file.getBlockMap().takeDirtyBlocks(), allocated, new int[0]);
+        }
+
+        bytesWritten.add(count);
+        return count;
     }
 
-    /*
-    [valery] for testing purposes: to check if allocation is working properly for first 8 blocks of data
-    this method will be deleted before submitting assignment
+    /***
+     * Writes <code>src</code> at <code>offset</code> into the blocks of a
+     * file starting at <code>startOffset</code>, keeping the file bytes
+     * around it and zeroing the gap past the old end of the file
      */
-    public void printFirst8Blocks(){
-        for (int i = 0; i < 8; i++){
-            System.out.println((freeBlockList.getFreeBlockList()[0] & (1 << i)) != 0);
+    private void writeAround(int[] blocks, long startOffset, long oldLength, ByteBuffer src, long offset)
+            throws IOException {
+        int count = src.remaining();
+        long end = offset + count;
+        ByteBuffer blockData = scratchBlocks("write", blocks.length);
+        Arrays.fill(blockData.array(), 0, blockData.limit(), (byte) 0);
+
+        // only file bytes that sit in the same blocks as the written range need to be read
+        boolean readFirstBlock = startOffset < Math.min(offset, oldLength);
+        boolean readLastBlock = end < oldLength && end % blockSize != 0;
+        if (readFirstBlock) {
+            diskDevice.readDataBlock(blocks[0], blockData.position(0));
         }
+        if (readLastBlock && !(readFirstBlock && blocks.length == 1)) {
+            diskDevice.readDataBlock(blocks[blocks.length - 1], blockData.position((blocks.length - 1) * blockSize));
+        }
+        blockData.position(0);
+        if (offset > oldLength) {
+            int gapStart = (int) (Math.max(oldLength, startOffset) - startOffset);
+            Arrays.fill(blockData.array(), gapStart, (int) (offset - startOffset), (byte) 0);
+        }
+
+        int skip = (int) (offset - startOffset);
+        blockData.put(skip, src, src.position(), count);
+        src.position(src.position() + count);
+
+        // write all the blocks in one go, adjacent blocks are merged into single transfers
+        diskDevice.writeBlocks(blocks, blockData);
     }
 
-    /**
-     * get blocks method will get all the data blocks from the inode to be deleted
-     * using those pointers, deallocate method will call deallocateBlock for each of them
-     */
-    private void deallocateBlocksForFile(int iNodeNumber) {
-        // You may add any private method after this comment
-        try{
-            int[] blocks = getBlocks(iNodeNumber);
-            System.out.print("blocks: [");
-            for(int i = 0; i < blocks.length; i++){
-                freeBlockList.deallocateBlock(blocks[i]);
-                if(i == blocks.length-1){
-                    System.out.print(blocks[i]);
-                }
-                else{
-                    System.out.print(blocks[i] + ", ");
-                }
+    /***
+     * Zeroes the blocks of a gap past the old end of a file, a scratch
+     * buffer full at a time so a far seek does not need a buffer as large
+     * as the gap.  The first <code>keep</code> bytes of the first block
+     * are still file data and survive.
+     */
+    private void zeroGap(int[] blocks, int keep) throws IOException {
+        int chunk = Math.max(1, MAX_SCRATCH_SIZE / blockSize);
+        for (int from = 0; from < blocks.length; from += chunk) {
+            int to = Math.min(blocks.length, from + chunk);
+            ByteBuffer blockData = scratch((to - from) * blockSize);
+            Arrays.fill(blockData.array(), 0, blockData.limit(), (byte) 0);
+            if (from == 0 && keep > 0) {
+                diskDevice.readDataBlock(blocks[0], blockData);
+                Arrays.fill(blockData.array(), keep, blockSize, (byte) 0);
+                blockData.position(0);
             }
-            System.out.println("] deleted for inode: "+iNodeNumber);
-        } catch (IOException ioException){
-            System.out.println("Unable to deallocate blocks for iNodeNumber " +iNodeNumber);
+            diskDevice.writeBlocks(Arrays.copyOfRange(blocks, from, to), blockData);
         }
     }
 
+    /***
+     * Returns a scratch buffer for <code>numBlocks</code> whole blocks, see
+     * <code>scratch</code>
+     *
+     * @throws IOException If the blocks take more bytes than a buffer holds
+     */
+    private ByteBuffer scratchBlocks(String operation, int numBlocks) throws IOException {
+        long size = (long) numBlocks * blockSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("FileSystem::" + operation + ": " + numBlocks +
+                    " blocks do not fit in one buffer");
+        }
+        return scratch((int) size);
+    }
+
+    /***
+     * Returns this thread's scratch buffer cleared and limited to
+     * <code>size</code> bytes, or a new buffer past <code>MAX_SCRATCH_SIZE</code>.
+     * The contents are whatever the last caller left.
+     */
+    private static ByteBuffer scratch(int size) {
+        if (size > MAX_SCRATCH_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = SCRATCH.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.min(MAX_SCRATCH_SIZE, Math.max(size, buffer.capacity() * 2)));
+            SCRATCH.set(buffer);
+        }
+        return buffer.clear().limit(size);
+    }
+
+    /***
+     * Shrinks the file to <code>size</code> bytes and frees the data blocks
+     * it no longer needs.  The journal hands the blocks back to the free
+     * block list as it logs the change.  The caller holds the inode's write lock.
+     */
+    private void truncateFile(OpenFile file, long size) throws IOException {
+        INode iNode = file.getINode();
+        if (size >= fileLength(iNode)) {
+            return;
+        }
+
+        BlockMap blockMap = file.getBlockMap();
+        checkTruncateFits("truncate", blockMap, size);
+        int[] freed = blockMap.truncate(numBlocks(iNode), blocksFor(size));
+        setFileLength(iNode, size);
+        journal.log(file.getINodeNumber(), iNode, blockMap.takeDirtyBlocks(), new int[0], freed);
+    }
+
+
     /**
-        Searches for all the data blocks associated with an inode and returns a list of those blocks
-     **/
-    private int[] getBlocks(int inodeNumber) throws IOException{
-        INode tmpINode = null;
-        int numOfDataBlocks = -1;
-        for(int i = 0; i < Disk.NUM_INODES; i++){
-            if(i == inodeNumber){
-                tmpINode = diskDevice.readInode(i);
-                numOfDataBlocks = tmpINode.getSize();
-                break;
-            }
-        }
-
-        int[] blocksToDelete = new int [numOfDataBlocks];
-
-        if(numOfDataBlocks != -1){
-            for(int i = 0; i < Disk.NUM_INODES; i++){
-                if(i == inodeNumber){
-                    tmpINode = diskDevice.readInode(i);
-                    // get each data block that will be deleted
-                    for(int j = 0; j < numOfDataBlocks; j++){
-                        blocksToDelete[j] = tmpINode.getBlockPointer(j);
-                    }
+     * this method will allocate the required number of blocks from the freeblock list and also update
+     * the pointers of the inode so the file holds <code>numBlocks</code> data blocks
+     * returns every block taken from the free block list, data and indirect
+     */
+    private int[] allocateBlocksForFile(OpenFile file, int numBlocks)
+            throws IOException {
+        int iNodeNumber = file.getINodeNumber();
+        INode iNodeForFile = file.getINode();
+        int oldBlocks = numBlocks(iNodeForFile);
+
+        if (numBlocks <= oldBlocks) {
+            return new int[0];
+        }
+        // indirect blocks come out of the same allocation as the data blocks
+        int numOfBlocksNeeded = numBlocks - oldBlocks +
+                file.getBlockMap().indirectBlocksFor(numBlocks) -
+                file.getBlockMap().indirectBlocksFor(oldBlocks);
+
+        int[] blockPointers = allocateBlocks("allocateBlocksForFile", numOfBlocksNeeded);
+
+        // the growth is logged as one operation, so it must fit in the journal before the file changes
+        BlockMap blockMap = file.getBlockMap();
+        try {
+            checkFits("write", blockMap.pointerBlocksChanged(oldBlocks, numBlocks),
+                    Journal.countExtents(blockPointers));
+        } catch (IOException e) {
+            for (int block : blockPointers) {
+                freeBlockList.deallocateBlock(block);
+            }
+            throw e;
+        }
+
+        // setting the pointers to the new data blocks at the end of the file
+        blockMap.extend(oldBlocks, numBlocks, blockPointers);
+
+        // building the message costs more than the allocation, so only when someone is listening
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("allocated " + numOfBlocksNeeded + " blocks " + Arrays.toString(blockPointers) +
+                    " for iNodeNumber " + iNodeNumber + ", data blocks now " +
+                    Arrays.toString(blockMap.get(oldBlocks, numBlocks)));
+        }
+
+        return blockPointers;
+    }
+
+    /***
+     * Checks, before anything changes, that an operation changing
+     * <code>pointerBlocks</code> indirect blocks and allocating or freeing
+     * <code>extents</code> runs of blocks fits in one journal transaction
+     *
+     * @param operation Name of the calling operation, for the error message
+     * @throws IOException If it does not fit
+     */
+    private void checkFits(String operation, int pointerBlocks, int extents) throws IOException {
+        if (!journal.fits(pointerBlocks, extents)) {
+            throw new IOException("FileSystem::" + operation + ": changing " + pointerBlocks +
+                    " indirect blocks and " + extents + " runs of blocks does not fit in a journal of " +
+                    geometry.getJournalSize() + " bytes");
+        }
+    }
+
+    /***
+     * Checks that shrinking a file to <code>size</code> bytes fits in one
+     * journal transaction, counting the runs of the blocks it would free
+     */
+    private void checkTruncateFits(String operation, BlockMap blockMap, long size) throws IOException {
+        int from = numBlocks(blockMap.getINode());
+        int to = blocksFor(size);
+        int droppedIndirect = blockMap.indirectBlocksFor(from) - blockMap.indirectBlocksFor(to);
+        checkFits(operation, blockMap.pointerBlocksChanged(from, to),
+                Journal.countExtents(blockMap.get(to, from)) + droppedIndirect);
+    }
+
+    /***
+     * Takes <code>count</code> blocks from the free block list.  Blocks freed
+     * by operations that have not committed yet are still allocated, so when
+     * too few blocks are free those operations are committed and the
+     * allocation is tried once more.
+     *
+     * @param operation Name of the calling operation, for the error message
+     * @throws IOException If fewer than <code>count</code> blocks are free
+     */
+    private int[] allocateBlocks(String operation, int count) throws IOException {
+        try {
+            return freeBlockList.allocateBlocks(count);
+        } catch (IllegalArgumentException e) {
+            if (!journal.hasPendingFrees()) {
+                throw new IOException("FileSystem::" + operation + ": " + e.getMessage());
+            }
+        }
+        journal.commit();
+        try {
+            return freeBlockList.allocateBlocks(count);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("FileSystem::" + operation + ": " + e.getMessage());
+        }
+    }
+
+    /***
+     * Selects how blocks are picked for files written from now on
+     *
+     * @param policy The allocation policy, <code>EXTENT</code> by default
+     */
+    public void setAllocationPolicy(AllocationPolicy policy) {
+        freeBlockList.setAllocationPolicy(policy);
+    }
+
+    /***
+     * Reports how the free space of the disk is broken up: the number of
+     * free runs, the largest one and how many runs fall in each length bucket
+     */
+    public FragmentationReport getFragmentationReport() {
+        return freeBlockList.getFragmentationReport();
+    }
+
+    /***
+     * Returns the inodes of all files, in no particular order.  A file
+     * deleted afterwards is skipped by the methods below that take its inode.
+     */
+    int[] fileINodes() {
+        return nameIndex.values().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /***
+     * Returns the disk blocks of a file, data and indirect, in the order a
+     * fresh write lays them out, see <code>BlockMap.layout</code>
+     *
+     * @return The blocks, or null if the inode holds no file
+     * @throws IOException If an indirect block cannot be read
+     */
+    int[] blocksOf(int iNodeNumber) throws IOException {
+        Lock lock = iNodeLock(iNodeNumber).readLock();
+        lock.lock();
+        try {
+            BlockMap blockMap = blockMapOf(iNodeNumber);
+            INode iNode = blockMap.getINode();
+            return iNode.getFileName() == null ? null : blockMap.layout(numBlocks(iNode));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Reads a whole file through <code>buffer</code>, a buffer full at a
+     * time, and drops the bytes; timing it measures read throughput
+     *
+     * @return The number of bytes read, 0 if the inode holds no file
+     * @throws IOException If the disk cannot be read
+     */
+    long readFile(int iNodeNumber, ByteBuffer buffer) throws IOException {
+        Lock lock = iNodeLock(iNodeNumber).readLock();
+        lock.lock();
+        try {
+            BlockMap blockMap = blockMapOf(iNodeNumber);
+            if (blockMap.getINode().getFileName() == null) {
+                return 0;
+            }
+            long offset = 0;
+            int count;
+            while ((count = readAt(blockMap, buffer.clear(), offset)) > 0) {
+                offset += count;
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Moves a file into one run of free blocks, laid out as a fresh write
+     * would lay it, if its blocks are scattered or if a run that holds it
+     * is free nearer the front of the disk.  The data is copied to the new
+     * blocks and forced out first; then the new pointers, the new blocks
+     * and the release of the old ones are logged as one operation and
+     * committed.  A crash therefore leaves the file whole, either where it
+     * was or where it went.  Open handles share the moved block map.
+     *
+     * @return The number of blocks moved, 0 if the file was left alone
+     * @throws IOException If the file cannot be copied or the move cannot be logged
+     */
+    int relocateFile(int iNodeNumber) throws IOException {
+        long start = System.nanoTime();
+        Lock lock = iNodeLock(iNodeNumber).writeLock();
+        lock.lock();
+        try {
+            BlockMap blockMap = blockMapOf(iNodeNumber);
+            INode iNode = blockMap.getINode();
+            int numBlocks = numBlocks(iNode);
+            if (iNode.getFileName() == null || numBlocks == 0) {
+                return 0;
+            }
+
+            // a file whose move does not fit in one transaction stays where it is
+            int[] oldBlocks = blockMap.layout(numBlocks);
+            if (!journal.fits(blockMap.indirectBlocksFor(numBlocks), oldBlocks.length + 1)) {
+                return 0;
+            }
+            int[] newBlocks = freeBlockList.allocateRunBefore(oldBlocks.length,
+                    isRun(oldBlocks) ? oldBlocks[0] : geometry.getNumBlocks());
+            if (newBlocks == null) {
+                return 0;
+            }
+
+            try {
+                copyDataBlocks(blockMap.get(0, numBlocks), oldBlocks, newBlocks);
+                diskDevice.force();
+            } catch (IOException | RuntimeException e) {
+                // nothing was logged yet, so the blocks can go straight back
+                for (int block : newBlocks) {
+                    freeBlockList.deallocateBlock(block);
                 }
+                throw e;
             }
+
+            int[] released = blockMap.relocate(numBlocks, newBlocks);
+            journal.log(iNodeNumber, iNode, blockMap.takeDirtyBlocks(), newBlocks, released);
+            journal.commit();
+            blocksRelocated.add(newBlocks.length);
+
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("relocated iNodeNumber " + iNodeNumber + " from " + Arrays.toString(released) +
+                        " to blocks " + newBlocks[0] + " to " + newBlocks[newBlocks.length - 1]);
+            }
+            return newBlocks.length;
+        } finally {
+            lock.unlock();
+            relocateLatency.record(System.nanoTime() - start);
         }
-        return blocksToDelete;
     }
 
-    // <!-- For testing purposes --!>
-    public int getNumberOfBlocksAllocated(){
-        int result = 0;
-        for (int i = 0; i < freeBlockList.getFreeBlockList().length * 8; i++){
-            if(!isBlockFree(i)){
-                result++;
+    /***
+     * Copies the data blocks of a file to the places <code>newLayout</code>
+     * gives them, a scratch buffer full at a time.  The data blocks sit in
+     * <code>oldLayout</code> in file order between the indirect blocks.
+     */
+    private void copyDataBlocks(int[] dataBlocks, int[] oldLayout, int[] newLayout) throws IOException {
+        int[] targets = new int[dataBlocks.length];
+        for (int k = 0, i = 0; k < oldLayout.length && i < dataBlocks.length; k++) {
+            if (oldLayout[k] == dataBlocks[i]) {
+                targets[i++] = newLayout[k];
             }
         }
-        return result;
+
+        int chunk = Math.max(1, MAX_SCRATCH_SIZE / blockSize);
+        for (int from = 0; from < dataBlocks.length; from += chunk) {
+            int to = Math.min(dataBlocks.length, from + chunk);
+            ByteBuffer blockData = scratch((to - from) * blockSize);
+            diskDevice.readBlocks(Arrays.copyOfRange(dataBlocks, from, to), blockData);
+            diskDevice.writeBlocks(Arrays.copyOfRange(targets, from, to), blockData.flip());
+        }
+    }
+
+    /***
+     * Tells whether <code>blocks</code> are consecutive block numbers
+     */
+    private static boolean isRun(int[] blocks) {
+        for (int i = 1; i < blocks.length; i++) {
+            if (blocks[i] != blocks[i - 1] + 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /***
+     * Returns the block map of an inode, shared with its open handles if it
+     * has any.  The caller holds the inode's lock.
+     */
+    private BlockMap blockMapOf(int iNodeNumber) throws IOException {
+        BlockMap blockMap = findOpenBlockMap(iNodeNumber);
+        return blockMap != null ? blockMap : new BlockMap(journal, journal.readInode(iNodeNumber));
+    }
+
+    public boolean isBlockFree (int blockNumber){
+        return freeBlockList.isBlockFree(blockNumber);
+    }
+
+    /**
+     * the block map hands back all the data and indirect blocks of the inode to be deleted
+     * they are returned so the journal can deallocate them when it logs the delete
+     */
+    private int[] deallocateBlocksForFile(int iNodeNumber, BlockMap blockMap) throws IOException {
+        int[] blocks = blockMap.truncate(numBlocks(blockMap.getINode()), 0);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("blocks " + Arrays.toString(blocks) + " deleted for inode: " + iNodeNumber);
+        }
+        return blocks;
+    }
+
+    // <!-- For testing purposes --!>
+    public int getNumberOfBlocksAllocated(){
+        return freeBlockList.getNumberOfBlocksAllocated();
     }
 }
@@ -0,0 +1,84 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+
+/**
+ * <code>SeekableByteChannel</code> over an open file of a
+ * <code>FileSystem</code>.  The channel's position is the file's cursor;
+ * closing the channel closes the file descriptor.
+ */
+class FileSystemChannel implements SeekableByteChannel {
+    private final FileSystem fileSystem;
+    private final int fileDescriptor;
+    private volatile boolean open;
+
+    FileSystemChannel(FileSystem fileSystem, int fileDescriptor) {
+        this.fileSystem = fileSystem;
+        this.fileDescriptor = fileDescriptor;
+        this.open = true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        return fileSystem.read(fileDescriptor, dst);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        return fileSystem.write(fileDescriptor, src);
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return fileSystem.getPosition(fileDescriptor);
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        fileSystem.seek(fileDescriptor, newPosition);
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return fileSystem.size(fileDescriptor);
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        ensureOpen();
+        fileSystem.truncate(fileDescriptor, size);
+        if (fileSystem.getPosition(fileDescriptor) > size) {
+            fileSystem.seek(fileDescriptor, size);
+        }
+        return this;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (open) {
+            open = false;
+            fileSystem.close(fileDescriptor);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
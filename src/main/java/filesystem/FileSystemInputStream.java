@@ -0,0 +1,71 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * <code>InputStream</code> over an open file of a <code>FileSystem</code>.
+ * Reads start at the file's cursor and move it along; closing the stream
+ * closes the file descriptor.
+ */
+class FileSystemInputStream extends InputStream {
+    private final FileSystem fileSystem;
+    private final int fileDescriptor;
+    private boolean closed;
+
+    FileSystemInputStream(FileSystem fileSystem, int fileDescriptor) {
+        this.fileSystem = fileSystem;
+        this.fileDescriptor = fileDescriptor;
+        this.closed = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        if (length == 0) {
+            return 0;
+        }
+        return fileSystem.read(fileDescriptor, ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        ensureOpen();
+        if (n <= 0) {
+            return 0;
+        }
+        long position = fileSystem.getPosition(fileDescriptor);
+        long skipped = Math.min(n, Math.max(fileSystem.size(fileDescriptor) - position, 0));
+        fileSystem.seek(fileDescriptor, position + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        ensureOpen();
+        long remaining = fileSystem.size(fileDescriptor) - fileSystem.getPosition(fileDescriptor);
+        return (int) Math.max(Math.min(remaining, Integer.MAX_VALUE), 0);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            fileSystem.close(fileDescriptor);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("FileSystemInputStream::read: stream is closed");
+        }
+    }
+}
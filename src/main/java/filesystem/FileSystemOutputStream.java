@@ -0,0 +1,48 @@
+package filesystem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * <code>OutputStream</code> over an open file of a <code>FileSystem</code>.
+ * Writes start at the file's cursor and move it along; closing the stream
+ * closes the file descriptor, which writes the file's inode to disk.
+ */
+class FileSystemOutputStream extends OutputStream {
+    private final FileSystem fileSystem;
+    private final int fileDescriptor;
+    private boolean closed;
+
+    FileSystemOutputStream(FileSystem fileSystem, int fileDescriptor) {
+        this.fileSystem = fileSystem;
+        this.fileDescriptor = fileDescriptor;
+        this.closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        ensureOpen();
+        fileSystem.write(fileDescriptor, ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            fileSystem.close(fileDescriptor);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("FileSystemOutputStream::write: stream is closed");
+        }
+    }
+}
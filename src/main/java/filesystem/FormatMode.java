@@ -0,0 +1,19 @@
+package filesystem;
+
+
+/**
+ * How a <code>BlockDevice</code> initializes a new disk
+ */
+public enum FormatMode {
+    /**
+     * Sizes the image in one step and writes only the free block list
+     * and the inode table.  The data region is left to the file system
+     * as a sparse, zero-filled range.
+     */
+    QUICK,
+
+    /**
+     * Writes every byte of the image, including all data blocks
+     */
+    FULL
+}
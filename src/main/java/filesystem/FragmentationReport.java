@@ -0,0 +1,82 @@
+package filesystem;
+
+import java.util.Arrays;
+
+
+/**
+ * How the free space of a disk is broken up, taken from the free block
+ * list at one moment.  Free runs are counted in power-of-two buckets of
+ * their length: bucket <code>k</code> holds the runs of
+ * <code>2^k</code> up to <code>2^(k+1) - 1</code> blocks.
+ */
+public final class FragmentationReport {
+    private final int numBlocks;
+    private final int freeBlocks;
+    private final int freeRuns;
+    private final int largestFreeRun;
+    private final long[] runLengthCounts;
+
+    FragmentationReport(int numBlocks, int freeBlocks, int freeRuns, int largestFreeRun, long[] runLengthCounts) {
+        this.numBlocks = numBlocks;
+        this.freeBlocks = freeBlocks;
+        this.freeRuns = freeRuns;
+        this.largestFreeRun = largestFreeRun;
+        this.runLengthCounts = runLengthCounts.clone();
+    }
+
+    /***
+     * Returns the bucket of a run of <code>length</code> blocks
+     */
+    public static int bucketOf(int length) {
+        return 31 - Integer.numberOfLeadingZeros(length);
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public int getFreeBlocks() {
+        return freeBlocks;
+    }
+
+    /***
+     * Returns the number of maximal runs of free blocks
+     */
+    public int getFreeRuns() {
+        return freeRuns;
+    }
+
+    public int getLargestFreeRun() {
+        return largestFreeRun;
+    }
+
+    /***
+     * Returns the number of free runs in each length bucket, see <code>bucketOf</code>
+     */
+    public long[] getRunLengthCounts() {
+        return runLengthCounts.clone();
+    }
+
+    /***
+     * Returns the average length of a free run, 0 on a full disk
+     */
+    public double getMeanFreeRun() {
+        return freeRuns == 0 ? 0 : (double) freeBlocks / freeRuns;
+    }
+
+    /***
+     * Returns the share of free blocks outside the largest free run: 0 when
+     * all free space is one run, close to 1 when it is scattered in single blocks
+     */
+    public double getFragmentation() {
+        return freeBlocks == 0 ? 0 : 1 - ((double) largestFreeRun / freeBlocks);
+    }
+
+    @Override
+    public String toString() {
+        return "FragmentationReport[numBlocks=" + numBlocks + ", freeBlocks=" + freeBlocks +
+                ", freeRuns=" + freeRuns + ", largestFreeRun=" + largestFreeRun +
+                ", fragmentation=" + String.format("%.3f", getFragmentation()) +
+                ", runLengthCounts=" + Arrays.toString(runLengthCounts) + "]";
+    }
+}
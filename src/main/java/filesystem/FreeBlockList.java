@@ -1,15 +1,87 @@
 package filesystem;
 
 
+/**
+ * The free block list.  Every public method is synchronized on the list,
+ * so concurrent allocations and frees never hand out the same block twice.
+ *
+ * A <code>FreeSpaceTree</code> summarizes the bitmap, so searches skip
+ * fully allocated or fully free stretches, and find a run of free blocks
+ * for an extent, in logarithmic time however full the disk is.
+ */
 public class FreeBlockList {
-    private byte[] freeList;
+    private static final int BLOCKS_PER_WORD = Long.SIZE;
+
+    /**
+     * One bit per block, 64 blocks to a word.  Block <code>b</code> is
+     * bit <code>b % 64</code> of word <code>b / 64</code>, which is the
+     * same bit order as the byte list stored on disk read little endian.
+     */
+    private long[] freeList;
+    private final FreeSpaceTree summary;
+    private final int numBlocks;
+    private int numberOfFreeBlocks;
+
+    /**
+     * Next-fit cursor: the block the next search for a free block starts from
+     */
+    private int nextFitCursor;
+
+    private AllocationPolicy allocationPolicy;
+
+    /**
+     * Words of the bitmap looked at by the searches so far, for metrics
+     */
+    private long wordsScanned;
 
     public FreeBlockList() {
-        freeList = new byte[Disk.BYTES_IN_FREE_SPACE_LIST];
+        this(Disk.NUM_BLOCKS);
+    }
+
+    /**
+     * Creates a list of <code>numBlocks</code> blocks, all of them free
+     *
+     * @param numBlocks - number of data blocks on the disk, a multiple of 8
+     */
+    public FreeBlockList(int numBlocks) {
+        this.numBlocks = numBlocks;
+        freeList = new long[(numBlocks + BLOCKS_PER_WORD - 1) / BLOCKS_PER_WORD];
+        summary = new FreeSpaceTree(numBlocks);
+        summary.rebuild(freeList);
+        numberOfFreeBlocks = numBlocks;
+        nextFitCursor = 0;
+        allocationPolicy = AllocationPolicy.EXTENT;
     }
 
-    public byte[] getFreeBlockList() {
-        return freeList;
+    /**
+     * Returns the policy <code>allocateBlocks</code> uses to pick blocks
+     * @return Returns the policy <code>allocateBlocks</code> uses to pick blocks
+     */
+    public synchronized AllocationPolicy getAllocationPolicy() {
+        return allocationPolicy;
+    }
+
+    /**
+     * Sets the policy <code>allocateBlocks</code> uses to pick blocks
+     *
+     * @param policy - the allocation policy to use from now on
+     */
+    public synchronized void setAllocationPolicy(AllocationPolicy policy) {
+        this.allocationPolicy = policy;
+    }
+
+    /**
+     * Returns the free block list in its on-disk form, one bit per block
+     * and eight blocks to a byte
+     *
+     * @return A copy of the free block list as an array of bytes
+     */
+    public synchronized byte[] getFreeBlockList() {
+        byte[] list = new byte[numBlocks / 8];
+        for (int i = 0; i < list.length; i++) {
+            list[i] = (byte) (freeList[i / 8] >>> ((i % 8) * 8));
+        }
+        return list;
     }
 
     /**
@@ -20,14 +92,36 @@ public class FreeBlockList {
      * @throws IllegalArgumentException If the length of <code>list</code> is not equal to
      *                                  the free space list length in bytes
      */
-    public void setFreeBlockList(byte[] list) throws IllegalArgumentException {
-        if (list.length != Disk.BYTES_IN_FREE_SPACE_LIST) {
+    public synchronized void setFreeBlockList(byte[] list) throws IllegalArgumentException {
+        if (list.length != numBlocks / 8) {
             throw new IllegalArgumentException("FreeBlockList:: setFreeBlockList: " +
                     "setting free block list of size " + list.length +
-                    " it should be of length " + Disk.BYTES_IN_FREE_SPACE_LIST);
+                    " it should be of length " + (numBlocks / 8));
+        }
+
+        long[] words = new long[freeList.length];
+        int allocated = 0;
+        for (int i = 0; i < list.length; i++) {
+            words[i / 8] |= (list[i] & 0xFFL) << ((i % 8) * 8);
+        }
+        for (long word : words) {
+            allocated += Long.bitCount(word);
         }
 
-        this.freeList = list;
+        this.freeList = words;
+        summary.rebuild(words);
+        this.numberOfFreeBlocks = numBlocks - allocated;
+        this.nextFitCursor = 0;
+    }
+
+    /**
+     * Returns whether the block given by <code>whichBlock</code> is free
+     *
+     * @param whichBlock - block to check
+     * @return true if the block is free, false if it is allocated
+     */
+    public synchronized boolean isBlockFree(int whichBlock) {
+        return (freeList[whichBlock >>> 6] & (1L << whichBlock)) == 0;
     }
 
     /**
@@ -36,24 +130,24 @@ public class FreeBlockList {
      * @param whichBlock - block to allocate
      */
 
-    public void allocateBlock(int whichBlock) {
-        int blockNum = (int) (whichBlock / 8);
-        int offset = whichBlock % 8;
-
+    public synchronized void allocateBlock(int whichBlock) {
         /**
-         * Extract the correct byte in which the block falls
-         *
-         * Blocks are arranged from 0..max_block
-         *
          * Each block has a bit that tells whether or not the block
-         * is free (0) or taken(1).  The list of bits are grouped
-         * 8-bits at a time.  So we divide by 8 to compute the
-         * byte in which a block number falls.  We do a modulo 8
-         * to find the offset within the byte.
+         * is free (0) or taken(1).  The shift by 6 is a divide by 64 to
+         * find the word the block falls in, and shifting a long by the
+         * block number only uses its low 6 bits, i.e. the offset within
+         * the word.
          *
          * It is assumed that block numbers begin with 0
          */
-        freeList[blockNum] = (byte) (freeList[blockNum] | (1 << offset));
+        long mask = 1L << whichBlock;
+        int word = whichBlock >>> 6;
+
+        if ((freeList[word] & mask) == 0) {
+            freeList[word] |= mask;
+            numberOfFreeBlocks--;
+            summary.markDirty(word, word);
+        }
     }
 
     /**
@@ -62,15 +156,285 @@ public class FreeBlockList {
      * @param whichBlock - block to deallocate
      */
 
-    public void deallocateBlock(int whichBlock) {
-        int blockNum = (int) (whichBlock / 8);
-
-        int offset = whichBlock % 8;
+    public synchronized void deallocateBlock(int whichBlock) {
+        long mask = 1L << whichBlock;
+        int word = whichBlock >>> 6;
 
         /**
          * mask out the bit for the appropriate block by doing an AND
          * function with the complement of the mask used to set it.
          */
-        freeList[blockNum] = (byte) (freeList[blockNum] & (~(1 << offset)));
+        if ((freeList[word] & mask) != 0) {
+            freeList[word] &= ~mask;
+            numberOfFreeBlocks++;
+            summary.markDirty(word, word);
+        }
+    }
+
+    /**
+     * Finds the first free block at or after <code>fromBlock</code>.  The
+     * summary tree leads past words with no free block.
+     *
+     * @param fromBlock - block to start searching from
+     * @return The first free block number, or -1 if every block from
+     *         <code>fromBlock</code> to the end of the disk is allocated
+     */
+    public synchronized int nextFreeBlock(int fromBlock) {
+        if (fromBlock >= numBlocks) {
+            return -1;
+        }
+
+        int word = fromBlock >>> 6;
+        long free = ~freeList[word] & (-1L << fromBlock);
+        wordsScanned++;
+
+        if (free == 0) {
+            word = summary.nextWord(word, true);
+            if (word < 0) {
+                return -1;
+            }
+            free = ~freeList[word];
+            wordsScanned++;
+        }
+
+        int block = (word * BLOCKS_PER_WORD) + Long.numberOfTrailingZeros(free);
+        return block < numBlocks ? block : -1;
+    }
+
+    /**
+     * Allocates the next free block after the one handed out last,
+     * wrapping around to block 0 at the end of the disk
+     *
+     * @return The allocated block number, or -1 if the disk is full
+     */
+    public synchronized int allocateNextFreeBlock() {
+        if (numberOfFreeBlocks == 0) {
+            return -1;
+        }
+
+        int block = nextFreeBlock(nextFitCursor);
+        if (block < 0) {
+            block = nextFreeBlock(0);
+        }
+
+        allocateBlock(block);
+        nextFitCursor = (block + 1) % numBlocks;
+
+        return block;
+    }
+
+    /**
+     * Finds the first allocated block at or after <code>fromBlock</code>,
+     * i.e. the end of the free run <code>fromBlock</code> falls in
+     *
+     * @param fromBlock - block to start searching from
+     * @return The first allocated block number, or <code>numBlocks</code>
+     *         if every block from <code>fromBlock</code> on is free
+     */
+    public synchronized int nextAllocatedBlock(int fromBlock) {
+        if (fromBlock >= numBlocks) {
+            return numBlocks;
+        }
+
+        int word = fromBlock >>> 6;
+        long allocated = freeList[word] & (-1L << fromBlock);
+        wordsScanned++;
+
+        if (allocated == 0) {
+            // blocks past the end of the disk count as allocated in the summary
+            word = summary.nextWord(word, false);
+            if (word < 0 || word >= freeList.length) {
+                return numBlocks;
+            }
+            allocated = freeList[word];
+            wordsScanned++;
+        }
+
+        return Math.min(numBlocks, (word * BLOCKS_PER_WORD) + Long.numberOfTrailingZeros(allocated));
+    }
+
+    /**
+     * Allocates <code>count</code> blocks using the current allocation policy
+     *
+     * @param count - number of blocks to allocate
+     * @return The allocated block numbers, in the order the file should use them
+     * @throws IllegalArgumentException If fewer than <code>count</code> blocks are free
+     */
+    public synchronized int[] allocateBlocks(int count) throws IllegalArgumentException {
+        if (count > numberOfFreeBlocks) {
+            throw new IllegalArgumentException("FreeBlockList::allocateBlocks: " +
+                    "need " + count + " blocks but only " +
+                    numberOfFreeBlocks + " are free");
+        }
+        if (count <= 0) {
+            return new int[0];
+        }
+
+        int start = -1;
+        switch (allocationPolicy) {
+            case EXTENT:
+                // a run before the cursor is only found by the second search if the first found none
+                start = summary.findRun(nextFitCursor, count);
+                if (start < 0) {
+                    start = summary.findRun(0, count);
+                }
+                break;
+            case BEST_FIT:
+                start = findBestFitRun(count);
+                break;
+            default:
+                break;
+        }
+
+        int[] blocks = new int[count];
+
+        if (start >= 0) {
+            for (int i = 0; i < count; i++) {
+                blocks[i] = start + i;
+            }
+            allocateRun(start, count);
+            nextFitCursor = (start + count) % numBlocks;
+        } else if (allocationPolicy == AllocationPolicy.FIRST_FIT ||
+                   allocationPolicy == AllocationPolicy.BEST_FIT) {
+            int block = 0;
+            for (int i = 0; i < count; i++) {
+                block = nextFreeBlock(block);
+                blocks[i] = block;
+                allocateBlock(block);
+            }
+        } else {
+            for (int i = 0; i < count; i++) {
+                blocks[i] = allocateNextFreeBlock();
+            }
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Allocates the first run of <code>count</code> free blocks that starts
+     * before <code>limit</code>, whatever the allocation policy.  Moving a
+     * file into such a run brings it closer to the front of the disk.
+     *
+     * @param count - number of blocks to allocate
+     * @param limit - the run must start before this block
+     * @return The allocated block numbers in order, or null if no such run is free
+     */
+    public synchronized int[] allocateRunBefore(int count, int limit) {
+        if (count <= 0) {
+            return new int[0];
+        }
+        int start = summary.findRun(0, count);
+        if (start < 0 || start >= limit) {
+            return null;
+        }
+
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = start + i;
+        }
+        allocateRun(start, count);
+        return blocks;
+    }
+
+    /**
+     * Marks the <code>count</code> blocks from <code>start</code> allocated
+     * a word at a time, updating the summary once for all of them
+     */
+    private void allocateRun(int start, int count) {
+        int end = start + count;
+        for (int block = start; block < end; ) {
+            int word = block >>> 6;
+            int bits = Math.min(BLOCKS_PER_WORD - (block & 63), end - block);
+            long mask = (bits == BLOCKS_PER_WORD ? -1L : (1L << bits) - 1) << block;
+            numberOfFreeBlocks -= Long.bitCount(mask & ~freeList[word]);
+            freeList[word] |= mask;
+            block += bits;
+        }
+        summary.markDirty(start >>> 6, (end - 1) >>> 6);
+    }
+
+    /**
+     * Finds the shortest run of at least <code>length</code> free blocks.
+     * Every run is visited, but the summary tree skips the gaps between them.
+     *
+     * @return The first block of the run, or -1 if there is none
+     */
+    private int findBestFitRun(int length) {
+        int best = -1;
+        int bestLength = Integer.MAX_VALUE;
+        if (summary.getLargestFreeRun() < length) {
+            return best;
+        }
+        int start = nextFreeBlock(0);
+
+        while (start >= 0) {
+            int end = nextAllocatedBlock(start);
+            int runLength = end - start;
+            if (runLength >= length && runLength < bestLength) {
+                best = start;
+                bestLength = runLength;
+                if (runLength == length) {
+                    break;
+                }
+            }
+            start = nextFreeBlock(end);
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns the number of blocks that are free
+     * @return Returns the number of blocks that are free
+     */
+    public synchronized int getNumberOfFreeBlocks() {
+        return numberOfFreeBlocks;
+    }
+
+    /**
+     * Returns the number of blocks that are allocated
+     * @return Returns the number of blocks that are allocated
+     */
+    public synchronized int getNumberOfBlocksAllocated() {
+        return numBlocks - numberOfFreeBlocks;
+    }
+
+    /**
+     * Returns the number of 64-block words the free and allocated block
+     * searches have looked at, a measure of how hard allocation works
+     * @return Returns the number of words scanned so far
+     */
+    public synchronized long getWordsScanned() {
+        return wordsScanned;
+    }
+
+    /**
+     * Returns the length of the longest run of free blocks, kept by the
+     * summary tree so it costs nothing to ask
+     * @return Returns the length of the longest run of free blocks
+     */
+    public synchronized int getLargestFreeRun() {
+        return summary.getLargestFreeRun();
+    }
+
+    /**
+     * Walks the free runs of the disk and reports how the free space is
+     * broken up.  The summary tree skips the allocated stretches between runs.
+     * @return Returns the run-length distribution of the free space
+     */
+    public synchronized FragmentationReport getFragmentationReport() {
+        long[] runLengthCounts = new long[FragmentationReport.bucketOf(numBlocks) + 1];
+        int freeRuns = 0;
+
+        for (int start = nextFreeBlock(0); start >= 0; ) {
+            int end = nextAllocatedBlock(start);
+            runLengthCounts[FragmentationReport.bucketOf(end - start)]++;
+            freeRuns++;
+            start = nextFreeBlock(end);
+        }
+
+        return new FragmentationReport(numBlocks, numberOfFreeBlocks, freeRuns,
+                summary.getLargestFreeRun(), runLengthCounts);
     }
 }
@@ -0,0 +1,325 @@
+package filesystem;
+
+import java.util.Arrays;
+
+
+/**
+ * A summary tree over the words of a free block list, in the spirit of a
+ * segment tree or of ext4's block groups.  Each leaf stands for one word
+ * of 64 blocks and each inner node for the blocks of its two children.
+ * Every node records the longest run of free blocks inside it and the
+ * free runs it starts and ends with, so two children combine into their
+ * parent in constant time.
+ *
+ * Changed words are only marked; the next search brings the tree up to
+ * date, walking up once from all of them together.  A search for the
+ * next free or allocated word, or for the first run of a given length,
+ * is one walk down, however full the disk is.  Blocks past the end of the
+ * disk count as allocated.  The tree is not synchronized;
+ * <code>FreeBlockList</code> calls it under its own lock.
+ */
+class FreeSpaceTree {
+    private static final int BLOCKS_PER_WORD = Long.SIZE;
+
+    private final int numBlocks;
+    private final int numWords;
+
+    /**
+     * Number of leaves, the number of words rounded up to a power of two.
+     * Node 1 is the root, the children of node <code>i</code> are
+     * <code>2i</code> and <code>2i + 1</code> and word <code>w</code> is
+     * leaf <code>leaves + w</code>.
+     */
+    private final int leaves;
+    private final int[] longest;
+    private final int[] prefix;
+    private final int[] suffix;
+
+    /**
+     * The bitmap summarized, set by <code>rebuild</code>
+     */
+    private long[] words;
+
+    /**
+     * Words changed since the tree was last brought up to date, listed
+     * once each with a bit per word saying whether it is listed
+     */
+    private final long[] dirty;
+    private int[] dirtyWords;
+    private int numDirty;
+
+    /**
+     * Length of the free run ending where <code>findRun</code> has got to
+     */
+    private int carry;
+
+    FreeSpaceTree(int numBlocks) {
+        this.numBlocks = numBlocks;
+        this.numWords = (numBlocks + BLOCKS_PER_WORD - 1) / BLOCKS_PER_WORD;
+        int size = 1;
+        while (size < numWords) {
+            size <<= 1;
+        }
+        this.leaves = size;
+        this.dirty = new long[(leaves + BLOCKS_PER_WORD - 1) / BLOCKS_PER_WORD];
+        this.dirtyWords = new int[16];
+        this.longest = new int[2 * leaves];
+        this.prefix = new int[2 * leaves];
+        this.suffix = new int[2 * leaves];
+    }
+
+    /***
+     * Summarizes <code>words</code>, recomputing every node.  The array is
+     * kept, later changes to it are announced with <code>markDirty</code>.
+     */
+    void rebuild(long[] words) {
+        this.words = words;
+        for (int word = 0; word < leaves; word++) {
+            setLeaf(leaves + word, freeBits(word));
+        }
+        for (int node = leaves - 1; node >= 1; node--) {
+            combine(node);
+        }
+        Arrays.fill(dirty, 0);
+        numDirty = 0;
+    }
+
+    /***
+     * Notes that words <code>fromWord</code> to <code>toWord</code>, both
+     * included, have changed
+     */
+    void markDirty(int fromWord, int toWord) {
+        for (int word = fromWord; word <= toWord; word++) {
+            long bit = 1L << word;
+            if ((dirty[word >>> 6] & bit) == 0) {
+                dirty[word >>> 6] |= bit;
+                if (numDirty == dirtyWords.length) {
+                    dirtyWords = Arrays.copyOf(dirtyWords, 2 * numDirty);
+                }
+                dirtyWords[numDirty++] = word;
+            }
+        }
+    }
+
+    /***
+     * Recomputes the leaves of the changed words, then their parents one
+     * level at a time, so a node above several of them is combined once
+     */
+    private void flush() {
+        if (numDirty == 0) {
+            return;
+        }
+        int[] nodes = dirtyWords;
+        int count = numDirty;
+        for (int i = 0; i < count; i++) {
+            int word = nodes[i];
+            dirty[word >>> 6] &= ~(1L << word);
+            setLeaf(leaves + word, freeBits(word));
+            nodes[i] = leaves + word;
+        }
+        Arrays.sort(nodes, 0, count);
+
+        while (nodes[0] > 1) {
+            int parents = 0;
+            for (int i = 0; i < count; i++) {
+                int parent = nodes[i] >>> 1;
+                if (parents == 0 || nodes[parents - 1] != parent) {
+                    nodes[parents++] = parent;
+                }
+            }
+            count = parents;
+            for (int i = 0; i < count; i++) {
+                combine(nodes[i]);
+            }
+        }
+        numDirty = 0;
+    }
+
+    int getLargestFreeRun() {
+        flush();
+        return longest[1];
+    }
+
+    /***
+     * Finds the first word after <code>word</code> that has a free block,
+     * or with <code>wantFree</code> false an allocated one
+     *
+     * @return The word, or -1 if there is none.  A word past the end of
+     *         the disk counts as allocated.
+     */
+    int nextWord(int word, boolean wantFree) {
+        flush();
+        for (int node = leaves + word; node > 1; node >>>= 1) {
+            if ((node & 1) == 0 && matches(node + 1, wantFree)) {
+                node++;
+                while (node < leaves) {
+                    node = matches(2 * node, wantFree) ? 2 * node : (2 * node) + 1;
+                }
+                return node - leaves;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int node, boolean wantFree) {
+        return wantFree ? longest[node] > 0 : longest[node] < span(node);
+    }
+
+    /***
+     * Finds the first run of at least <code>length</code> free blocks that
+     * starts at or after <code>fromBlock</code>.  Blocks before
+     * <code>fromBlock</code> count as allocated, so a run it falls in is
+     * taken to start at <code>fromBlock</code>.
+     *
+     * @return The first block of the run, or -1 if there is none
+     */
+    int findRun(int fromBlock, int length) {
+        flush();
+        if (fromBlock >= numBlocks || length > longest[1]) {
+            return -1;
+        }
+
+        int word = fromBlock >>> 6;
+        long bits = freeBits(word) & (-1L << fromBlock);
+        carry = 0;
+
+        /**
+         * The first word is cut at fromBlock, so it is looked at on its own
+         * and the whole nodes after it are taken from the tree
+         */
+        int start = runInBits(bits, word * BLOCKS_PER_WORD, length);
+        if (start >= 0) {
+            return start;
+        }
+        carry = bits == -1L ? BLOCKS_PER_WORD : Long.numberOfLeadingZeros(~bits);
+        return word + 1 < leaves ? findRun(1, 0, leaves, word + 1, length) : -1;
+    }
+
+    /***
+     * Visits, left to right, the whole nodes under <code>node</code> that
+     * cover words from <code>fromWord</code> on
+     */
+    private int findRun(int node, int nodeWord, int nodeWords, int fromWord, int length) {
+        if (nodeWord + nodeWords <= fromWord) {
+            return -1;
+        }
+        int base = nodeWord * BLOCKS_PER_WORD;
+        if (nodeWord >= fromWord) {
+            if (carry + prefix[node] >= length) {
+                return base - carry;
+            }
+            if (longest[node] >= length) {
+                return base + descend(node, length);
+            }
+            carry = prefix[node] == span(node) ? carry + span(node) : suffix[node];
+            return -1;
+        }
+
+        int half = nodeWords / 2;
+        int start = findRun(2 * node, nodeWord, half, fromWord, length);
+        if (start < 0) {
+            start = findRun((2 * node) + 1, nodeWord + half, half, fromWord, length);
+        }
+        return start;
+    }
+
+    /***
+     * Finds the first run of at least <code>length</code> free blocks
+     * under <code>node</code>, which is known to hold one
+     *
+     * @return The first block of the run, counted from the start of the node
+     */
+    private int descend(int node, int length) {
+        int offset = 0;
+        while (node < leaves) {
+            int left = 2 * node;
+            if (longest[left] >= length) {
+                node = left;
+            } else if (suffix[left] + prefix[left + 1] >= length) {
+                return offset + span(left) - suffix[left];
+            } else {
+                offset += span(left);
+                node = left + 1;
+            }
+        }
+        return offset + Long.numberOfTrailingZeros(runStarts(freeBits(node - leaves), length));
+    }
+
+    /***
+     * Looks for a run of <code>length</code> free blocks in one word,
+     * counting the free run carried in from the words before it
+     *
+     * @param bits The free blocks of the word, one set bit each
+     * @param base The block of bit 0
+     * @return The first block of the run, or -1 if there is none
+     */
+    private int runInBits(long bits, int base, int length) {
+        if (carry + Long.numberOfTrailingZeros(~bits) >= length) {
+            return base - carry;
+        }
+        long starts = runStarts(bits, length);
+        return starts == 0 ? -1 : base + Long.numberOfTrailingZeros(starts);
+    }
+
+    /***
+     * Returns the bits of <code>bits</code> that start a run of at least
+     * <code>length</code> set bits, or 0 if <code>length</code> exceeds a word
+     */
+    private static long runStarts(long bits, int length) {
+        if (length > BLOCKS_PER_WORD) {
+            return 0;
+        }
+        for (int i = 1; i < length && bits != 0; i++) {
+            bits &= bits >>> 1;
+        }
+        return bits;
+    }
+
+    /***
+     * Returns the free blocks of a word as set bits, leaving out blocks past
+     * the end of the disk
+     */
+    private long freeBits(int word) {
+        if (word >= numWords) {
+            return 0;
+        }
+        long bits = ~words[word];
+        int valid = numBlocks - (word * BLOCKS_PER_WORD);
+        if (valid < BLOCKS_PER_WORD) {
+            bits &= (1L << valid) - 1;
+        }
+        return bits;
+    }
+
+    private void setLeaf(int node, long bits) {
+        prefix[node] = Long.numberOfTrailingZeros(~bits);
+        suffix[node] = Long.numberOfLeadingZeros(~bits);
+
+        // one step per run of free blocks, a word holds at most 32
+        int run = 0;
+        while (bits != 0) {
+            int start = Long.numberOfTrailingZeros(bits);
+            int length = Long.numberOfTrailingZeros(~(bits >>> start));
+            run = Math.max(run, length);
+            bits &= length + start == BLOCKS_PER_WORD ? 0 : -1L << (start + length);
+        }
+        longest[node] = run;
+    }
+
+    private void combine(int node) {
+        int left = 2 * node;
+        int right = left + 1;
+        int half = span(left);
+
+        prefix[node] = prefix[left] == half ? half + prefix[right] : prefix[left];
+        suffix[node] = suffix[right] == half ? half + suffix[left] : suffix[right];
+        longest[node] = Math.max(Math.max(longest[left], longest[right]), suffix[left] + prefix[right]);
+    }
+
+    /***
+     * Returns the number of blocks under <code>node</code>
+     */
+    private int span(int node) {
+        return BLOCKS_PER_WORD * (leaves >>> (31 - Integer.numberOfLeadingZeros(node)));
+    }
+}
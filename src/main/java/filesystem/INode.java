@@ -1,20 +1,44 @@
 package filesystem;
 
+import java.nio.ByteBuffer;
+
 
 public class INode {
     public final static int NUM_BLOCK_POINTERS = 32;
     public final static int FILE_NAME_SIZE = 64;
-    public final static int SIZE_FIELD_SIZE = Integer.SIZE;
-    public final static int BLOCK_POINTER_SIZE = Integer.SIZE;
+    public final static int SIZE_FIELD_SIZE = Integer.BYTES;
+    public final static int BLOCK_POINTER_SIZE = Integer.BYTES;
+
+    /**
+     * The first block pointers point straight at data blocks, the last two
+     * point at an indirect block of data block pointers and at a double
+     * indirect block of indirect block pointers
+     */
+    public final static int NUM_DIRECT_POINTERS = NUM_BLOCK_POINTERS - 2;
+    public final static int SINGLE_INDIRECT_POINTER = NUM_BLOCK_POINTERS - 2;
+    public final static int DOUBLE_INDIRECT_POINTER = NUM_BLOCK_POINTERS - 1;
 
     /**
-     * File name size + size(integer) + size(integer  * number_of_block_addresses
+     * File name size + size(integer) + size(integer) * number_of_block_addresses,
+     * all in bytes
      */
     public final static int INODE_SIZE = FILE_NAME_SIZE +
-            Integer.SIZE +
-            (Integer.SIZE * NUM_BLOCK_POINTERS);
+            SIZE_FIELD_SIZE +
+            (BLOCK_POINTER_SIZE * NUM_BLOCK_POINTERS);
+
+    /**
+     * Bytes of a file name slot left zero after the name, copied from
+     * rather than padded one byte at a time
+     */
+    private final static byte[] NAME_PADDING = new byte[FILE_NAME_SIZE];
 
     private String fileName;
+
+    /**
+     * The name as stored on disk without its zero padding, encoded once
+     * when the name is set so writing the inode copies it instead
+     */
+    private byte[] fileNameBytes;
     private int fileSize;
     private int[] blockPointers;
 
@@ -72,6 +96,7 @@ public class INode {
             }
         }
         this.fileName = name;
+        this.fileNameBytes = name == null ? null : name.getBytes();
     }
 
     /**
@@ -91,15 +116,10 @@ public class INode {
         byte[] contents = null;
 
         result = new byte[FILE_NAME_SIZE];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = 0;
-        }
 
-        if (fileName != null) {
-            contents = fileName.getBytes();
-            for (int i = 0; i < contents.length; i++) {
-                result[i] = contents[i];
-            }
+        if (fileNameBytes != null) {
+            contents = fileNameBytes;
+            System.arraycopy(contents, 0, result, 0, Math.min(contents.length, FILE_NAME_SIZE));
         }
 
         return result;
@@ -166,6 +186,67 @@ public class INode {
                 (byte) result
         };
     }
-}
 
+    /**
+     * Writes the name, size and block pointers to <code>buffer</code> in
+     * their on-disk form, <code>INODE_SIZE</code> bytes big endian.  Nothing
+     * is allocated, so a caller reusing its buffer encodes for free.
+     * @param buffer Buffer with room for <code>INODE_SIZE</code> bytes
+     */
+    void writeTo(ByteBuffer buffer) {
+        int nameLength = 0;
+        if (fileNameBytes != null) {
+            nameLength = Math.min(fileNameBytes.length, FILE_NAME_SIZE);
+            buffer.put(fileNameBytes, 0, nameLength);
+        }
+        buffer.put(NAME_PADDING, 0, FILE_NAME_SIZE - nameLength);
+        buffer.putInt(fileSize);
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            buffer.putInt(blockPointers[i]);
+        }
+    }
+
+    /**
+     * Reads an INode from its on-disk form, the reverse of <code>writeTo</code>
+     * @param buffer Buffer holding at least <code>INODE_SIZE</code> bytes
+     * @return Returns the decoded INode
+     */
+    static INode readFrom(ByteBuffer buffer) {
+        INode inode = new INode();
+        inode.readFields(buffer);
+        return inode;
+    }
 
+    /**
+     * Overwrites this INode with the one stored in <code>buffer</code>, the
+     * reverse of <code>writeTo</code>.  The name is only decoded when there
+     * is one, so reading a free inode allocates nothing.
+     * @param buffer Buffer holding at least <code>INODE_SIZE</code> bytes
+     */
+    void readFields(ByteBuffer buffer) {
+        int nameStart = buffer.position();
+
+        /**
+         * Null string is all 0's but
+         * the conversion makes it the empty string.
+         */
+        int nameLength = FILE_NAME_SIZE;
+        while (nameLength > 0 && buffer.get(nameStart + nameLength - 1) == 0) {
+            nameLength--;
+        }
+        if (nameLength == 0) {
+            fileName = null;
+            fileNameBytes = null;
+        } else {
+            fileNameBytes = new byte[nameLength];
+            buffer.get(nameStart, fileNameBytes);
+            fileName = new String(fileNameBytes);
+        }
+
+        buffer.position(nameStart + FILE_NAME_SIZE);
+        fileSize = buffer.getInt();
+        for (int i = 0; i < NUM_BLOCK_POINTERS; i++) {
+            blockPointers[i] = buffer.getInt();
+        }
+    }
+}
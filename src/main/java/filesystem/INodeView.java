@@ -0,0 +1,176 @@
+package filesystem;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A flyweight over a raw inode table, as filled by
+ * <code>BlockDevice.readInodeTable(ByteBuffer)</code>.  One view is moved
+ * from slot to slot and reads the name, size and block pointers in place,
+ * so scanning the whole table allocates nothing and walks the buffer
+ * front to back.  Names are compared on their encoded bytes; only
+ * <code>getFileName</code> and <code>toINode</code> build objects.
+ *
+ * The view holds no copy of the table: it sees whatever the buffer holds.
+ * It is not safe to share between threads, but any number of views may
+ * read the same buffer.
+ */
+public final class INodeView {
+    private static final int SIZE_OFFSET = INode.FILE_NAME_SIZE;
+    private static final int POINTERS_OFFSET = SIZE_OFFSET + INode.SIZE_FIELD_SIZE;
+
+    private final ByteBuffer table;
+    private final int slotSize;
+    private final int numInodes;
+    private int base;
+    private int whichInode;
+
+    /***
+     * Creates a view over the inode table in <code>table</code>, starting at
+     * its position, placed on inode 0
+     *
+     * @param table Buffer holding the table, one slot of <code>slotSize</code> bytes per inode
+     * @param slotSize Bytes between consecutive inodes, <code>DiskGeometry.getInodeSize</code>
+     * @throws IllegalArgumentException If a slot is smaller than an inode
+     */
+    public INodeView(ByteBuffer table, int slotSize) throws IllegalArgumentException {
+        if (slotSize < INode.INODE_SIZE) {
+            throw new IllegalArgumentException("INodeView::INodeView: slot of " + slotSize +
+                    " bytes cannot hold an inode of " + INode.INODE_SIZE + " bytes");
+        }
+        this.table = table.slice();
+        this.slotSize = slotSize;
+        this.numInodes = this.table.capacity() < INode.INODE_SIZE ? 0 :
+                ((this.table.capacity() - INode.INODE_SIZE) / slotSize) + 1;
+    }
+
+    /***
+     * Returns the number of inodes the buffer holds
+     */
+    public int getNumInodes() {
+        return numInodes;
+    }
+
+    /***
+     * Places the view on inode <code>whichInode</code>
+     *
+     * @return This view, for chaining
+     * @throws IllegalArgumentException If the buffer does not hold that inode
+     */
+    public INodeView moveTo(int whichInode) throws IllegalArgumentException {
+        if (whichInode < 0 || whichInode >= getNumInodes()) {
+            throw new IllegalArgumentException("INodeView::moveTo: inode " + whichInode +
+                    " is not between 0 and " + (getNumInodes() - 1));
+        }
+        this.whichInode = whichInode;
+        this.base = whichInode * slotSize;
+        return this;
+    }
+
+    /***
+     * Returns the inode the view is placed on
+     */
+    public int getINodeNumber() {
+        return whichInode;
+    }
+
+    /***
+     * Tells whether the inode is unused, i.e. its name is all zeros
+     */
+    public boolean isFree() {
+        for (int i = 0; i < INode.FILE_NAME_SIZE; i += Long.BYTES) {
+            if (table.getLong(base + i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getSize() {
+        return table.getInt(base + SIZE_OFFSET);
+    }
+
+    /***
+     * Returns the value stored in the block pointer list at position <code>whichOne</code>
+     *
+     * @throws IllegalArgumentException If <code>whichOne</code> exceeds the last position
+     *                                  in the block pointer list
+     */
+    public int getBlockPointer(int whichOne) throws IllegalArgumentException {
+        if (whichOne < 0 || whichOne >= INode.NUM_BLOCK_POINTERS) {
+            throw new IllegalArgumentException("INodeView::getBlockPointer: block pointer " + whichOne +
+                    " is not between 0 and " + (INode.NUM_BLOCK_POINTERS - 1));
+        }
+        return table.getInt(base + POINTERS_OFFSET + (whichOne * INode.BLOCK_POINTER_SIZE));
+    }
+
+    /***
+     * Returns the number of bytes of the name, without its zero padding
+     */
+    public int getFileNameLength() {
+        int length = INode.FILE_NAME_SIZE;
+        while (length > 0 && table.get(base + length - 1) == 0) {
+            length--;
+        }
+        return length;
+    }
+
+    /***
+     * Tells whether the stored name is exactly <code>fileName</code>,
+     * comparing bytes without decoding the name
+     *
+     * @param fileName The encoded name, e.g. <code>name.getBytes()</code>
+     */
+    public boolean fileNameEquals(byte[] fileName) {
+        if (fileName.length > INode.FILE_NAME_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < fileName.length; i++) {
+            if (table.get(base + i) != fileName[i]) {
+                return false;
+            }
+        }
+        return fileName.length == INode.FILE_NAME_SIZE || table.get(base + fileName.length) == 0;
+    }
+
+    /***
+     * Decodes the name
+     *
+     * @return The name, or null if the inode is free
+     */
+    public String getFileName() {
+        int length = getFileNameLength();
+        if (length == 0) {
+            return null;
+        }
+        byte[] fileName = new byte[length];
+        table.get(base, fileName);
+        return new String(fileName);
+    }
+
+    /***
+     * Decodes the whole inode into an <code>INode</code> of its own
+     */
+    public INode toINode() {
+        return INode.readFrom(table.duplicate().position(base));
+    }
+
+    /***
+     * Finds the first inode whose name is exactly <code>fileName</code>,
+     * scanning the table in place.  The view is left on the inode found.
+     *
+     * @param fileName The encoded name, e.g. <code>name.getBytes()</code>
+     * @return The inode number, or -1 if no inode has that name
+     */
+    public int find(byte[] fileName) {
+        if (fileName.length == 0) {
+            return -1;
+        }
+        for (int i = 0; i < numInodes; i++) {
+            if (moveTo(i).fileNameEquals(fileName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
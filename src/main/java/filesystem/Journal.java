@@ -0,0 +1,698 @@
+package filesystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+
+/**
+ * Write-ahead journal of the metadata changes of the file system.  Every
+ * operation logs the new images of the inode and the indirect blocks it
+ * changed together with the blocks it allocated or freed.  None of it
+ * reaches the inode table, the indirect blocks or the free block list on
+ * disk before the transaction holding it has been written to the journal
+ * region and forced out, so a crash never leaves blocks leaked or owned by
+ * two files: mounting replays the committed transactions and drops the
+ * rest.
+ *
+ * Operations are grouped into transactions (group commit): one transaction
+ * and one force cover up to <code>maxOperations</code> operations, or the
+ * operations logged within <code>maxDelayMillis</code> when a delay is set.
+ * Until their transaction commits, logged inodes and indirect blocks are
+ * served from memory by <code>readInode</code> and <code>readDataBlock</code>.
+ *
+ * Data blocks are not journaled.  After a crash a file holds its last
+ * committed metadata but may show data written after that commit.  Blocks
+ * an operation frees stay allocated until its transaction has committed,
+ * so no other file writes over them while a crash could still undo the
+ * release and hand them back to their old file.
+ *
+ * The journal region starts with a header naming the current epoch,
+ * followed by the transactions of that epoch one after the other.  Once
+ * the region is full the journal is checkpointed: everything committed is
+ * already in place, so it is forced out and a new epoch starts at the
+ * front of the region, which invalidates the old transactions.
+ */
+class Journal {
+    public static final int DEFAULT_MAX_OPERATIONS = 64;
+
+    /**
+     * The header takes the first 512 bytes so rewriting it never tears a
+     * transaction
+     */
+    private static final int HEADER_SIZE = 512;
+    private static final int HEADER_MAGIC = 0x4A524E4C;       // "JRNL"
+    private static final int TRANSACTION_MAGIC = 0x5452414E;  // "TRAN"
+    private static final int COMMIT_MAGIC = 0x434D4954;       // "CMIT"
+
+    /**
+     * Magic, epoch, sequence number and length of the records
+     */
+    private static final int TRANSACTION_HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    /**
+     * Checksum and commit magic
+     */
+    private static final int COMMIT_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private static final byte INODE_RECORD = 1;
+    private static final byte BLOCK_RECORD = 2;
+    private static final byte ALLOCATE_RECORD = 3;
+    private static final byte FREE_RECORD = 4;
+
+    /**
+     * One daemon thread fires the delayed commits of every journal
+     */
+    private static final ScheduledExecutorService COMMIT_TIMER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "journal-commit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockDevice device;
+    private final DiskGeometry geometry;
+    private final FreeBlockList freeBlockList;
+
+    private long epoch;
+    private long sequence;
+    private int head;
+
+    /**
+     * The free block list as of the last commit, the only version that is
+     * ever written to disk, and the range of bytes changed since
+     */
+    private byte[] committedFreeList;
+    private int dirtyFrom;
+    private int dirtyTo;
+
+    /**
+     * Records of the operations logged since the last commit, and the
+     * newest images of the inodes and indirect blocks they changed
+     */
+    private final ByteArrayOutputStream pendingRecords;
+    private int pendingOperations;
+    private final Map<Integer, byte[]> pendingINodes;
+    private final Map<Integer, byte[]> pendingBlocks;
+
+    /**
+     * Blocks freed by the operations logged since the last commit, handed
+     * back to the free block list once the commit is forced out
+     */
+    private final List<int[]> pendingFrees;
+
+    private int maxOperations;
+    private long maxDelayMillis;
+    private ScheduledFuture<?> scheduledCommit;
+    private IOException failure;
+    private boolean closed;
+
+    /***
+     * Creates the journal of a formatted or mounted device.  Call
+     * <code>format</code> or <code>replay</code> before logging anything.
+     *
+     * @param freeBlockList The in-memory free block list, freed blocks are
+     *                      returned to it as their operation commits
+     */
+    Journal(BlockDevice device, FreeBlockList freeBlockList) {
+        this.device = device;
+        this.geometry = device.getGeometry();
+        this.freeBlockList = freeBlockList;
+        this.pendingRecords = new ByteArrayOutputStream();
+        this.pendingINodes = new HashMap<>();
+        this.pendingBlocks = new HashMap<>();
+        this.pendingFrees = new ArrayList<>();
+        this.maxOperations = DEFAULT_MAX_OPERATIONS;
+        this.maxDelayMillis = 0;
+    }
+
+    DiskGeometry getGeometry() {
+        return geometry;
+    }
+
+    /***
+     * Starts an empty journal on a freshly formatted disk
+     *
+     * @throws IOException If the journal header cannot be written
+     */
+    synchronized void format() throws IOException {
+        committedFreeList = new byte[geometry.getFreeListSize()];
+        epoch = 0;
+        reset();
+    }
+
+    /***
+     * Brings the metadata on disk up to date with every transaction
+     * committed before the disk was last shut down, then starts an empty
+     * journal.  A transaction that was not completely written is ignored
+     * along with everything after it.
+     *
+     * @return The number of transactions replayed
+     * @throws IOException If the journal cannot be read or the metadata cannot be written
+     */
+    synchronized int replay() throws IOException {
+        committedFreeList = device.readFreeBlockList();
+        ByteBuffer journal = ByteBuffer.wrap(device.readJournal());
+
+        epoch = readEpoch(journal);
+        int replayed = 0;
+        if (epoch > 0) {
+            Map<Integer, byte[]> iNodes = new HashMap<>();
+            Map<Integer, byte[]> blocks = new HashMap<>();
+            journal.position(HEADER_SIZE);
+            ByteBuffer records;
+            while ((records = nextTransaction(journal, epoch, replayed)) != null) {
+                applyRecords(records, iNodes, blocks, committedFreeList);
+                replayed++;
+            }
+            writeHome(iNodes, blocks);
+        }
+
+        device.force();
+        reset();
+        return replayed;
+    }
+
+    /***
+     * Sets how many operations share a transaction
+     *
+     * @param maxOperations Commit as soon as this many operations are waiting
+     * @param maxDelayMillis Commit at most this long after the first operation
+     *                       of a transaction was logged, 0 to wait for
+     *                       <code>maxOperations</code> or an explicit commit
+     * @throws IllegalArgumentException If <code>maxOperations</code> is not
+     *                                  positive or <code>maxDelayMillis</code> is negative
+     */
+    synchronized void setGroupCommit(int maxOperations, long maxDelayMillis) throws IllegalArgumentException {
+        if (maxOperations < 1) {
+            throw new IllegalArgumentException("Journal::setGroupCommit: " + maxOperations +
+                    " operations per transaction is not positive");
+        }
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Journal::setGroupCommit: delay of " + maxDelayMillis +
+                    " ms is negative");
+        }
+        this.maxOperations = maxOperations;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /***
+     * Logs one operation.  Its changes commit together, in the transaction
+     * of the operations logged around it.  Blocks in <code>freed</code> go
+     * back to the free block list once that transaction has been forced
+     * out, so a block is never handed out again while a crash could still
+     * undo its release.
+     *
+     * @param iNodeNumber The inode the operation changed
+     * @param iNode Its new contents
+     * @param pointerBlocks New contents of the indirect blocks it changed, by disk block
+     * @param allocated Blocks the operation took from the free block list
+     * @param freed Blocks the operation gave up
+     * @throws IOException If the operation does not fit in the journal or a commit fails
+     */
+    synchronized void log(int iNodeNumber, INode iNode, Map<Integer, int[]> pointerBlocks,
+                          int[] allocated, int[] freed) throws IOException {
+        checkOpen("log");
+        ByteBuffer records = encode(iNodeNumber, iNode, pointerBlocks, allocated, freed);
+        makeRoom("log", records.remaining());
+
+        if (freed.length > 0) {
+            pendingFrees.add(freed);
+        }
+        append(records);
+        commitIfDue();
+    }
+
+    /***
+     * Logs the creation of several files as operations that commit in the
+     * same transaction.  No commit falls between them, so after a crash
+     * either all of the files exist or none does.  They commit with the
+     * next <code>commit</code>, which the caller makes.
+     *
+     * @param iNodeNumbers The inodes of the files
+     * @param iNodes Their new contents
+     * @param pointerBlocks New contents of the indirect blocks of each file, by disk block
+     * @param allocated Blocks each file took from the free block list
+     * @throws IOException If the files together do not fit in one
+     *                     transaction or the operations already waiting
+     *                     cannot be committed.  None of the files is logged then.
+     */
+    synchronized void logAll(int[] iNodeNumbers, INode[] iNodes, List<Map<Integer, int[]>> pointerBlocks,
+                             int[][] allocated) throws IOException {
+        checkOpen("logAll");
+        ByteBuffer[] records = new ByteBuffer[iNodeNumbers.length];
+        int size = 0;
+        for (int i = 0; i < records.length; i++) {
+            records[i] = encode(iNodeNumbers[i], iNodes[i], pointerBlocks.get(i), allocated[i], new int[0]);
+            size += records[i].remaining();
+        }
+        makeRoom("logAll", size);
+
+        for (ByteBuffer operation : records) {
+            append(operation);
+        }
+    }
+
+    /***
+     * Makes sure <code>size</code> bytes of records fit in the pending
+     * transaction, committing the operations already waiting if they do not
+     *
+     * @throws IOException If the records do not fit in any transaction or the commit fails
+     */
+    private void makeRoom(String operation, int size) throws IOException {
+        if (size > maxTransactionSize()) {
+            throw new IOException("Journal::" + operation + ": " + size +
+                    " bytes of changes do not fit in a journal of " + geometry.getJournalSize() + " bytes");
+        }
+        if (pendingRecords.size() + size > maxTransactionSize()) {
+            commit();
+        }
+    }
+
+    /***
+     * Adds the records of one operation to the pending transaction
+     */
+    private void append(ByteBuffer records) {
+        applyRecords(records.duplicate(), pendingINodes, pendingBlocks, null);
+        pendingRecords.write(records.array(), 0, records.limit());
+        pendingOperations++;
+    }
+
+    /***
+     * Commits once <code>maxOperations</code> operations are waiting, or
+     * schedules a commit after <code>maxDelayMillis</code> for the first of them
+     */
+    private void commitIfDue() throws IOException {
+        if (pendingOperations >= maxOperations) {
+            commit();
+        } else if (scheduledCommit == null && maxDelayMillis > 0) {
+            scheduledCommit = COMMIT_TIMER.schedule(this::timedCommit, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /***
+     * Writes the operations logged so far to the journal as one transaction,
+     * forces it out, and then updates the metadata in place
+     *
+     * @throws IOException If the journal or the metadata cannot be written
+     */
+    synchronized void commit() throws IOException {
+        checkFailure("commit");
+        if (scheduledCommit != null) {
+            scheduledCommit.cancel(false);
+            scheduledCommit = null;
+        }
+        if (pendingOperations == 0) {
+            return;
+        }
+
+        byte[] records = pendingRecords.toByteArray();
+        int size = TRANSACTION_HEADER_SIZE + records.length + COMMIT_SIZE;
+        if (head + size > geometry.getJournalSize()) {
+            checkpoint();
+        }
+
+        ByteBuffer transaction = ByteBuffer.allocate(size);
+        transaction.putInt(TRANSACTION_MAGIC);
+        transaction.putLong(epoch);
+        transaction.putLong(sequence);
+        transaction.putInt(records.length);
+        transaction.put(records);
+        transaction.putInt(checksum(transaction.array(), 0, transaction.position()));
+        transaction.putInt(COMMIT_MAGIC);
+        transaction.flip();
+
+        device.writeJournal(transaction, head);
+        device.force();
+        head += size;
+        sequence++;
+
+        // the releases are durable, the blocks can be handed out again
+        for (int[] freed : pendingFrees) {
+            for (int block : freed) {
+                freeBlockList.deallocateBlock(block);
+            }
+        }
+        pendingFrees.clear();
+
+        /**
+         * The transaction is durable, the metadata can now change in place.
+         * Nothing here is forced: the journal still holds it until the next
+         * checkpoint.
+         */
+        applyRecords(ByteBuffer.wrap(records), null, null, committedFreeList);
+        writeHome(pendingINodes, pendingBlocks);
+
+        pendingRecords.reset();
+        pendingOperations = 0;
+        pendingINodes.clear();
+        pendingBlocks.clear();
+    }
+
+    /***
+     * Commits what is left, checkpoints the journal so the next mount has
+     * nothing to replay, and refuses further operations
+     *
+     * @throws IOException If the last commit or the checkpoint fails
+     */
+    synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        commit();
+        checkpoint();
+        closed = true;
+    }
+
+    /***
+     * Tells whether operations logged since the last commit freed blocks
+     * that a commit would hand back to the free block list
+     */
+    synchronized boolean hasPendingFrees() {
+        return !pendingFrees.isEmpty();
+    }
+
+    /***
+     * Reads an inode, seeing changes that are logged but not yet committed
+     *
+     * @throws IOException If the inode cannot be read from disk
+     */
+    synchronized INode readInode(int whichInode) throws IOException {
+        byte[] image = pendingINodes.get(whichInode);
+        if (image != null) {
+            return INode.readFrom(ByteBuffer.wrap(image));
+        }
+        return device.readInode(whichInode);
+    }
+
+    /***
+     * Reads a data block, seeing indirect blocks that are logged but not
+     * yet committed
+     *
+     * @throws IOException If the block cannot be read from disk
+     */
+    synchronized byte[] readDataBlock(int whichBlock) throws IOException {
+        byte[] image = pendingBlocks.get(whichBlock);
+        if (image != null) {
+            return image.clone();
+        }
+        return device.readDataBlock(whichBlock);
+    }
+
+    /***
+     * Reads a data block into <code>dst</code>, seeing indirect blocks that
+     * are logged but not yet committed
+     *
+     * @throws IOException If the block cannot be read from disk
+     */
+    synchronized void readDataBlock(int whichBlock, ByteBuffer dst) throws IOException {
+        byte[] image = pendingBlocks.get(whichBlock);
+        if (image != null) {
+            dst.put(image);
+            return;
+        }
+        device.readDataBlock(whichBlock, dst);
+    }
+
+    /***
+     * Tells whether an operation changing <code>pointerBlocks</code>
+     * indirect blocks and allocating or freeing <code>extents</code> runs of
+     * blocks fits in one transaction, so a caller can find out before it
+     * changes anything
+     */
+    boolean fits(int pointerBlocks, int extents) {
+        return recordsSize(pointerBlocks, extents) <= maxTransactionSize();
+    }
+
+    /***
+     * Returns the number of runs of consecutive block numbers in
+     * <code>blocks</code>, in any order, as logged for an operation
+     */
+    static int countExtents(int[] blocks) {
+        return extents(blocks).length;
+    }
+
+    /***
+     * Returns the bytes of records an operation takes, see <code>fits</code>
+     */
+    private int recordsSize(int pointerBlocks, int extents) {
+        return 1 + Integer.BYTES + INode.INODE_SIZE +
+                (pointerBlocks * (1 + Integer.BYTES + geometry.getBlockSize())) +
+                (extents * (1 + Integer.BYTES + Integer.BYTES));
+    }
+
+    /***
+     * Turns an operation into journal records
+     */
+    private ByteBuffer encode(int iNodeNumber, INode iNode, Map<Integer, int[]> pointerBlocks,
+                              int[] allocated, int[] freed) {
+        int[][] allocatedExtents = extents(allocated);
+        int[][] freedExtents = extents(freed);
+        int blockSize = geometry.getBlockSize();
+        int size = recordsSize(pointerBlocks.size(), allocatedExtents.length + freedExtents.length);
+
+        ByteBuffer records = ByteBuffer.allocate(size);
+        records.put(INODE_RECORD);
+        records.putInt(iNodeNumber);
+        iNode.writeTo(records);
+        for (Map.Entry<Integer, int[]> pointerBlock : new TreeMap<>(pointerBlocks).entrySet()) {
+            records.put(BLOCK_RECORD);
+            records.putInt(pointerBlock.getKey());
+            records.asIntBuffer().put(pointerBlock.getValue());
+            records.position(records.position() + blockSize);
+        }
+        putExtents(records, ALLOCATE_RECORD, allocatedExtents);
+        putExtents(records, FREE_RECORD, freedExtents);
+        return records.flip();
+    }
+
+    private static void putExtents(ByteBuffer records, byte type, int[][] extents) {
+        for (int[] extent : extents) {
+            records.put(type);
+            records.putInt(extent[0]);
+            records.putInt(extent[1]);
+        }
+    }
+
+    /***
+     * Groups blocks into runs of consecutive block numbers
+     *
+     * @return The first block and the length of each run
+     */
+    private static int[][] extents(int[] blocks) {
+        int[] sorted = blocks.clone();
+        Arrays.sort(sorted);
+        int[][] extents = new int[sorted.length][];
+        int count = 0;
+        for (int start = 0, end; start < sorted.length; start = end) {
+            end = start + 1;
+            while (end < sorted.length && sorted[end] == sorted[end - 1] + 1) {
+                end++;
+            }
+            extents[count++] = new int[]{sorted[start], end - start};
+        }
+        return Arrays.copyOf(extents, count);
+    }
+
+    /***
+     * Applies records in order.  Inode and indirect block images land in
+     * <code>iNodes</code> and <code>blocks</code>, the newest one winning,
+     * and a freed block drops any earlier image of it so a stale indirect
+     * block never overwrites whatever the block holds next.  Allocations
+     * and releases change <code>freeList</code>.  Any of the three may be
+     * null to skip that part.
+     */
+    private void applyRecords(ByteBuffer records, Map<Integer, byte[]> iNodes,
+                              Map<Integer, byte[]> blocks, byte[] freeList) {
+        int blockSize = geometry.getBlockSize();
+        while (records.hasRemaining()) {
+            byte type = records.get();
+            if (type == INODE_RECORD || type == BLOCK_RECORD) {
+                int number = records.getInt();
+                byte[] image = new byte[type == INODE_RECORD ? INode.INODE_SIZE : blockSize];
+                records.get(image);
+                Map<Integer, byte[]> images = type == INODE_RECORD ? iNodes : blocks;
+                if (images != null) {
+                    images.put(number, image);
+                }
+                continue;
+            }
+
+            int first = records.getInt();
+            int count = records.getInt();
+            for (int block = first; block < first + count; block++) {
+                if (type == FREE_RECORD && blocks != null) {
+                    blocks.remove(block);
+                }
+                if (freeList != null) {
+                    if (type == ALLOCATE_RECORD) {
+                        freeList[block / 8] |= (byte) (1 << (block % 8));
+                    } else {
+                        freeList[block / 8] &= (byte) ~(1 << (block % 8));
+                    }
+                }
+            }
+            if (freeList != null) {
+                markDirty(first / 8, ((first + count - 1) / 8) + 1);
+            }
+        }
+    }
+
+    private void markDirty(int from, int to) {
+        if (dirtyFrom == dirtyTo) {
+            dirtyFrom = from;
+            dirtyTo = to;
+        } else {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+    }
+
+    /***
+     * Writes committed inodes, indirect blocks and the changed part of the
+     * free block list in place
+     */
+    private void writeHome(Map<Integer, byte[]> iNodes, Map<Integer, byte[]> blocks) throws IOException {
+        Map<Integer, INode> decoded = new HashMap<>();
+        for (Map.Entry<Integer, byte[]> iNode : iNodes.entrySet()) {
+            decoded.put(iNode.getKey(), INode.readFrom(ByteBuffer.wrap(iNode.getValue())));
+        }
+        device.writeInodes(decoded);
+
+        if (!blocks.isEmpty()) {
+            int[] blockNumbers = blocks.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            ByteBuffer blockData = ByteBuffer.allocate(blockNumbers.length * geometry.getBlockSize());
+            for (int block : blockNumbers) {
+                blockData.put(blocks.get(block));
+            }
+            device.writeBlocks(blockNumbers, blockData.flip());
+        }
+
+        if (dirtyFrom < dirtyTo) {
+            device.writeFreeBlockList(committedFreeList, dirtyFrom, dirtyTo);
+            dirtyFrom = 0;
+            dirtyTo = 0;
+        }
+    }
+
+    /***
+     * Forces out everything written in place, then starts a new epoch so
+     * the journal region can be reused from the front
+     */
+    private void checkpoint() throws IOException {
+        device.force();
+        reset();
+    }
+
+    /***
+     * Writes the header of a new, empty epoch and forces it out before any
+     * transaction of the epoch is written
+     */
+    private void reset() throws IOException {
+        epoch++;
+        sequence = 0;
+        head = HEADER_SIZE;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(HEADER_MAGIC);
+        header.putLong(epoch);
+        header.putInt(checksum(header.array(), 0, header.position()));
+        header.rewind();
+        device.writeJournal(header, 0);
+        device.force();
+    }
+
+    /***
+     * Returns the epoch named by the header of the journal, or 0 if the
+     * journal has no valid header
+     */
+    private static long readEpoch(ByteBuffer journal) {
+        if (journal.getInt(0) != HEADER_MAGIC) {
+            return 0;
+        }
+        long epoch = journal.getLong(Integer.BYTES);
+        int headerLength = Integer.BYTES + Long.BYTES;
+        if (journal.getInt(headerLength) != checksum(journal.array(), 0, headerLength)) {
+            return 0;
+        }
+        return epoch;
+    }
+
+    /***
+     * Reads the transaction at the position of <code>journal</code> and
+     * moves past it
+     *
+     * @return The records of the transaction, or null if there is no
+     *         complete transaction of this epoch with this sequence number
+     */
+    private static ByteBuffer nextTransaction(ByteBuffer journal, long epoch, long sequence) {
+        int start = journal.position();
+        if (journal.remaining() < TRANSACTION_HEADER_SIZE + COMMIT_SIZE ||
+                journal.getInt(start) != TRANSACTION_MAGIC ||
+                journal.getLong(start + Integer.BYTES) != epoch ||
+                journal.getLong(start + Integer.BYTES + Long.BYTES) != sequence) {
+            return null;
+        }
+
+        int length = journal.getInt(start + TRANSACTION_HEADER_SIZE - Integer.BYTES);
+        if (length < 0 || length > journal.remaining() - TRANSACTION_HEADER_SIZE - COMMIT_SIZE) {
+            return null;
+        }
+        int end = start + TRANSACTION_HEADER_SIZE + length;
+        if (journal.getInt(end) != checksum(journal.array(), start, end - start) ||
+                journal.getInt(end + Integer.BYTES) != COMMIT_MAGIC) {
+            return null;
+        }
+
+        journal.position(end + COMMIT_SIZE);
+        return journal.slice(start + TRANSACTION_HEADER_SIZE, length);
+    }
+
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private int maxTransactionSize() {
+        return geometry.getJournalSize() - HEADER_SIZE - TRANSACTION_HEADER_SIZE - COMMIT_SIZE;
+    }
+
+    /***
+     * Runs on the commit timer.  A failure is kept and reported by the
+     * next operation, as there is no caller to throw it to.
+     */
+    private synchronized void timedCommit() {
+        if (closed || failure != null) {
+            return;
+        }
+        try {
+            commit();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void checkOpen(String operation) throws IOException {
+        if (closed) {
+            throw new IOException("Journal::" + operation + ": journal is closed");
+        }
+        checkFailure(operation);
+    }
+
+    private void checkFailure(String operation) throws IOException {
+        if (failure != null) {
+            throw new IOException("Journal::" + operation + ": an earlier commit failed", failure);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package filesystem;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Histogram of latencies in nanoseconds with log-linear buckets, in the
+ * style of HdrHistogram: every power of two is split into
+ * <code>SUB_BUCKETS</code> equal buckets, so a percentile is reported at
+ * most 1/<code>SUB_BUCKETS</code> above the true value.  Recording is
+ * lock-free and allocates nothing; reading walks the buckets.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Values below <code>SUB_BUCKETS</code> get a bucket each, every power
+     * of two above that gets <code>SUB_BUCKETS</code>
+     */
+    private static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder total;
+    private final LongAccumulator max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(NUM_BUCKETS);
+        count = new LongAdder();
+        total = new LongAdder();
+        max = new LongAccumulator(Math::max, 0);
+    }
+
+    /***
+     * Records one latency
+     *
+     * @param nanos The latency in nanoseconds, negative values count as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return total.sum();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getMeanNanos() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : total.sum() / samples;
+    }
+
+    /***
+     * Returns the latency that <code>percentile</code> percent of the
+     * recorded latencies do not exceed
+     *
+     * @param percentile From 0 to 100
+     * @return The upper end of the bucket holding the percentile, or 0 if
+     *         nothing was recorded
+     * @throws IllegalArgumentException If <code>percentile</code> is out of range
+     */
+    public long getValueAtPercentile(double percentile) throws IllegalArgumentException {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("LatencyHistogram::getValueAtPercentile: " + percentile +
+                    " is not between 0 and 100");
+        }
+
+        long samples = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            samples += counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS && samples > 0; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return 0;
+    }
+
+    /***
+     * Returns the bucket <code>value</code> is counted in
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return ((shift + 1) * SUB_BUCKETS) + subBucket;
+    }
+
+    /***
+     * Returns the largest value counted in <code>bucket</code>
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket / SUB_BUCKETS) - 1;
+        long subBucket = (bucket % SUB_BUCKETS) + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,466 @@
+package filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+
+/**
+ * A <code>BlockDevice</code> that maps the whole raw disk file into memory
+ * and serves inode and block I/O as copies to and from the mapping instead
+ * of a seek plus one or more reads/writes on a <code>RandomAccessFile</code>.
+ *
+ * The on-disk layout is identical to <code>Disk</code>, so an image written
+ * by one backend can be read by the other.  Writes only reach the page cache;
+ * call <code>force()</code> to make them durable.
+ */
+public class MappedDisk implements BlockDevice {
+  private static String RAW_DISK_MODE = "rw";
+
+  /**
+   * A single mapping is limited to 2 GB, so the disk is mapped in segments
+   * of 1 GB.  Block sizes are powers of two and the data region starts on a
+   * block boundary, so a data block never straddles two segments.
+   */
+  private static final int SEGMENT_SHIFT = 30;
+  private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+  private String diskFileName;
+  private RandomAccessFile rawDisk;
+  private MappedByteBuffer[] segments;
+  private DiskGeometry geometry;
+
+  public MappedDisk() {
+    this(Disk.RAW_DISK_NAME);
+  }
+
+  public MappedDisk(String diskFileName) {
+    this.diskFileName = diskFileName;
+    this.geometry = DiskGeometry.DEFAULT;
+  }
+
+  public DiskGeometry getGeometry() {
+    return geometry;
+  }
+
+  /***
+   * Initialize a new disk and map it into memory
+   *
+   * @param geometry Block size, block count and inode count of the new disk
+   * @param mode <code>QUICK</code> to size the file in one step and write only
+   *             the metadata region, <code>FULL</code> to write every block
+   * @throws IOException If an I/O error occurs
+   */
+  public void format(DiskGeometry geometry, FormatMode mode) throws IOException {
+    close();
+    this.geometry = geometry;
+    rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
+    if (mode == FormatMode.QUICK) {
+      rawDisk.setLength(0);
+    }
+    rawDisk.setLength(geometry.getDiskSize());
+    map();
+
+    /**
+     * write the superblock, an empty free block list and empty inodes
+     */
+    put(0, ByteBuffer.wrap(Disk.emptyMetadataRegion(geometry)));
+
+    if (mode == FormatMode.FULL) {
+      /**
+       * write empty disk data blocks
+       */
+      byte[] emptyDiskBlock = new byte[geometry.getBlockSize()];
+      for (int blkCount= 0; blkCount < geometry.getNumBlocks(); blkCount++) {
+        writeDataBlock(emptyDiskBlock, blkCount);
+      }
+    }
+  }
+
+  /***
+   * Open an existing, already formatted disk without changing its contents.
+   * The geometry of the disk is read from its superblock.
+   *
+   * @throws IOException If the disk does not exist, has no valid superblock
+   *                     or is smaller than its geometry says
+   */
+  public void mount() throws IOException {
+    close();
+    if (!new File(diskFileName).isFile()) {
+      throw new IOException("MappedDisk::mount:  " + diskFileName + " does not exist");
+    }
+
+    rawDisk = new RandomAccessFile(diskFileName, RAW_DISK_MODE);
+    try {
+      if (rawDisk.length() < DiskGeometry.SUPERBLOCK_SIZE) {
+        throw new IOException("MappedDisk::mount:  " + diskFileName + " is not a formatted disk");
+      }
+      byte[] superblock = new byte[DiskGeometry.SUPERBLOCK_SIZE];
+      rawDisk.readFully(superblock);
+      DiskGeometry mounted = DiskGeometry.fromSuperblock(superblock);
+
+      if (rawDisk.length() < mounted.getDiskSize()) {
+        throw new IOException("MappedDisk::mount:  " + diskFileName + " is " + rawDisk.length() +
+                              " bytes long instead of " + mounted.getDiskSize() + " bytes long");
+      }
+      geometry = mounted;
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+
+    map();
+  }
+
+  /***
+   * Maps the whole disk, one segment at a time
+   */
+  private void map() throws IOException {
+    long diskSize = geometry.getDiskSize();
+    segments = new MappedByteBuffer[(int) ((diskSize + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT)];
+    for (int i = 0; i < segments.length; i++) {
+      long start = (long) i << SEGMENT_SHIFT;
+      segments[i] = rawDisk.getChannel().map(FileChannel.MapMode.READ_WRITE, start,
+                                             Math.min(SEGMENT_SIZE, diskSize - start));
+    }
+  }
+
+  /***
+   * Retrieve the free block list
+   *
+   * @return Returns an array of bytes representing the free block list
+   */
+  public byte[] readFreeBlockList() {
+    byte[] freeList = new byte[geometry.getFreeListSize()];
+
+    get(geometry.getFreeListOffset(), ByteBuffer.wrap(freeList));
+
+    return freeList;
+  }
+
+  /***
+   * Writes free space list to the mapped disk
+   *
+   * @param freeBlockList Array of bytes representing an updated free
+   *                      byte list
+   * @throws IllegalArgumentException If the length of the updated free byte list is not
+   *                                  the same as the free byte list on the disk.
+   */
+  public void writeFreeBlockList(byte[] freeBlockList) {
+    if (freeBlockList.length != geometry.getFreeListSize()) {
+      throw new IllegalArgumentException("MappedDisk::writeFreeBlockList:  " +
+                                       "is "  +  freeBlockList.length +
+                                       "bytes long  instead of "  +
+                                       geometry.getFreeListSize() +
+                                       " bytes long");
+    }
+
+    put(geometry.getFreeListOffset(), ByteBuffer.wrap(freeBlockList));
+  }
+
+  /***
+   * Writes the bytes <code>from</code> up to <code>to</code> of the free
+   * space list to the mapped disk
+   *
+   * @param freeBlockList Array of bytes representing an updated free
+   *                      byte list
+   * @param from Index of the first byte to write
+   * @param to Index one past the last byte to write
+   * @throws IllegalArgumentException If the list or the range does not fit the disk
+   */
+  public void writeFreeBlockList(byte[] freeBlockList, int from, int to) throws IllegalArgumentException {
+    Disk.checkFreeListRange("MappedDisk::writeFreeBlockList", geometry, freeBlockList, from, to);
+
+    put(geometry.getFreeListOffset() + from, ByteBuffer.wrap(freeBlockList, from, to - from));
+  }
+
+  /***
+   * Write an <code>INode</code> instance to the appropriate position
+   *
+   * @param inode The Inode to be written to disk
+   * @param whichInode  The position to which the inode is to be written
+   */
+  public void writeInode(INode inode, int whichInode) {
+    ByteBuffer inodeBytes = Disk.INODE_BUFFER.get().clear();
+    inode.writeTo(inodeBytes);
+
+    put(geometry.inodeOffset(whichInode), inodeBytes.flip());
+  }
+
+  /***
+   * Read an <code>INode</code> instance from the appropriate position in the file system
+   *
+   * @param whichInode The <code>INode</code> position in the file system to be read
+   * @return An instance of INode read from the disk.
+   */
+  public INode readInode(int whichInode) {
+    ByteBuffer inodeBytes = Disk.INODE_BUFFER.get().clear();
+    get(geometry.inodeOffset(whichInode), inodeBytes);
+
+    return INode.readFrom(inodeBytes.flip());
+  }
+
+  /***
+   * Copies the whole inode table out of the mapping at once and decodes it
+   *
+   * @return Every inode of the disk, indexed by inode number
+   */
+  public INode[] readInodeTable() {
+    INode[] table = new INode[geometry.getNumInodes()];
+    ByteBuffer tableBytes = ByteBuffer.allocate(geometry.getInodeSize() * table.length);
+
+    get(geometry.getInodeTableOffset(), tableBytes);
+
+    for (int i = 0; i < table.length; i++) {
+      table[i] = INode.readFrom(tableBytes.position(geometry.getInodeSize() * i));
+    }
+    return table;
+  }
+
+  /***
+   * Copies the raw inode table out of the mapping into <code>dst</code>
+   *
+   * @param dst Buffer with room for the whole table
+   * @throws IllegalArgumentException If <code>dst</code> is too small
+   */
+  public void readInodeTable(ByteBuffer dst) throws IllegalArgumentException {
+    Disk.checkInodeTableTransfer("MappedDisk::readInodeTable", geometry, dst);
+    int limit = dst.limit();
+
+    dst.limit(dst.position() + (geometry.getInodeSize() * geometry.getNumInodes()));
+    get(geometry.getInodeTableOffset(), dst);
+    dst.limit(limit);
+  }
+
+  /***
+   * Writes several inodes, in inode number order
+   *
+   * @param inodes The inodes to write, by inode number
+   * @throws IllegalArgumentException If an inode number is out of range
+   */
+  public void writeInodes(Map<Integer, INode> inodes) throws IllegalArgumentException {
+    ByteBuffer inodeBytes = ByteBuffer.allocate(geometry.getInodeSize());
+
+    for (int whichInode : Disk.sortedInodeNumbers("MappedDisk::writeInodes", geometry, inodes)) {
+      inodes.get(whichInode).writeTo(inodeBytes.clear());
+      put(geometry.inodeOffset(whichInode), inodeBytes.flip());
+    }
+  }
+
+  /***
+   * Reads a block of data from the mapped disk
+   *
+   * @param whichBlock The position of the data block to be read
+   * @return A block of data at position <code>whichBlock</code>
+   * @throws IllegalArgumentException If <code>whichBlock</code> is not a block of the disk
+   */
+  public byte[] readDataBlock(int whichBlock) throws IllegalArgumentException {
+    byte[] blockData = new byte[geometry.getBlockSize()];
+    Disk.checkBlock("MappedDisk::readDataBlock", geometry, whichBlock);
+
+    get(geometry.blockOffset(whichBlock), ByteBuffer.wrap(blockData));
+
+    return blockData;
+  }
+
+  /***
+   * Writes a block of data to the mapped disk
+   *
+   * @param blockData Array of bytes to be written to <code>whichBlock</code>
+   * @param whichBlock Block position in the file system
+   * @throws IllegalArgumentException If the length of <code>blockData</code> is not equal
+   *                                  to the length of a data block size, or
+   *                                  <code>whichBlock</code> is not a block of the disk
+   */
+  public void writeDataBlock(byte[] blockData, int whichBlock) throws IllegalArgumentException {
+    if (blockData.length != geometry.getBlockSize()) {
+      throw new IllegalArgumentException("MappedDisk::writeDataBlock:  "  +
+                    "storing block of size " + blockData.length  +
+                    "when it should be of size "  + geometry.getBlockSize());
+    }
+
+    Disk.checkBlock("MappedDisk::writeDataBlock", geometry, whichBlock);
+
+    put(geometry.blockOffset(whichBlock), ByteBuffer.wrap(blockData));
+  }
+
+  /***
+   * Copies a block of data from the mapping straight into <code>dst</code>
+   *
+   * @param whichBlock The position of the data block to be read
+   * @param dst Buffer with room for a block
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>dst</code> is too small
+   */
+  public void readDataBlock(int whichBlock, ByteBuffer dst) throws IllegalArgumentException {
+    Disk.checkBlockTransfer("MappedDisk::readDataBlock", geometry, whichBlock, dst);
+    int limit = dst.limit();
+
+    dst.limit(dst.position() + geometry.getBlockSize());
+    get(geometry.blockOffset(whichBlock), dst);
+    dst.limit(limit);
+  }
+
+  /***
+   * Copies a block of data from <code>src</code> straight into the mapping
+   *
+   * @param src Buffer holding a block
+   * @param whichBlock Block position in the file system
+   * @throws IllegalArgumentException If the block number is out of range or
+   *                                  <code>src</code> is too small
+   */
+  public void writeDataBlock(ByteBuffer src, int whichBlock) throws IllegalArgumentException {
+    Disk.checkBlockTransfer("MappedDisk::writeDataBlock", geometry, whichBlock, src);
+    int limit = src.limit();
+
+    src.limit(src.position() + geometry.getBlockSize());
+    put(geometry.blockOffset(whichBlock), src);
+    src.limit(limit);
+  }
+
+  /***
+   * Reads several data blocks into <code>dst</code>, copying each run of
+   * blocks that are adjacent both on disk and in <code>blocks</code> at once
+   *
+   * @param blocks The data blocks to read, in any order
+   * @param dst Buffer with room for <code>blocks.length</code> blocks
+   * @throws IllegalArgumentException If a block number is out of range or
+   *                                  <code>dst</code> is too small
+   */
+  public void readBlocks(int[] blocks, ByteBuffer dst) throws IllegalArgumentException {
+    Disk.checkBlockTransfer("MappedDisk::readBlocks", geometry, blocks, dst);
+    int blockSize = geometry.getBlockSize();
+
+    for (int run = 0, runEnd; run < blocks.length; run = runEnd) {
+      runEnd = endOfRun(blocks, run);
+      int start = dst.position() + (blockSize * run);
+      get(geometry.blockOffset(blocks[run]),
+          dst.duplicate().limit(start + (blockSize * (runEnd - run))).position(start));
+    }
+
+    dst.position(dst.position() + (blockSize * blocks.length));
+  }
+
+  /***
+   * Writes several data blocks from <code>src</code>, copying each run of
+   * blocks that are adjacent both on disk and in <code>blocks</code> at once
+   *
+   * @param blocks The data blocks to write, in any order
+   * @param src Buffer holding <code>blocks.length</code> blocks
+   * @throws IllegalArgumentException If a block number is out of range or
+   *                                  <code>src</code> is too small
+   */
+  public void writeBlocks(int[] blocks, ByteBuffer src) throws IllegalArgumentException {
+    Disk.checkBlockTransfer("MappedDisk::writeBlocks", geometry, blocks, src);
+    int blockSize = geometry.getBlockSize();
+
+    for (int run = 0, runEnd; run < blocks.length; run = runEnd) {
+      runEnd = endOfRun(blocks, run);
+      int start = src.position() + (blockSize * run);
+      put(geometry.blockOffset(blocks[run]),
+          src.duplicate().limit(start + (blockSize * (runEnd - run))).position(start));
+    }
+
+    src.position(src.position() + (blockSize * blocks.length));
+  }
+
+  /***
+   * Reads the whole journal region
+   *
+   * @return The bytes of the journal
+   */
+  public byte[] readJournal() {
+    byte[] journal = new byte[geometry.getJournalSize()];
+
+    get(geometry.getJournalOffset(), ByteBuffer.wrap(journal));
+
+    return journal;
+  }
+
+  /***
+   * Writes the remaining bytes of <code>src</code> into the journal region
+   *
+   * @param src The bytes to write
+   * @param offset Position within the journal of the first byte
+   * @throws IllegalArgumentException If the bytes do not fit in the journal
+   */
+  public void writeJournal(ByteBuffer src, int offset) throws IllegalArgumentException {
+    Disk.checkJournalTransfer("MappedDisk::writeJournal", geometry, src, offset);
+
+    put(geometry.getJournalOffset() + offset, src);
+  }
+
+  /***
+   * Copies the disk starting at <code>position</code> into the remaining
+   * space of <code>dst</code>, crossing segments as needed
+   */
+  private void get(long position, ByteBuffer dst) {
+    while (dst.hasRemaining()) {
+      MappedByteBuffer segment = segments[(int) (position >> SEGMENT_SHIFT)];
+      int offset = (int) (position & (SEGMENT_SIZE - 1));
+      int count = Math.min(dst.remaining(), segment.capacity() - offset);
+      dst.put(dst.position(), segment, offset, count);
+      dst.position(dst.position() + count);
+      position += count;
+    }
+  }
+
+  /***
+   * Copies the remaining bytes of <code>src</code> to the disk starting at
+   * <code>position</code>, crossing segments as needed
+   */
+  private void put(long position, ByteBuffer src) {
+    while (src.hasRemaining()) {
+      MappedByteBuffer segment = segments[(int) (position >> SEGMENT_SHIFT)];
+      int offset = (int) (position & (SEGMENT_SIZE - 1));
+      int count = Math.min(src.remaining(), segment.capacity() - offset);
+      segment.put(offset, src, src.position(), count);
+      src.position(src.position() + count);
+      position += count;
+    }
+  }
+
+  /***
+   * Finds the end of the run of blocks starting at <code>start</code> that
+   * follow each other on disk
+   *
+   * @return The index in <code>blocks</code> one past the end of the run
+   */
+  private static int endOfRun(int[] blocks, int start) {
+    int end = start + 1;
+    while (end < blocks.length && blocks[end] == blocks[end - 1] + 1) {
+      end++;
+    }
+    return end;
+  }
+
+  /***
+   * Forces the mapped pages and the file metadata out to the storage device
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void force() throws IOException {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+    rawDisk.getChannel().force(true);
+  }
+
+  /***
+   * Closes the raw disk file.  The mapping itself stays valid until it is
+   * garbage collected.
+   *
+   * @throws IOException If an I/O error occurs
+   */
+  public void close() throws IOException {
+    if (rawDisk != null) {
+      rawDisk.close();
+      rawDisk = null;
+      segments = null;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Times every transfer of another <code>BlockDevice</code> and counts the
+ * blocks, inodes and bytes it moves, in a <code>Metrics</code> registry.
+ * Everything else is passed through unchanged.  When the device is a
+ * <code>CachedDisk</code> its hit, miss, eviction and write-back counts are
+ * published as gauges.
+ */
+public class MeteredDisk implements BlockDevice {
+  private final BlockDevice device;
+
+  private final LatencyHistogram readLatency;
+  private final LatencyHistogram writeLatency;
+  private final LatencyHistogram readInodeLatency;
+  private final LatencyHistogram writeInodeLatency;
+  private final LatencyHistogram freeListLatency;
+  private final LatencyHistogram journalLatency;
+  private final LatencyHistogram forceLatency;
+  private final LongAdder blocksRead;
+  private final LongAdder blocksWritten;
+  private final LongAdder inodesRead;
+  private final LongAdder inodesWritten;
+  private final LongAdder bytesRead;
+  private final LongAdder bytesWritten;
+
+  /***
+   * Meters <code>device</code>, recording under names starting with <code>disk.</code>
+   */
+  public MeteredDisk(BlockDevice device, Metrics metrics) {
+    this.device = device;
+    readLatency = metrics.histogram("disk.read");
+    writeLatency = metrics.histogram("disk.write");
+    readInodeLatency = metrics.histogram("disk.readInode");
+    writeInodeLatency = metrics.histogram("disk.writeInode");
+    freeListLatency = metrics.histogram("disk.freeBlockList");
+    journalLatency = metrics.histogram("disk.journal");
+    forceLatency = metrics.histogram("disk.force");
+    blocksRead = metrics.counter("disk.blocksRead");
+    blocksWritten = metrics.counter("disk.blocksWritten");
+    inodesRead = metrics.counter("disk.inodesRead");
+    inodesWritten = metrics.counter("disk.inodesWritten");
+    bytesRead = metrics.counter("disk.bytesRead");
+    bytesWritten = metrics.counter("disk.bytesWritten");
+
+    if (device instanceof CachedDisk) {
+      CachedDisk cache = (CachedDisk) device;
+      metrics.gauge("cache.hits", cache::getHits);
+      metrics.gauge("cache.misses", cache::getMisses);
+      metrics.gauge("cache.evictions", cache::getEvictions);
+      metrics.gauge("cache.writeBacks", cache::getWriteBacks);
+    }
+  }
+
+  public DiskGeometry getGeometry() {
+    return device.getGeometry();
+  }
+
+  public void format(DiskGeometry geometry, FormatMode mode) throws IOException {
+    device.format(geometry, mode);
+  }
+
+  public void mount() throws IOException {
+    device.mount();
+  }
+
+  public byte[] readFreeBlockList() throws IOException {
+    long start = System.nanoTime();
+    byte[] freeBlockList = device.readFreeBlockList();
+    freeListLatency.record(System.nanoTime() - start);
+    bytesRead.add(freeBlockList.length);
+    return freeBlockList;
+  }
+
+  public void writeFreeBlockList(byte[] freeBlockList) throws IOException {
+    long start = System.nanoTime();
+    device.writeFreeBlockList(freeBlockList);
+    freeListLatency.record(System.nanoTime() - start);
+    bytesWritten.add(freeBlockList.length);
+  }
+
+  public void writeFreeBlockList(byte[] freeBlockList, int from, int to)
+      throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.writeFreeBlockList(freeBlockList, from, to);
+    freeListLatency.record(System.nanoTime() - start);
+    bytesWritten.add(to - from);
+  }
+
+  public void writeInode(INode inode, int whichInode) throws IOException {
+    long start = System.nanoTime();
+    device.writeInode(inode, whichInode);
+    writeInodeLatency.record(System.nanoTime() - start);
+    inodesWritten.increment();
+    bytesWritten.add(INode.INODE_SIZE);
+  }
+
+  public INode readInode(int whichInode) throws IOException {
+    long start = System.nanoTime();
+    INode inode = device.readInode(whichInode);
+    readInodeLatency.record(System.nanoTime() - start);
+    inodesRead.increment();
+    bytesRead.add(INode.INODE_SIZE);
+    return inode;
+  }
+
+  public INode[] readInodeTable() throws IOException {
+    long start = System.nanoTime();
+    INode[] table = device.readInodeTable();
+    readInodeLatency.record(System.nanoTime() - start);
+    inodesRead.add(table.length);
+    bytesRead.add((long) table.length * getGeometry().getInodeSize());
+    return table;
+  }
+
+  public void readInodeTable(ByteBuffer dst) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.readInodeTable(dst);
+    readInodeLatency.record(System.nanoTime() - start);
+    int numInodes = getGeometry().getNumInodes();
+    inodesRead.add(numInodes);
+    bytesRead.add((long) numInodes * getGeometry().getInodeSize());
+  }
+
+  public void writeInodes(Map<Integer, INode> inodes) throws IOException, IllegalArgumentException {
+    if (inodes.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    device.writeInodes(inodes);
+    writeInodeLatency.record(System.nanoTime() - start);
+    inodesWritten.add(inodes.size());
+    bytesWritten.add((long) inodes.size() * INode.INODE_SIZE);
+  }
+
+  public byte[] readDataBlock(int whichBlock) throws IOException {
+    long start = System.nanoTime();
+    byte[] blockData = device.readDataBlock(whichBlock);
+    readLatency.record(System.nanoTime() - start);
+    blocksRead.increment();
+    bytesRead.add(blockData.length);
+    return blockData;
+  }
+
+  public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.writeDataBlock(blockData, whichBlock);
+    writeLatency.record(System.nanoTime() - start);
+    blocksWritten.increment();
+    bytesWritten.add(blockData.length);
+  }
+
+  public void readDataBlock(int whichBlock, ByteBuffer dst) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.readDataBlock(whichBlock, dst);
+    readLatency.record(System.nanoTime() - start);
+    blocksRead.increment();
+    bytesRead.add(getGeometry().getBlockSize());
+  }
+
+  public void writeDataBlock(ByteBuffer src, int whichBlock) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.writeDataBlock(src, whichBlock);
+    writeLatency.record(System.nanoTime() - start);
+    blocksWritten.increment();
+    bytesWritten.add(getGeometry().getBlockSize());
+  }
+
+  public void readBlocks(int[] blocks, ByteBuffer dst) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.readBlocks(blocks, dst);
+    readLatency.record(System.nanoTime() - start);
+    blocksRead.add(blocks.length);
+    bytesRead.add((long) blocks.length * getGeometry().getBlockSize());
+  }
+
+  public void writeBlocks(int[] blocks, ByteBuffer src) throws IOException, IllegalArgumentException {
+    long start = System.nanoTime();
+    device.writeBlocks(blocks, src);
+    writeLatency.record(System.nanoTime() - start);
+    blocksWritten.add(blocks.length);
+    bytesWritten.add((long) blocks.length * getGeometry().getBlockSize());
+  }
+
+  public byte[] readJournal() throws IOException {
+    long start = System.nanoTime();
+    byte[] journal = device.readJournal();
+    journalLatency.record(System.nanoTime() - start);
+    bytesRead.add(journal.length);
+    return journal;
+  }
+
+  public void writeJournal(ByteBuffer src, int offset) throws IOException, IllegalArgumentException {
+    int length = src.remaining();
+    long start = System.nanoTime();
+    device.writeJournal(src, offset);
+    journalLatency.record(System.nanoTime() - start);
+    bytesWritten.add(length);
+  }
+
+  public void force() throws IOException {
+    long start = System.nanoTime();
+    device.force();
+    forceLatency.record(System.nanoTime() - start);
+  }
+
+  public void close() throws IOException {
+    device.close();
+  }
+}
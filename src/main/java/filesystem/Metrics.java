@@ -0,0 +1,101 @@
+package filesystem;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Registry of the counters, gauges and latency histograms of a file
+ * system.  Hot paths look their counters and histograms up once and keep
+ * them, so updating a metric is a few atomic adds.  The current values are
+ * available from <code>snapshot</code> and, once registered, over JMX.
+ */
+public class Metrics {
+    private final Map<String, LongAdder> counters;
+    private final Map<String, LongSupplier> gauges;
+    private final Map<String, LatencyHistogram> histograms;
+
+    public Metrics() {
+        counters = new ConcurrentHashMap<>();
+        gauges = new ConcurrentHashMap<>();
+        histograms = new ConcurrentHashMap<>();
+    }
+
+    /***
+     * Returns the counter called <code>name</code>, creating it on first use
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, ignored -> new LongAdder());
+    }
+
+    /***
+     * Returns the latency histogram called <code>name</code>, creating it on first use
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, ignored -> new LatencyHistogram());
+    }
+
+    /***
+     * Registers a value that is read when a snapshot is taken, such as a
+     * statistic another component already keeps
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /***
+     * Returns the current value of every metric by name.  A histogram
+     * <code>h</code> shows up as <code>h.count</code>,
+     * <code>h.meanNanos</code>, <code>h.p50Nanos</code>,
+     * <code>h.p99Nanos</code>, <code>h.p999Nanos</code> and <code>h.maxNanos</code>.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : histograms.entrySet()) {
+            String name = histogram.getKey();
+            LatencyHistogram latencies = histogram.getValue();
+            values.put(name + ".count", latencies.getCount());
+            values.put(name + ".meanNanos", latencies.getMeanNanos());
+            values.put(name + ".p50Nanos", latencies.getValueAtPercentile(50));
+            values.put(name + ".p99Nanos", latencies.getValueAtPercentile(99));
+            values.put(name + ".p999Nanos", latencies.getValueAtPercentile(99.9));
+            values.put(name + ".maxNanos", latencies.getMaxNanos());
+        }
+        return values;
+    }
+
+    /***
+     * Publishes the metrics on the platform MBean server as the read-only
+     * attributes of <code>filesystem:type=Metrics,name=</code><code>name</code>
+     *
+     * @param name Tells apart the file systems of one process
+     * @return The name the metrics were registered under
+     * @throws JMException If the name is malformed or already taken
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = ObjectName.getInstance("filesystem:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), objectName);
+        return objectName;
+    }
+
+    /***
+     * Removes metrics published by <code>registerMBean</code>
+     *
+     * @throws JMException If nothing is registered under <code>objectName</code>
+     */
+    public static void unregisterMBean(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+}
@@ -0,0 +1,40 @@
+package filesystem;
+
+
+/**
+ * Per-handle state of an open file: which inode it refers to, the
+ * in-memory copy of that inode and its block map, and the position of the
+ * next read or write.  Handles on the same file share one <code>BlockMap</code> and
+ * with it one <code>INode</code> instance.
+ */
+class OpenFile {
+    private final int iNodeNumber;
+    private final BlockMap blockMap;
+    private long cursor;
+
+    OpenFile(int iNodeNumber, BlockMap blockMap) {
+        this.iNodeNumber = iNodeNumber;
+        this.blockMap = blockMap;
+        this.cursor = 0;
+    }
+
+    int getINodeNumber() {
+        return iNodeNumber;
+    }
+
+    INode getINode() {
+        return blockMap.getINode();
+    }
+
+    BlockMap getBlockMap() {
+        return blockMap;
+    }
+
+    long getCursor() {
+        return cursor;
+    }
+
+    void setCursor(long cursor) {
+        this.cursor = cursor;
+    }
+}
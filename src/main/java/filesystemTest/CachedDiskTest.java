@@ -0,0 +1,189 @@
+package filesystemTest;
+import filesystem.CachedDisk;
+import filesystem.Disk;
+import filesystem.EvictionPolicy;
+import filesystem.FileSystem;
+import filesystem.INode;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class CachedDiskTest {
+
+    /**
+     * A disk whose writes fail while <code>failing</code> is set
+     */
+    private static class FailingDisk extends Disk {
+        boolean failing;
+
+        @Override
+        public void writeDataBlock(byte[] blockData, int whichBlock) throws IOException {
+            fail();
+            super.writeDataBlock(blockData, whichBlock);
+        }
+
+        @Override
+        public void writeBlocks(int[] blocks, ByteBuffer src) throws IOException {
+            fail();
+            super.writeBlocks(blocks, src);
+        }
+
+        @Override
+        public void writeInode(INode inode, int whichInode) throws IOException {
+            fail();
+            super.writeInode(inode, whichInode);
+        }
+
+        @Override
+        public void writeInodes(Map<Integer, INode> inodes) throws IOException {
+            fail();
+            super.writeInodes(inodes);
+        }
+
+        private void fail() throws IOException {
+            if (failing) {
+                throw new IOException("FailingDisk: write failed");
+            }
+        }
+    }
+
+    private static byte[] filledBlock(int value) {
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        Arrays.fill(block, (byte) value);
+        return block;
+    }
+
+    @Test
+    void writeBackOnEvictionTest01() throws IOException {
+        Disk disk = new Disk();
+        CachedDisk cache = new CachedDisk(disk, 4, EvictionPolicy.LRU);
+        cache.format();
+
+        for (int i = 0; i < 4; i++) {
+            cache.writeDataBlock(filledBlock(i + 1), i);
+        }
+        // nothing has reached the disk yet
+        assertArrayEquals(new byte[Disk.BLOCK_SIZE], disk.readDataBlock(0));
+
+        // touch block 0 so block 1 is the least recently used one
+        assertArrayEquals(filledBlock(1), cache.readDataBlock(0));
+        cache.writeDataBlock(filledBlock(9), 10);
+        assertEquals(1, cache.getEvictions());
+        assertArrayEquals(filledBlock(2), disk.readDataBlock(1));
+        assertArrayEquals(new byte[Disk.BLOCK_SIZE], disk.readDataBlock(0));
+
+        cache.sync();
+        assertArrayEquals(filledBlock(1), disk.readDataBlock(0));
+        assertArrayEquals(filledBlock(9), disk.readDataBlock(10));
+        assertEquals(5, cache.getWriteBacks());
+        cache.close();
+    }
+
+    @Test
+    void failedWriteBackKeepsDirtyEntriesTest01() throws IOException {
+        FailingDisk disk = new FailingDisk();
+        CachedDisk cache = new CachedDisk(disk, 2, EvictionPolicy.LRU);
+        cache.format();
+        cache.writeDataBlock(filledBlock(1), 0);
+        cache.writeDataBlock(filledBlock(2), 1);
+
+        // neither a failed sync nor a failed eviction loses a dirty block
+        disk.failing = true;
+        assertThrows(IOException.class, cache::sync);
+        assertThrows(IOException.class, () -> cache.writeDataBlock(filledBlock(3), 2));
+        assertEquals(0, cache.getEvictions());
+        assertArrayEquals(new byte[Disk.BLOCK_SIZE], disk.readDataBlock(0));
+
+        disk.failing = false;
+        cache.sync();
+        assertArrayEquals(filledBlock(1), disk.readDataBlock(0));
+        assertArrayEquals(filledBlock(2), disk.readDataBlock(1));
+        assertArrayEquals(filledBlock(3), disk.readDataBlock(2));
+        cache.close();
+    }
+
+    @Test
+    void clockEvictionTest01() throws IOException {
+        Disk disk = new Disk();
+        CachedDisk cache = new CachedDisk(disk, 3, EvictionPolicy.CLOCK);
+        cache.format();
+
+        for (int i = 0; i < 3; i++) {
+            cache.readDataBlock(i);
+        }
+        // blocks 0 and 2 get a second chance, block 1 is the first unreferenced one
+        cache.readDataBlock(0);
+        cache.readDataBlock(2);
+        cache.readDataBlock(3);
+        assertEquals(3, cache.size());
+
+        long misses = cache.getMisses();
+        cache.readDataBlock(0);
+        cache.readDataBlock(2);
+        assertEquals(misses, cache.getMisses());
+        cache.readDataBlock(1);
+        assertEquals(misses + 1, cache.getMisses());
+        cache.close();
+    }
+
+    @Test
+    void readBlocksAndInodesFromCacheTest01() throws IOException {
+        CachedDisk cache = new CachedDisk(new Disk());
+        cache.format();
+
+        INode inode = new INode();
+        inode.setFileName("cached.txt");
+        inode.setBlockPointer(0, 4);
+        cache.writeInode(inode, 2);
+        // the cache keeps its own copy
+        inode.setBlockPointer(0, 99);
+        assertEquals(4, cache.readInode(2).getBlockPointer(0));
+
+        cache.writeDataBlock(filledBlock(7), 4);
+        ByteBuffer dst = ByteBuffer.allocate(2 * Disk.BLOCK_SIZE);
+        cache.readBlocks(new int[]{5, 4}, dst);
+        assertEquals(0, dst.get(0));
+        assertEquals(7, dst.get(Disk.BLOCK_SIZE));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        cache.close();
+    }
+
+    @Test
+    void repeatedReadsServedFromMemoryTest01() throws IOException {
+        String testData = "This is some text ";
+        CachedDisk cache = new CachedDisk(new Disk());
+        FileSystem fs = new FileSystem(cache);
+        String theMessage = "";
+        for (int i = 0; i < 50; i++) {
+            theMessage = theMessage.concat(testData + i + ".  ");
+        }
+        int fd = fs.create("popular.txt");
+        fs.write(fd, theMessage);
+        fs.close(fd);
+
+        long misses = cache.getMisses();
+        for (int i = 0; i < 10; i++) {
+            fd = fs.open("popular.txt");
+            assertEquals(theMessage, fs.read(fd));
+            fs.close(fd);
+        }
+        assertEquals(misses, cache.getMisses());
+        fs.unmount();
+
+        // everything was written back, so a plain disk sees the file too
+        FileSystem mounted = FileSystem.mount(new Disk());
+        fd = mounted.open("popular.txt");
+        assertEquals(theMessage, mounted.read(fd));
+        mounted.close(fd);
+        mounted.unmount();
+    }
+}
@@ -0,0 +1,387 @@
+package filesystemTest;
+import filesystem.BlockDevice;
+import filesystem.CachedDisk;
+import filesystem.Disk;
+import filesystem.DiskGeometry;
+import filesystem.EvictionPolicy;
+import filesystem.FileSystem;
+import filesystem.FormatMode;
+import filesystem.INode;
+import filesystem.INodeView;
+import filesystem.MappedDisk;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+
+public class DiskTest {
+
+    private void checkInodeAndBlockRoundTrip(BlockDevice disk) throws IOException {
+        disk.format();
+
+        INode inode = new INode();
+        inode.setFileName("disk.txt");
+        inode.setSize(2);
+        inode.setBlockPointer(0, 7);
+        inode.setBlockPointer(1, 9);
+        disk.writeInode(inode, 3);
+
+        byte[] block = new byte[Disk.BLOCK_SIZE];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) i;
+        }
+        disk.writeDataBlock(block, 9);
+
+        INode actual = disk.readInode(3);
+        assertEquals("disk.txt", actual.getFileName().trim());
+        assertEquals(2, actual.getSize());
+        assertEquals(7, actual.getBlockPointer(0));
+        assertEquals(9, actual.getBlockPointer(1));
+        assertEquals(-1, actual.getBlockPointer(2));
+        assertNull(disk.readInode(4).getFileName());
+        assertArrayEquals(block, disk.readDataBlock(9));
+        disk.force();
+    }
+
+    @Test
+    void diskRoundTripTest01() throws IOException {
+        try (BlockDevice disk = new Disk()) {
+            checkInodeAndBlockRoundTrip(disk);
+        }
+    }
+
+    @Test
+    void mappedDiskRoundTripTest01() throws IOException {
+        try (BlockDevice disk = new MappedDisk()) {
+            checkInodeAndBlockRoundTrip(disk);
+        }
+    }
+
+    @Test
+    void mappedDiskFileSystemTest01() throws IOException {
+        String testData = "This is some text ";
+        FileSystem fs = new FileSystem(new MappedDisk());
+        String theMessage = "";
+        for (int i = 0; i < 100; i++) {
+            theMessage = theMessage.concat(testData + i + ".  ");
+        }
+        int fd = fs.create("mapped.txt");
+        fs.write(fd, theMessage);
+        fs.close(fd);
+
+        fd = fs.open("mapped.txt");
+        assertEquals(theMessage, fs.read(fd));
+        fs.close(fd);
+    }
+
+    @Test
+    void quickFormatClearsOldDataTest01() throws IOException {
+        try (BlockDevice disk = new Disk()) {
+            disk.format(FormatMode.FULL);
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(block, (byte) 'x');
+            disk.writeDataBlock(block, Disk.NUM_BLOCKS - 1);
+            INode inode = new INode();
+            inode.setFileName("old.txt");
+            disk.writeInode(inode, 0);
+
+            disk.format(FormatMode.QUICK);
+            assertArrayEquals(new byte[Disk.BLOCK_SIZE], disk.readDataBlock(Disk.NUM_BLOCKS - 1));
+            assertNull(disk.readInode(0).getFileName());
+            assertEquals(-1, disk.readInode(Disk.NUM_INODES - 1).getBlockPointer(INode.NUM_BLOCK_POINTERS - 1));
+        }
+    }
+
+    private void checkMultiBlockTransfer(BlockDevice disk) throws IOException {
+        disk.format();
+        // two runs on disk (5..7 and 20..21), handed over out of order
+        int[] blocks = {7, 20, 5, 6, 21};
+        ByteBuffer src = ByteBuffer.allocate(blocks.length * Disk.BLOCK_SIZE);
+        for (int i = 0; i < blocks.length; i++) {
+            byte[] block = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(block, (byte) blocks[i]);
+            src.put(block);
+        }
+        src.flip();
+        disk.writeBlocks(blocks, src);
+        assertEquals(src.limit(), src.position());
+
+        for (int block : blocks) {
+            byte[] expected = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(expected, (byte) block);
+            assertArrayEquals(expected, disk.readDataBlock(block));
+        }
+
+        int[] readOrder = {21, 5, 6, 7, 20};
+        ByteBuffer dst = ByteBuffer.allocate(readOrder.length * Disk.BLOCK_SIZE);
+        disk.readBlocks(readOrder, dst);
+        assertEquals(dst.capacity(), dst.position());
+        for (int i = 0; i < readOrder.length; i++) {
+            assertEquals((byte) readOrder[i], dst.get(i * Disk.BLOCK_SIZE));
+            assertEquals((byte) readOrder[i], dst.get((i + 1) * Disk.BLOCK_SIZE - 1));
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> disk.readBlocks(new int[]{-1}, ByteBuffer.allocate(Disk.BLOCK_SIZE)));
+        assertThrows(IllegalArgumentException.class,
+                () -> disk.readBlocks(new int[]{1, 2}, ByteBuffer.allocate(Disk.BLOCK_SIZE)));
+    }
+
+    @Test
+    void diskMultiBlockTransferTest01() throws IOException {
+        try (BlockDevice disk = new Disk()) {
+            checkMultiBlockTransfer(disk);
+        }
+    }
+
+    @Test
+    void mappedDiskMultiBlockTransferTest01() throws IOException {
+        try (BlockDevice disk = new MappedDisk()) {
+            checkMultiBlockTransfer(disk);
+        }
+    }
+
+    private void checkBufferBlockTransfer(BlockDevice disk) throws IOException {
+        disk.format();
+        // one buffer serves every transfer, a block at a time from its position
+        ByteBuffer buffer = ByteBuffer.allocate(3 * Disk.BLOCK_SIZE);
+        for (int block = 10; block < 13; block++) {
+            byte[] contents = new byte[Disk.BLOCK_SIZE];
+            Arrays.fill(contents, (byte) block);
+            buffer.put(contents);
+        }
+        buffer.flip();
+        for (int block = 10; block < 13; block++) {
+            disk.writeDataBlock(buffer, block);
+        }
+        assertEquals(buffer.limit(), buffer.position());
+
+        buffer.clear().position(Disk.BLOCK_SIZE);
+        disk.readDataBlock(11, buffer);
+        assertEquals(2 * Disk.BLOCK_SIZE, buffer.position());
+        assertEquals(buffer.capacity(), buffer.limit());
+        assertEquals((byte) 11, buffer.get(Disk.BLOCK_SIZE));
+        assertEquals((byte) 11, buffer.get(2 * Disk.BLOCK_SIZE - 1));
+
+        byte[] expected = new byte[Disk.BLOCK_SIZE];
+        Arrays.fill(expected, (byte) 12);
+        assertArrayEquals(expected, disk.readDataBlock(12));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> disk.readDataBlock(Disk.NUM_BLOCKS, ByteBuffer.allocate(Disk.BLOCK_SIZE)));
+        assertThrows(IllegalArgumentException.class,
+                () -> disk.writeDataBlock(ByteBuffer.allocate(Disk.BLOCK_SIZE - 1), 0));
+        assertThrows(IllegalArgumentException.class, () -> disk.readDataBlock(-1));
+        assertThrows(IllegalArgumentException.class, () -> disk.readDataBlock(Disk.NUM_BLOCKS));
+        assertThrows(IllegalArgumentException.class, () -> disk.writeDataBlock(new byte[Disk.BLOCK_SIZE], -1));
+        assertThrows(IllegalArgumentException.class,
+                () -> disk.writeDataBlock(new byte[Disk.BLOCK_SIZE], Disk.NUM_BLOCKS));
+    }
+
+    @Test
+    void bufferBlockTransferTest01() throws IOException {
+        try (BlockDevice disk = new Disk()) {
+            checkBufferBlockTransfer(disk);
+        }
+        try (BlockDevice disk = new MappedDisk()) {
+            checkBufferBlockTransfer(disk);
+        }
+        try (BlockDevice disk = new CachedDisk(new Disk())) {
+            checkBufferBlockTransfer(disk);
+        }
+    }
+
+    private void checkGeometry(BlockDevice disk, BlockDevice remounted) throws IOException {
+        DiskGeometry geometry = new DiskGeometry(4096, 1024, 64);
+        disk.format(geometry);
+        byte[] block = new byte[4096];
+        Arrays.fill(block, (byte) 'g');
+        disk.writeDataBlock(block, 1023);
+        INode inode = new INode();
+        inode.setFileName("geometry.txt");
+        disk.writeInode(inode, 63);
+        disk.close();
+
+        // the geometry comes back from the superblock
+        remounted.mount();
+        assertEquals(geometry, remounted.getGeometry());
+        assertArrayEquals(block, remounted.readDataBlock(1023));
+        assertEquals("geometry.txt", remounted.readInode(63).getFileName().trim());
+        assertThrows(IllegalArgumentException.class, () -> remounted.writeDataBlock(new byte[512], 0));
+        remounted.close();
+    }
+
+    @Test
+    void diskGeometryTest01() throws IOException {
+        checkGeometry(new Disk(), new Disk());
+        checkGeometry(new MappedDisk(), new MappedDisk());
+        checkGeometry(new Disk(), new MappedDisk());
+
+        assertThrows(IllegalArgumentException.class, () -> new DiskGeometry(1000, 1024, 64));
+        assertThrows(IllegalArgumentException.class, () -> new DiskGeometry(128 * 1024, 1024, 64));
+        assertThrows(IllegalArgumentException.class, () -> new DiskGeometry(512, 1001, 64));
+
+        try (RandomAccessFile notADisk = new RandomAccessFile("NotADisk.dsk", "rw")) {
+            notADisk.setLength(4096);
+        }
+        assertThrows(IOException.class, () -> new Disk("NotADisk.dsk").mount());
+        new File("NotADisk.dsk").delete();
+    }
+
+    @Test
+    void largeDiskTest01() throws IOException {
+        // 64 KB blocks on a 4 GB disk, past what a single int offset or mapping can reach
+        DiskGeometry geometry = new DiskGeometry(64 * 1024, 64 * 1024, 16);
+        byte[] data = new byte[300 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / 1000);
+        }
+
+        try {
+            FileSystem fs = new FileSystem(new Disk("Large.dsk"), geometry);
+            int fd = fs.create("large.bin");
+            fs.write(fd, ByteBuffer.wrap(data), 0);
+            fs.close(fd);
+            assertEquals(5, fs.getNumberOfBlocksAllocated());
+            fs.unmount();
+
+            try (BlockDevice disk = new MappedDisk("Large.dsk")) {
+                disk.mount();
+                byte[] block = new byte[64 * 1024];
+                Arrays.fill(block, (byte) 'z');
+                disk.writeDataBlock(block, geometry.getNumBlocks() - 1);
+                assertArrayEquals(block, disk.readDataBlock(geometry.getNumBlocks() - 1));
+            }
+
+            fs = FileSystem.mount(new Disk("Large.dsk"));
+            fd = fs.open("large.bin");
+            ByteBuffer actual = ByteBuffer.allocate(data.length);
+            fs.read(fd, actual, 0);
+            assertArrayEquals(data, actual.array());
+            fs.unmount();
+        } finally {
+            new File("Large.dsk").delete();
+        }
+    }
+
+    @Test
+    void compactInodeTableTest01() throws IOException {
+        DiskGeometry geometry = DiskGeometry.DEFAULT;
+        assertEquals(196, INode.INODE_SIZE);
+        assertEquals(2, geometry.getInodesPerBlock());
+        assertEquals(0, geometry.getInodeTableOffset() % geometry.getBlockSize());
+        assertEquals(geometry.getInodeTableOffset() + (256L * Disk.NUM_INODES), geometry.getJournalOffset());
+
+        // neighbouring inodes share a block without overwriting each other
+        try (BlockDevice disk = new Disk()) {
+            disk.format();
+            for (int i = 0; i < 4; i++) {
+                INode inode = new INode();
+                inode.setFileName("inode" + i);
+                inode.setSize(i);
+                inode.setBlockPointer(INode.NUM_BLOCK_POINTERS - 1, 100 + i);
+                disk.writeInode(inode, i);
+            }
+            for (int i = 0; i < 4; i++) {
+                INode inode = disk.readInode(i);
+                assertEquals("inode" + i, inode.getFileName().trim());
+                assertEquals(i, inode.getSize());
+                assertEquals(100 + i, inode.getBlockPointer(INode.NUM_BLOCK_POINTERS - 1));
+            }
+        }
+
+        // a disk written with the old 1120 byte inode slots is refused
+        byte[] superblock = geometry.toSuperblock();
+        superblock[7] = 1;
+        assertThrows(IOException.class, () -> DiskGeometry.fromSuperblock(superblock));
+    }
+
+    private void checkInodeTable(BlockDevice disk) throws IOException {
+        disk.format();
+        Map<Integer, INode> inodes = new HashMap<>();
+        for (int i : new int[]{7, 5, 6, 100, Disk.NUM_INODES - 1}) {
+            INode inode = new INode();
+            inode.setFileName("table" + i);
+            inode.setSize(i * 10);
+            inode.setBlockPointer(0, i);
+            inodes.put(i, inode);
+        }
+        disk.writeInodes(inodes);
+
+        INode[] table = disk.readInodeTable();
+        assertEquals(Disk.NUM_INODES, table.length);
+        for (int i = 0; i < table.length; i++) {
+            if (inodes.containsKey(i)) {
+                assertEquals("table" + i, table[i].getFileName().trim());
+                assertEquals(i * 10, table[i].getSize());
+                assertEquals(i, table[i].getBlockPointer(0));
+                assertEquals(table[i].getFileName().trim(), disk.readInode(i).getFileName().trim());
+            } else {
+                assertNull(table[i].getFileName());
+            }
+        }
+
+        // the raw table read in place agrees with the decoded one
+        ByteBuffer raw = ByteBuffer.allocateDirect(Disk.INODE_SIZE * Disk.NUM_INODES);
+        disk.readInodeTable(raw);
+        assertEquals(raw.capacity(), raw.position());
+        INodeView view = new INodeView(raw.flip(), Disk.INODE_SIZE);
+        assertEquals(Disk.NUM_INODES, view.getNumInodes());
+        for (int i = 0; i < table.length; i++) {
+            view.moveTo(i);
+            assertEquals(!inodes.containsKey(i), view.isFree());
+            assertEquals(table[i].getFileName(), view.getFileName());
+            assertEquals(table[i].getSize(), view.getSize());
+            assertEquals(table[i].getBlockPointer(0), view.getBlockPointer(0));
+        }
+        assertEquals(100, view.find("table100".getBytes()));
+        assertEquals(1000, view.toINode().getSize());
+        assertEquals(-1, view.find("table10".getBytes()));
+        assertFalse(view.moveTo(6).fileNameEquals("table6x".getBytes()));
+        assertThrows(IllegalArgumentException.class, () -> view.moveTo(Disk.NUM_INODES));
+
+        assertThrows(IllegalArgumentException.class,
+                () -> disk.writeInodes(Map.of(Disk.NUM_INODES, new INode())));
+    }
+
+    @Test
+    void inodeTableTest01() throws IOException {
+        try (BlockDevice disk = new Disk()) {
+            checkInodeTable(disk);
+        }
+        try (BlockDevice disk = new MappedDisk()) {
+            checkInodeTable(disk);
+        }
+        try (BlockDevice disk = new CachedDisk(new Disk(), 4, EvictionPolicy.LRU)) {
+            checkInodeTable(disk);
+        }
+    }
+
+    @Test
+    void syncWritesOpenInodesTest01() throws IOException {
+        FileSystem fs = new FileSystem();
+        int first = fs.create("first.txt");
+        int second = fs.create("second.txt");
+        fs.write(first, "first");
+        fs.write(second, "second");
+        fs.sync();
+        fs.unmount();
+
+        // the files were never closed, sync wrote their inodes
+        FileSystem mounted = FileSystem.mount();
+        assertEquals("first", mounted.read(mounted.open("first.txt")));
+        assertEquals("second", mounted.read(mounted.open("second.txt")));
+    }
+}
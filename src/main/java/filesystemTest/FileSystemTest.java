@@ -1,11 +1,42 @@
 package filesystemTest;
+import filesystem.AllocationPolicy;
+import filesystem.AsyncFileSystem;
+import filesystem.BlockDevice;
+import filesystem.DefragmentationReport;
+import filesystem.Defragmenter;
+import filesystem.Disk;
+import filesystem.DiskGeometry;
 import filesystem.FileSystem;
+import filesystem.INode;
+import filesystem.Metrics;
 import org.junit.jupiter.api.Test;
 
+import javax.management.ObjectName;
 import java.io.IOException;
-
+import java.lang.management.ManagementFactory;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 public class FileSystemTest {
@@ -103,6 +134,8 @@ public class FileSystemTest {
                 fs.delete(fileName);
             }
             // first 22 files will get 1 data block and the rest gets 2, half will be deleted
+            // freed blocks come back once the deletes commit
+            fs.sync();
             int expected = (22 + 20*2)/2;
             int actual = fs.getNumberOfBlocksAllocated();
             assertEquals(expected, actual);
@@ -142,6 +175,8 @@ public class FileSystemTest {
                 fs.delete(fileName);
             }
             // the first 10 files should get 1 block data each and 5 of them will be deleted
+            // freed blocks come back once the deletes commit
+            fs.sync();
             int expected = (10 / 2);
             int actual = fs.getNumberOfBlocksAllocated();
             assertEquals(expected, actual);
@@ -243,4 +278,618 @@ public class FileSystemTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    void createDuplicateFileTest01() throws IOException {
+        FileSystem fs = new FileSystem();
+        for (int i = 0; i < 5; i++) {
+            int fd = fs.create("file" + i + ".txt");
+            fs.write(fd, "This is some text " + i);
+            fs.close(fd);
+        }
+        // the name index has to catch duplicates of any file, not just the first one
+        assertThrows(IOException.class, () -> fs.create("file3.txt"));
+
+        fs.delete("file3.txt");
+        int fd = fs.create("file3.txt");
+        fs.close(fd);
+        assertEquals(fd, fs.open("file3.txt"));
+        fs.close(fd);
+        assertEquals(-1, fs.open("missing.txt"));
+    }
+
+    @Test
+    void mountExistingDiskTest01() throws IOException {
+        int NUM_LINES = 42;
+        String testData = "This is some text ";
+        FileSystem fs = new FileSystem();
+        String fileNameBase = "file";
+        String theMessage = null;
+
+        for (int i= 0; i < NUM_LINES; i++) {
+            int fd = fs.create(fileNameBase + i + "." + "txt");
+            theMessage = new String();
+            for (int j= 0; j < i+1; j++) {
+                theMessage = theMessage.concat(testData + j + ".  ");
+            }
+            fs.write(fd, theMessage);
+            fs.close(fd);
+        }
+        for (int i= 0 ; i < NUM_LINES; i+=2) {
+            fs.delete(fileNameBase + i + "." + "txt");
+        }
+        fs.unmount();
+
+        // the files, the free block list and the name index all survive the remount
+        FileSystem mounted = FileSystem.mount();
+        assertEquals((22 + 20*2)/2, mounted.getNumberOfBlocksAllocated());
+        assertEquals(-1, mounted.open(fileNameBase + 0 + "." + "txt"));
+
+        int fd = mounted.open(fileNameBase + (NUM_LINES-1) + "." + "txt");
+        assertEquals(theMessage, mounted.read(fd));
+        mounted.close(fd);
+        assertThrows(IOException.class, () -> mounted.create(fileNameBase + 1 + "." + "txt"));
+        mounted.unmount();
+    }
+
+    @Test
+    void multipleOpenFilesTest01() throws IOException {
+        int NUM_FILES = 300;
+        String testData = "This is some text ";
+        FileSystem fs = new FileSystem();
+        int[] fds = new int[NUM_FILES];
+
+        // keep hundreds of files open at once and write them interleaved
+        for (int i = 0; i < NUM_FILES; i++) {
+            fds[i] = fs.create("file" + i + ".txt");
+        }
+        for (int i = NUM_FILES - 1; i >= 0; i--) {
+            fs.write(fds[i], testData + i);
+        }
+        for (int i = 0; i < NUM_FILES; i++) {
+            assertEquals(testData + i, fs.read(fds[i]));
+            fs.close(fds[i]);
+        }
+        assertThrows(IOException.class, () -> fs.read(fds[0]));
+        assertThrows(IOException.class, () -> fs.close(fds[0]));
+
+        // two handles on the same file share its inode
+        int first = fs.open("file7.txt");
+        int second = fs.open("file7.txt");
+        assertEquals(testData + 7, fs.read(second));
+        fs.write(first, "rewritten");
+        assertEquals("rewritten", fs.read(second));
+        fs.write(first, "na\u00efve \u2013 \u00fcn\u00efcode");
+        assertEquals("na\u00efve \u2013 \u00fcn\u00efcode", fs.read(second));
+        fs.close(first);
+        fs.close(second);
+
+        // deleting a file invalidates its open handles, descriptors are reused
+        int fd = fs.open("file8.txt");
+        fs.delete("file8.txt");
+        assertThrows(IOException.class, () -> fs.read(fd));
+        assertEquals(fd, fs.open("file9.txt"));
+    }
+
+    @Test
+    void concurrentFilesTest01() throws Exception {
+        int NUM_THREADS = 8;
+        int FILES_PER_THREAD = 40;
+        String testData = "This is some text ";
+        FileSystem fs = new FileSystem();
+        ExecutorService pool = Executors.newFixedThreadPool(NUM_THREADS);
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int t = 0; t < NUM_THREADS; t++) {
+            int thread = t;
+            results.add(pool.submit(() -> {
+                for (int i = 0; i < FILES_PER_THREAD; i++) {
+                    String fileName = "thread" + thread + "file" + i + ".txt";
+                    String theMessage = "";
+                    for (int j = 0; j < i + 1; j++) {
+                        theMessage = theMessage.concat(testData + j + ".  ");
+                    }
+                    int fd = fs.create(fileName);
+                    fs.write(fd, theMessage);
+                    fs.close(fd);
+
+                    fd = fs.open(fileName);
+                    assertEquals(theMessage, fs.read(fd));
+                    fs.close(fd);
+                    if (i % 2 == 0) {
+                        fs.delete(fileName);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+        pool.shutdown();
+        fs.sync();
+
+        // every thread keeps the odd files: 1 block each up to file 21, 2 blocks after that
+        int blocksPerThread = 0;
+        for (int i = 1; i < FILES_PER_THREAD; i += 2) {
+            blocksPerThread += i < 22 ? 1 : 2;
+        }
+        assertEquals(NUM_THREADS * blocksPerThread, fs.getNumberOfBlocksAllocated());
+    }
+
+    @Test
+    void offsetReadWriteTest01() throws IOException {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("offsets.txt");
+        byte[] data = new byte[1300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        assertEquals(data.length, fs.write(fd, ByteBuffer.wrap(data), 0));
+        assertEquals(3, fs.getNumberOfBlocksAllocated());
+        assertEquals(data.length, fs.size(fd));
+
+        // overwrite a range that straddles a block boundary, the bytes around it survive
+        fs.write(fd, ByteBuffer.wrap("XYZ".getBytes()), 511);
+        ByteBuffer middle = ByteBuffer.allocate(5);
+        assertEquals(5, fs.read(fd, middle, 510));
+        assertEquals("" + (char) data[510] + "XYZ" + (char) data[514], new String(middle.array()));
+        assertEquals(0, fs.getPosition(fd));
+
+        // writing past the end leaves a hole of zeros and only allocates the blocks written
+        fs.write(fd, ByteBuffer.wrap("end".getBytes()), 5 * 512 + 10);
+        assertEquals(6, fs.getNumberOfBlocksAllocated());
+        ByteBuffer hole = ByteBuffer.allocate(512);
+        fs.read(fd, hole, 3 * 512);
+        assertArrayEquals(new byte[512], hole.array());
+        assertEquals(-1, fs.read(fd, ByteBuffer.allocate(1), fs.size(fd)));
+
+        // bytes cut off by truncate read back as zeros once the file grows again
+        fs.truncate(fd, 500);
+        assertEquals(500, fs.size(fd));
+        fs.sync();
+        assertEquals(1, fs.getNumberOfBlocksAllocated());
+        fs.write(fd, ByteBuffer.wrap("!".getBytes()), 600);
+        ByteBuffer tail = ByteBuffer.allocate(200);
+        assertEquals(101, fs.read(fd, tail, 500));
+        assertArrayEquals(new byte[100], Arrays.copyOf(tail.array(), 100));
+        assertEquals('!', tail.get(100));
+
+        // a gap wider than the scratch buffer is zeroed a piece at a time
+        fs.write(fd, ByteBuffer.wrap("far".getBytes()), 1_000_000);
+        ByteBuffer far = ByteBuffer.allocate(1_000_003 - 600);
+        assertEquals(far.capacity(), fs.read(fd, far, 600));
+        assertEquals('!', far.get(0));
+        assertArrayEquals(new byte[1_000_000 - 601], Arrays.copyOfRange(far.array(), 1, 1_000_000 - 600));
+        assertEquals("far", new String(far.array(), 1_000_000 - 600, 3));
+
+        assertThrows(IOException.class, () -> fs.write(fd, ByteBuffer.allocate(1), (30 + 128 + 128 * 128) * 512));
+        assertThrows(IllegalArgumentException.class, () -> fs.read(fd, ByteBuffer.allocate(1), -1));
+        fs.close(fd);
+    }
+
+    @Test
+    void streamTest01() throws IOException {
+        FileSystem fs = new FileSystem();
+        String theMessage = "";
+        for (int j = 0; j < 100; j++) {
+            theMessage = theMessage.concat("This is some text " + j + ".  ");
+        }
+
+        try (OutputStream out = fs.newOutputStream(fs.create("stream.txt"))) {
+            out.write(theMessage.getBytes(), 0, 1000);
+            out.write(theMessage.getBytes(), 1000, theMessage.length() - 1000);
+        }
+
+        try (InputStream in = fs.newInputStream(fs.open("stream.txt"))) {
+            byte[] first = new byte[700];
+            assertEquals(700, in.readNBytes(first, 0, 700));
+            assertEquals(theMessage.substring(0, 700), new String(first));
+            assertEquals(100, in.skip(100));
+            assertEquals(theMessage.charAt(800), in.read());
+        }
+
+        try (SeekableByteChannel channel = fs.newByteChannel(fs.open("stream.txt"))) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            channel.position(theMessage.length() - 4).read(buffer);
+            assertEquals(theMessage.substring(theMessage.length() - 4), new String(buffer.array()));
+            assertEquals(theMessage.length(), channel.position());
+            assertEquals(-1, channel.read(buffer.clear()));
+        }
+    }
+
+    @Test
+    void largeFileTest01() throws IOException {
+        int NUM_BLOCKS = 400;
+        byte[] data = new byte[NUM_BLOCKS * 512 - 100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + i / 512);
+        }
+
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("large.bin");
+        fs.write(fd, ByteBuffer.wrap(data), 0);
+        fs.close(fd);
+
+        // 30 direct blocks, 128 through the indirect block, the rest through two blocks under the double indirect one
+        assertEquals(NUM_BLOCKS + 1 + 1 + 2, fs.getNumberOfBlocksAllocated());
+
+        fs.unmount();
+        FileSystem mounted = FileSystem.mount();
+        fd = mounted.open("large.bin");
+        assertEquals(data.length, mounted.size(fd));
+        ByteBuffer whole = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, mounted.read(fd, whole, 0));
+        assertArrayEquals(data, whole.array());
+
+        // a random offset in the double indirect range
+        ByteBuffer slice = ByteBuffer.allocate(1000);
+        mounted.read(fd, slice, 300 * 512 + 7);
+        assertArrayEquals(Arrays.copyOfRange(data, 300 * 512 + 7, 300 * 512 + 1007), slice.array());
+
+        // blocks freed by truncate and delete come back once they commit
+        mounted.truncate(fd, 10 * 512);
+        mounted.sync();
+        assertEquals(10, mounted.getNumberOfBlocksAllocated());
+        mounted.close(fd);
+        mounted.delete("large.bin");
+        mounted.sync();
+        assertEquals(0, mounted.getNumberOfBlocksAllocated());
+    }
+
+    @Test
+    void journalReplayTest01() throws IOException {
+        byte[] data = new byte[40 * 512];
+        Arrays.fill(data, (byte) 'j');
+
+        FileSystem fs = new FileSystem();
+        fs.setGroupCommit(1000, 0);
+        int fd = fs.create("kept.bin");
+        fs.write(fd, ByteBuffer.wrap(data), 0);
+        fs.close(fd);
+        fs.sync();
+        int allocated = fs.getNumberOfBlocksAllocated();
+
+        // never committed, so lost in the crash
+        fd = fs.create("lost.bin");
+        fs.write(fd, ByteBuffer.wrap(data), 0);
+
+        // the committed metadata was written in place but not forced out, wipe it as a crash would
+        try (BlockDevice disk = new Disk()) {
+            disk.mount();
+            int indirectBlock = disk.readInode(0).getBlockPointer(30);
+            disk.writeDataBlock(new byte[512], indirectBlock);
+            disk.writeInode(new INode(), 0);
+            disk.writeInode(new INode(), 1);
+            disk.writeFreeBlockList(new byte[disk.getGeometry().getFreeListSize()]);
+        }
+
+        FileSystem mounted = FileSystem.mount();
+        assertEquals(allocated, mounted.getNumberOfBlocksAllocated());
+        assertEquals(-1, mounted.open("lost.bin"));
+        fd = mounted.open("kept.bin");
+        ByteBuffer whole = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, mounted.read(fd, whole, 0));
+        assertArrayEquals(data, whole.array());
+        mounted.close(fd);
+        mounted.unmount();
+    }
+
+    @Test
+    void journalReplayTest02() throws IOException {
+        byte[] data = new byte[40 * 512];
+        Arrays.fill(data, (byte) 'a');
+
+        FileSystem fs = new FileSystem();
+        fs.setGroupCommit(1000, 0);
+        fs.setAllocationPolicy(AllocationPolicy.FIRST_FIT);
+        int fd = fs.create("kept.bin");
+        fs.write(fd, ByteBuffer.wrap(data), 0);
+        fs.close(fd);
+        fs.sync();
+        int allocated = fs.getNumberOfBlocksAllocated();
+
+        // the delete never commits, so first fit must not hand its blocks to the new files
+        fs.delete("kept.bin");
+        byte[] other = new byte[data.length];
+        Arrays.fill(other, (byte) 'b');
+        for (int i = 0; i < 2; i++) {
+            fd = fs.create("other" + i + ".bin");
+            fs.write(fd, ByteBuffer.wrap(other), 0);
+            fs.close(fd);
+        }
+
+        // crash without a sync: the delete is rolled back and the file is whole
+        FileSystem mounted = FileSystem.mount();
+        assertEquals(-1, mounted.open("other0.bin"));
+        assertEquals(allocated, mounted.getNumberOfBlocksAllocated());
+        fd = mounted.open("kept.bin");
+        ByteBuffer whole = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, mounted.read(fd, whole, 0));
+        assertArrayEquals(data, whole.array());
+        mounted.close(fd);
+        mounted.delete("kept.bin");
+        mounted.unmount();
+    }
+
+    @Test
+    void journalFitsTest01() throws IOException {
+        // two journal blocks leave no room for an indirect block, so a file stops at its direct blocks
+        FileSystem fs = new FileSystem(new Disk(), new DiskGeometry(512, 1024, 64, 2));
+        int fd = fs.create("direct.bin");
+        byte[] data = new byte[INode.NUM_DIRECT_POINTERS * 512];
+        Arrays.fill(data, (byte) 'd');
+        fs.write(fd, ByteBuffer.wrap(data), 0);
+
+        // the refused growth leaves the file and the free block list as they were
+        assertThrows(IOException.class, () -> fs.write(fd, ByteBuffer.wrap(new byte[1]), data.length));
+        assertEquals(data.length, fs.size(fd));
+        assertEquals(INode.NUM_DIRECT_POINTERS, fs.getNumberOfBlocksAllocated());
+        ByteBuffer whole = ByteBuffer.allocate(data.length);
+        assertEquals(data.length, fs.read(fd, whole, 0));
+        assertArrayEquals(data, whole.array());
+
+        fs.truncate(fd, 512);
+        fs.close(fd);
+        fs.sync();
+        assertEquals(1, fs.getNumberOfBlocksAllocated());
+        fs.unmount();
+    }
+
+    @Test
+    void failedWriteTest01() throws IOException {
+        boolean[] failing = {false};
+        FileSystem fs = new FileSystem(new Disk() {
+            @Override
+            public void writeBlocks(int[] blocks, ByteBuffer src) throws IOException {
+                if (failing[0]) {
+                    throw new IOException("write failed");
+                }
+                super.writeBlocks(blocks, src);
+            }
+        });
+        int fd = fs.create("grow.bin");
+        byte[] data = new byte[3 * 512];
+        Arrays.fill(data, (byte) 'g');
+        fs.write(fd, ByteBuffer.wrap(data), 0);
+        int allocated = fs.getNumberOfBlocksAllocated();
+
+        // a growing write whose data cannot be written gives its new blocks back
+        failing[0] = true;
+        assertThrows(IOException.class, () -> fs.write(fd, ByteBuffer.wrap(new byte[200 * 512]), 3 * 512));
+        assertEquals(data.length, fs.size(fd));
+        assertEquals(allocated, fs.getNumberOfBlocksAllocated());
+
+        // the next write takes the same slots again without leaking the old blocks
+        failing[0] = false;
+        fs.write(fd, ByteBuffer.wrap(new byte[200 * 512]), 3 * 512);
+        fs.close(fd);
+        fs.sync();
+        int grown = fs.getNumberOfBlocksAllocated();
+        fs.unmount();
+
+        FileSystem mounted = FileSystem.mount(new Disk());
+        assertEquals(grown, mounted.getNumberOfBlocksAllocated());
+        int reopened = mounted.open("grow.bin");
+        assertEquals(203 * 512, mounted.size(reopened));
+        ByteBuffer head = ByteBuffer.allocate(data.length);
+        mounted.read(reopened, head, 0);
+        assertArrayEquals(data, head.array());
+        mounted.close(reopened);
+        mounted.unmount();
+    }
+
+    @Test
+    void asyncTest01() throws Exception {
+        FileSystem fs = new FileSystem();
+        try (AsyncFileSystem async = new AsyncFileSystem(fs)) {
+            String theMessage = "written and read back without blocking";
+            String read = async.createAsync("async.txt")
+                    .thenCompose(fd -> async.writeAsync(fd, theMessage).thenApply(done -> fd))
+                    .thenCompose(fd -> async.readAsync(fd)
+                            .thenCompose(data -> async.closeAsync(fd).thenApply(done -> data)))
+                    .get();
+            assertEquals(theMessage, read);
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> async.openAsync("async.txt")
+                    .thenCompose(fd -> async.writeAsync(fd, "")).get());
+            assertEquals(IOException.class, e.getCause().getClass());
+        }
+
+        // with the only slot taken a second operation is refused instead of queued
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        try (AsyncFileSystem async = new AsyncFileSystem(fs, executor, 1)) {
+            CompletableFuture<Integer> first = async.openAsync("async.txt");
+            CompletableFuture<Integer> second = async.openAsync("async.txt");
+            ExecutionException e = assertThrows(ExecutionException.class, second::get);
+            assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+            assertEquals(1, async.getInFlight());
+
+            release.countDown();
+            async.closeAsync(first.get()).get();
+            assertEquals(0, async.getInFlight());
+
+            // closing refuses later operations even though the caller's executor keeps running
+            async.close();
+            e = assertThrows(ExecutionException.class, () -> async.openAsync("async.txt").get());
+            assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void writeBatchTest01() throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            byte[] contents = new byte[i * 100];
+            Arrays.fill(contents, (byte) ('a' + i % 26));
+            files.put("batch" + i + ".txt", contents);
+        }
+
+        FileSystem fs = new FileSystem();
+        fs.writeBatch(files);
+
+        // file 49 needs 10 blocks and each smaller file fewer, all from one allocation
+        int blocks = 0;
+        for (byte[] contents : files.values()) {
+            blocks += (contents.length + 511) / 512;
+        }
+        assertEquals(blocks, fs.getNumberOfBlocksAllocated());
+
+        // a name that exists fails the whole batch
+        Map<String, byte[]> clash = new LinkedHashMap<>();
+        clash.put("fresh.txt", new byte[10]);
+        clash.put("batch3.txt", new byte[10]);
+        assertThrows(IOException.class, () -> fs.writeBatch(clash));
+        assertEquals(-1, fs.open("fresh.txt"));
+        assertEquals(blocks, fs.getNumberOfBlocksAllocated());
+
+        // a batch is one transaction, so one too large for the journal creates nothing
+        Map<String, byte[]> huge = new LinkedHashMap<>();
+        for (int i = 0; i < 700; i++) {
+            huge.put("huge" + i + ".txt", new byte[0]);
+        }
+        assertThrows(IOException.class, () -> fs.writeBatch(huge));
+        assertEquals(-1, fs.open("huge0.txt"));
+        Map<String, byte[]> missing = new LinkedHashMap<>();
+        missing.put("missing.txt", null);
+        assertThrows(IllegalArgumentException.class, () -> fs.writeBatch(missing));
+        assertEquals(blocks, fs.getNumberOfBlocksAllocated());
+
+        fs.unmount();
+        FileSystem mounted = FileSystem.mount();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            int fd = mounted.open(file.getKey());
+            assertEquals(file.getValue().length, mounted.size(fd));
+            ByteBuffer contents = ByteBuffer.allocate(file.getValue().length);
+            mounted.read(fd, contents, 0);
+            assertArrayEquals(file.getValue(), contents.array());
+            mounted.close(fd);
+        }
+        mounted.unmount();
+    }
+
+    @Test
+    void writeBatchTransactionTest01() throws IOException {
+        int[] journalWrites = {0};
+        FileSystem fs = new FileSystem(new Disk() {
+            @Override
+            public void writeJournal(ByteBuffer src, int offset) throws IOException {
+                journalWrites[0]++;
+                super.writeJournal(src, offset);
+            }
+        });
+        fs.sync();
+        journalWrites[0] = 0;
+
+        // more files than a group commit holds still go out as one transaction
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < 100; i++) {
+            files.put("batch" + i + ".txt", new byte[10]);
+        }
+        fs.writeBatch(files);
+        assertEquals(1, journalWrites[0]);
+        fs.unmount();
+    }
+
+    @Test
+    void metricsTest01() throws Exception {
+        FileSystem fs = new FileSystem();
+        int fd = fs.create("metrics.txt");
+        fs.write(fd, ByteBuffer.wrap(new byte[1500]), 0);
+        fs.read(fd, ByteBuffer.allocate(1000), 100);
+        fs.close(fd);
+        assertEquals(-1, fs.open("missing.txt"));
+        fs.sync();
+
+        Map<String, Long> snapshot = fs.getMetrics().snapshot();
+        assertEquals(1, snapshot.get("fileSystem.create.count"));
+        assertEquals(1, snapshot.get("fileSystem.write.count"));
+        assertEquals(1, snapshot.get("fileSystem.read.count"));
+        assertEquals(1, snapshot.get("fileSystem.close.count"));
+        assertEquals(1, snapshot.get("fileSystem.lookupMisses"));
+        assertEquals(1500, snapshot.get("fileSystem.bytesWritten"));
+        assertEquals(1000, snapshot.get("fileSystem.bytesRead"));
+        assertEquals(3, snapshot.get("disk.blocksWritten"));
+        assertEquals(Disk.NUM_BLOCKS - 3, snapshot.get("freeBlockList.freeBlocks"));
+        assertTrue(snapshot.get("fileSystem.write.maxNanos") >= snapshot.get("fileSystem.write.p50Nanos"));
+
+        ObjectName name = fs.getMetrics().registerMBean("metricsTest01");
+        try {
+            assertEquals(1L, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(name, "fileSystem.create.count"));
+        } finally {
+            Metrics.unregisterMBean(name);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        fs.unmount();
+    }
+
+    @Test
+    void defragmentTest01() throws IOException {
+        // the churn of Main: a batch of files, then every other one deleted
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < 40; i++) {
+            byte[] contents = new byte[(i + 1) * 60];
+            Arrays.fill(contents, (byte) ('a' + i % 26));
+            files.put("defrag" + i + ".txt", contents);
+        }
+        FileSystem fs = new FileSystem();
+        fs.writeBatch(files);
+        for (int i = 0; i < 40; i += 2) {
+            fs.delete("defrag" + i + ".txt");
+            files.remove("defrag" + i + ".txt");
+        }
+        fs.sync();
+
+        // first fit scatters a large file over the holes, it stays open while it moves
+        fs.setAllocationPolicy(AllocationPolicy.FIRST_FIT);
+        byte[] large = new byte[40 * 512];
+        new Random(1).nextBytes(large);
+        int fd = fs.create("large.bin");
+        fs.write(fd, ByteBuffer.wrap(large), 0);
+        files.put("large.bin", large);
+        int allocated = fs.getNumberOfBlocksAllocated();
+
+        DefragmentationReport report = new Defragmenter(fs).defragment();
+        assertEquals(files.size(), report.getFiles());
+        assertTrue(report.getFilesMoved() > 0);
+        assertTrue(report.getFileExtentsBefore() > files.size());
+        assertEquals(files.size(), report.getFileExtentsAfter());
+        assertEquals(allocated, fs.getNumberOfBlocksAllocated());
+        assertTrue(report.getFreeSpaceAfter().getFreeRuns() < report.getFreeSpaceBefore().getFreeRuns());
+        assertTrue(report.getReadBytesPerSecondAfter() > 0);
+
+        ByteBuffer contents = ByteBuffer.allocate(large.length);
+        fs.read(fd, contents, 0);
+        assertArrayEquals(large, contents.array());
+        fs.close(fd);
+
+        Defragmenter closed = new Defragmenter(fs, 1 << 20, false);
+        closed.close();
+        assertThrows(IOException.class, closed::defragment);
+        assertThrows(IllegalArgumentException.class, () -> new Defragmenter(fs, -1, false));
+
+        // the moves were journaled, the files are where the pass put them after a remount
+        fs.unmount();
+        FileSystem mounted = FileSystem.mount();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            int mountedFd = mounted.open(file.getKey());
+            contents = ByteBuffer.allocate(file.getValue().length);
+            mounted.read(mountedFd, contents, 0);
+            assertArrayEquals(file.getValue(), contents.array());
+            mounted.close(mountedFd);
+        }
+        assertEquals(allocated, mounted.getNumberOfBlocksAllocated());
+        mounted.unmount();
+    }
 }
@@ -0,0 +1,195 @@
+package filesystemTest;
+import filesystem.AllocationPolicy;
+import filesystem.Disk;
+import filesystem.FragmentationReport;
+import filesystem.FreeBlockList;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+public class FreeBlockListTest {
+    @Test
+    void byteListRoundTripTest01() {
+        FreeBlockList list = new FreeBlockList();
+        int[] blocks = {0, 7, 8, 63, 64, 65, 1000, Disk.NUM_BLOCKS - 1};
+        for (int block : blocks) {
+            list.allocateBlock(block);
+        }
+
+        byte[] bytes = list.getFreeBlockList();
+        // block 7 is the top bit of byte 0, block 8 the low bit of byte 1
+        assertEquals((byte) 0x81, bytes[0]);
+        assertEquals((byte) 0x01, bytes[1]);
+
+        FreeBlockList copy = new FreeBlockList();
+        copy.setFreeBlockList(bytes);
+        assertArrayEquals(bytes, copy.getFreeBlockList());
+        assertEquals(blocks.length, copy.getNumberOfBlocksAllocated());
+        for (int block : blocks) {
+            assertFalse(copy.isBlockFree(block));
+        }
+        assertTrue(copy.isBlockFree(1));
+    }
+
+    @Test
+    void nextFitAllocationTest01() {
+        FreeBlockList list = new FreeBlockList();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, list.allocateNextFreeBlock());
+        }
+
+        // freed blocks behind the cursor are only reused after wrapping around
+        list.deallocateBlock(10);
+        list.deallocateBlock(130);
+        assertEquals(198, list.getNumberOfBlocksAllocated());
+        assertEquals(200, list.allocateNextFreeBlock());
+        assertEquals(130, list.nextFreeBlock(11));
+        assertEquals(10, list.nextFreeBlock(0));
+    }
+
+    @Test
+    void fullDiskAllocationTest01() {
+        FreeBlockList list = new FreeBlockList();
+        for (int i = 0; i < Disk.NUM_BLOCKS; i++) {
+            list.allocateNextFreeBlock();
+        }
+        assertEquals(0, list.getNumberOfFreeBlocks());
+        assertEquals(-1, list.allocateNextFreeBlock());
+
+        list.deallocateBlock(5);
+        list.deallocateBlock(5);
+        assertEquals(1, list.getNumberOfFreeBlocks());
+        assertEquals(5, list.allocateNextFreeBlock());
+    }
+
+    private FreeBlockList fragmentedList(AllocationPolicy policy) {
+        FreeBlockList list = new FreeBlockList();
+        list.setAllocationPolicy(AllocationPolicy.NEXT_FIT);
+        list.allocateBlocks(40);
+        // free runs of 2 at 4..5, 4 at 10..13 and 3 at 20..22
+        list.deallocateBlock(4);
+        list.deallocateBlock(5);
+        for (int i = 10; i < 14; i++) {
+            list.deallocateBlock(i);
+        }
+        for (int i = 20; i < 23; i++) {
+            list.deallocateBlock(i);
+        }
+        list.setAllocationPolicy(policy);
+        return list;
+    }
+
+    @Test
+    void allocationPolicyTest01() {
+        assertArrayEquals(new int[]{4, 5, 10}, fragmentedList(AllocationPolicy.FIRST_FIT).allocateBlocks(3));
+        assertArrayEquals(new int[]{20, 21, 22}, fragmentedList(AllocationPolicy.BEST_FIT).allocateBlocks(3));
+        assertArrayEquals(new int[]{40, 41, 42}, fragmentedList(AllocationPolicy.EXTENT).allocateBlocks(3));
+        assertArrayEquals(new int[]{40, 41, 42}, fragmentedList(AllocationPolicy.NEXT_FIT).allocateBlocks(3));
+    }
+
+    @Test
+    void extentAllocationFallbackTest01() {
+        FreeBlockList list = fragmentedList(AllocationPolicy.EXTENT);
+        for (int i = 40; i < Disk.NUM_BLOCKS; i++) {
+            list.allocateBlock(i);
+        }
+        // nothing free after the cursor, so the search wraps around to the run at 10
+        assertEquals(14, list.nextAllocatedBlock(11));
+        assertArrayEquals(new int[]{10, 11, 12, 13}, list.allocateBlocks(4));
+        // no run of 4 left, so the extent policy falls back to single blocks
+        assertArrayEquals(new int[]{20, 21, 22, 4}, list.allocateBlocks(4));
+        assertEquals(1, list.getNumberOfFreeBlocks());
+    }
+
+    @Test
+    void summaryTreeTest01() {
+        // not a multiple of 64, so the last word is only partly on the disk
+        int numBlocks = 1000;
+        FreeBlockList list = new FreeBlockList(numBlocks);
+        boolean[] allocated = new boolean[numBlocks];
+        Random random = new Random(7);
+
+        for (int round = 0; round < 2000; round++) {
+            int block = random.nextInt(numBlocks);
+            if (random.nextInt(3) == 0) {
+                list.deallocateBlock(block);
+                allocated[block] = false;
+            } else {
+                list.allocateBlock(block);
+                allocated[block] = true;
+            }
+
+            int from = random.nextInt(numBlocks);
+            int nextFree = from;
+            while (nextFree < numBlocks && allocated[nextFree]) {
+                nextFree++;
+            }
+            int nextAllocated = from;
+            while (nextAllocated < numBlocks && !allocated[nextAllocated]) {
+                nextAllocated++;
+            }
+            assertEquals(nextFree == numBlocks ? -1 : nextFree, list.nextFreeBlock(from));
+            assertEquals(nextAllocated, list.nextAllocatedBlock(from));
+        }
+
+        int largest = 0;
+        int free = 0;
+        for (int start = 0; start < numBlocks; ) {
+            int end = start;
+            while (end < numBlocks && !allocated[end]) {
+                end++;
+            }
+            largest = Math.max(largest, end - start);
+            free += end - start;
+            start = end + 1;
+        }
+        assertEquals(largest, list.getLargestFreeRun());
+
+        FragmentationReport report = list.getFragmentationReport();
+        assertEquals(free, report.getFreeBlocks());
+        assertEquals(largest, report.getLargestFreeRun());
+        long runs = 0;
+        for (long count : report.getRunLengthCounts()) {
+            runs += count;
+        }
+        assertEquals(report.getFreeRuns(), runs);
+
+        // an extent lands on the first run long enough for it
+        int[] blocks = list.allocateBlocks(largest);
+        for (int i = 1; i < blocks.length; i++) {
+            assertEquals(blocks[0] + i, blocks[i]);
+        }
+        for (int block : blocks) {
+            assertFalse(allocated[block]);
+        }
+        assertTrue(list.getLargestFreeRun() <= largest);
+    }
+
+    @Test
+    void fragmentationReportTest01() {
+        FreeBlockList list = new FreeBlockList(256);
+        // free runs of 1, 2 and 4 blocks between allocated ones, then 128 free blocks at the end
+        for (int block = 0; block < 128; block++) {
+            list.allocateBlock(block);
+        }
+        list.deallocateBlock(10);
+        list.deallocateBlock(20);
+        list.deallocateBlock(21);
+        for (int block = 30; block < 34; block++) {
+            list.deallocateBlock(block);
+        }
+
+        FragmentationReport report = list.getFragmentationReport();
+        assertEquals(135, report.getFreeBlocks());
+        assertEquals(4, report.getFreeRuns());
+        assertEquals(128, report.getLargestFreeRun());
+        assertArrayEquals(new long[]{1, 1, 1, 0, 0, 0, 0, 1, 0}, report.getRunLengthCounts());
+        assertEquals(1 - (128.0 / 135), report.getFragmentation(), 1e-9);
+    }
+}